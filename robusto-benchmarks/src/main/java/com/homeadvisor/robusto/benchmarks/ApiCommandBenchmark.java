@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.benchmarks;
+
+import com.homeadvisor.robusto.ApiCommand;
+import com.homeadvisor.robusto.ConstantUriProvider;
+import com.homeadvisor.robusto.cache.CommandCacheConfig;
+import com.homeadvisor.robusto.cache.HashMapCommandCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead {@link ApiCommand#execute()} adds on top of a remote
+ * call that does no I/O: cache hits (on the Hystrix thread and on the caller
+ * thread), cache misses, no cache at all, and a call that needs one retry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ApiCommandBenchmark
+{
+   private static final String URI = "http://localhost";
+
+   private final ConstantUriProvider<String> uriProvider = new ConstantUriProvider<>(URI);
+
+   private HashMapCommandCache<Object, Object, Object> hitCache;
+
+   private HashMapCommandCache<Object, Object, Object> missCache;
+
+   @Setup
+   public void setup()
+   {
+      hitCache = new HashMapCommandCache<>("benchmarkHit", new CommandCacheConfig());
+      hitCache.putCache("key", "cached");
+
+      //
+      // Disable puts so every execution is a miss
+      //
+
+      CommandCacheConfig missConfig = new CommandCacheConfig();
+      missConfig.setPutEnabled(false);
+      missCache = new HashMapCommandCache<>("benchmarkMiss", missConfig);
+   }
+
+   @Benchmark
+   public String noCache()
+   {
+      return command("BenchmarkNoCache", new BenchmarkCallback("value", false)).build().execute();
+   }
+
+   @Benchmark
+   public String cacheHit()
+   {
+      return command("BenchmarkCacheHit", new BenchmarkCallback("value", false))
+            .withCommandCache(hitCache, "key")
+            .build()
+            .execute();
+   }
+
+   @Benchmark
+   public String cacheHitCallerThread()
+   {
+      return command("BenchmarkCacheHitCallerThread", new BenchmarkCallback("value", false))
+            .withCommandCache(hitCache, "key")
+            .withCallerThreadCacheLookup(true)
+            .build()
+            .execute();
+   }
+
+   @Benchmark
+   public String cacheMiss()
+   {
+      return command("BenchmarkCacheMiss", new BenchmarkCallback("value", false))
+            .withCommandCache(missCache, "key")
+            .build()
+            .execute();
+   }
+
+   @Benchmark
+   public String retryOnce()
+   {
+      return command("BenchmarkRetryOnce", new BenchmarkCallback("value", true))
+            .withNumberOfRetries(2)
+            .withBackoffPolicy(new NoBackOffPolicy())
+            .build()
+            .execute();
+   }
+
+   private ApiCommand.Builder<String> command(String group, BenchmarkCallback callback)
+   {
+      return ApiCommand.<String>builder()
+            .withUriProvider(uriProvider)
+            .withRemoteServiceCallback(callback)
+            .withCommandGroup(group);
+   }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.benchmarks;
+
+import com.homeadvisor.robusto.CommandContext;
+import com.homeadvisor.robusto.RemoteServiceCallback;
+import com.homeadvisor.robusto.RetryableApiCommandException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RemoteServiceCallback} that returns a constant value without doing
+ * any I/O, so benchmarks measure only the overhead added by Robusto. It can
+ * optionally fail every other call with a {@link RetryableApiCommandException}
+ * to exercise the retry path.
+ */
+class BenchmarkCallback implements RemoteServiceCallback<String>
+{
+   private final String value;
+
+   private final boolean failEveryOtherCall;
+
+   private final AtomicLong calls = new AtomicLong();
+
+   private CommandContext ctx;
+
+   BenchmarkCallback(String value, boolean failEveryOtherCall)
+   {
+      this.value = value;
+      this.failEveryOtherCall = failEveryOtherCall;
+   }
+
+   @Override
+   public String run(String url)
+   {
+      if(failEveryOtherCall && (calls.incrementAndGet() & 1) == 1)
+      {
+         throw new RetryableApiCommandException("Benchmark failure");
+      }
+
+      return value;
+   }
+
+   @Override
+   public void setContext(CommandContext ctx)
+   {
+      this.ctx = ctx;
+   }
+
+   @Override
+   public CommandContext getContext()
+   {
+      return ctx;
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.homeadvisor.robusto.cache.BoundedCommandCache;
+import com.homeadvisor.robusto.cache.BoundedCommandCacheConfig;
+import com.homeadvisor.robusto.cache.CommandCache;
+import com.homeadvisor.robusto.cache.CommandCacheConfig;
+import com.homeadvisor.robusto.cache.HashMapCommandCache;
+import com.homeadvisor.robusto.cache.guava.GuavaCommandCache;
+import com.homeadvisor.robusto.cache.guava.GuavaCommandCacheConfig;
+import com.homeadvisor.robusto.cache.offheap.JacksonCacheSerializer;
+import com.homeadvisor.robusto.cache.offheap.OffHeapCommandCache;
+import com.homeadvisor.robusto.cache.offheap.OffHeapCommandCacheConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CommandCache} get and put cost with several threads hitting
+ * the same cache. Every key is populated up front so puts only ever replace
+ * existing entries; this keeps the unsynchronized {@link HashMapCommandCache}
+ * from resizing concurrently. The off-heap cache deserializes a new copy of
+ * the value on every hit, which is the price of keeping values off the heap,
+ * so it is measured with both Java serialization and Jackson.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CommandCacheBenchmark
+{
+   private static final int NUM_KEYS = 1024;
+
+   @Param({"hashMap", "bounded", "guava", "offheap", "offheapJackson"})
+   public String cacheType;
+
+   private CommandCache<Integer, String, String> cache;
+
+   @Setup
+   public void setup()
+   {
+      switch(cacheType)
+      {
+         case "hashMap":
+            cache = new HashMapCommandCache<>("benchmark", new CommandCacheConfig());
+            break;
+         case "bounded":
+            cache = new BoundedCommandCache<>("benchmark", new BoundedCommandCacheConfig(300, NUM_KEYS * 2));
+            break;
+         case "guava":
+            cache = new GuavaCommandCache<>("benchmark", new GuavaCommandCacheConfig(300, NUM_KEYS * 2));
+            break;
+         case "offheap":
+            cache = new OffHeapCommandCache<>("benchmark", new OffHeapCommandCacheConfig(300, 16L * 1024 * 1024));
+            break;
+         case "offheapJackson":
+            OffHeapCommandCacheConfig config = new OffHeapCommandCacheConfig(300, 16L * 1024 * 1024);
+            config.setSerializer(new JacksonCacheSerializer<>(new ObjectMapper(), String.class));
+            cache = new OffHeapCommandCache<>("benchmark", config);
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown cache type " + cacheType);
+      }
+
+      for(int i = 0; i < NUM_KEYS; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+   }
+
+   @Benchmark
+   public Optional<String> get()
+   {
+      return cache.getCache(ThreadLocalRandom.current().nextInt(NUM_KEYS));
+   }
+
+   @Benchmark
+   public boolean put()
+   {
+      return cache.putCache(ThreadLocalRandom.current().nextInt(NUM_KEYS), "value");
+   }
+}
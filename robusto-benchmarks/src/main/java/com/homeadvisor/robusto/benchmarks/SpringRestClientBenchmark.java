@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.benchmarks;
+
+import com.homeadvisor.robusto.ApiCommand;
+import com.homeadvisor.robusto.ConstantUriProvider;
+import com.homeadvisor.robusto.spring.RestTemplateCallback;
+import com.homeadvisor.robusto.spring.SpringRestClient;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the {@link SpringRestClient} layer: building commands
+ * with {@link SpringRestClient#restCommand}, the default interceptor chain
+ * compared to a plain {@link RestTemplate} using the same request factory, and
+ * a full command execution. HTTP calls go to an in-process stub server on the
+ * loopback interface.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpringRestClientBenchmark
+{
+   private static final byte[] RESPONSE = "pong".getBytes(StandardCharsets.UTF_8);
+
+   private HttpServer server;
+
+   private BenchmarkClient client;
+
+   private RestTemplate plainRestTemplate;
+
+   private ConstantUriProvider<String> uriProvider;
+
+   private String url;
+
+   @Setup
+   public void setup() throws Exception
+   {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/ping", exchange ->
+      {
+         exchange.getResponseHeaders().add("Content-Type", "text/plain");
+         exchange.sendResponseHeaders(200, RESPONSE.length);
+         try(OutputStream body = exchange.getResponseBody())
+         {
+            body.write(RESPONSE);
+         }
+      });
+      server.start();
+
+      url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ping";
+      uriProvider = new ConstantUriProvider<>(url);
+
+      client = new BenchmarkClient();
+      client.setEnvironment(new StandardEnvironment());
+      client.setup();
+
+      plainRestTemplate = client.createPlainRestTemplate();
+   }
+
+   @TearDown
+   public void tearDown()
+   {
+      server.stop(0);
+   }
+
+   @Benchmark
+   public ApiCommand<String> restCommandBuild()
+   {
+      return client.restCommand(uriProvider, callback(), null, null, null, "Ping").build();
+   }
+
+   @Benchmark
+   public String restTemplateWithInterceptors()
+   {
+      return client.getRestTemplate().getForObject(url, String.class);
+   }
+
+   @Benchmark
+   public String restTemplatePlain()
+   {
+      return plainRestTemplate.getForObject(url, String.class);
+   }
+
+   @Benchmark
+   public String restCommandExecute()
+   {
+      return client.restCommand(uriProvider, callback(), null, null, null, "Ping").build().execute();
+   }
+
+   private RestTemplateCallback<String> callback()
+   {
+      return new RestTemplateCallback<>((ctx, restTemplate, url) -> restTemplate.getForObject(url, String.class));
+   }
+
+   /**
+    * Minimal client that exposes the setup hooks of {@link SpringRestClient}
+    * so the benchmark can drive it without a Spring context.
+    */
+   static class BenchmarkClient extends SpringRestClient
+   {
+      @Override
+      public String getServiceName()
+      {
+         return "benchmark";
+      }
+
+      @Override
+      protected void setup() throws Exception
+      {
+         super.setup();
+      }
+
+      RestTemplate createPlainRestTemplate()
+      {
+         return new RestTemplate(createHttpFactory(
+               getSpringConfiguration().getConnectTimeout(),
+               getSpringConfiguration().getRequestTimeout()));
+      }
+   }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.codahale;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.homeadvisor.robusto.cache.CacheStats;
+import com.homeadvisor.robusto.cache.CommandCache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Publishes the {@link CacheStats} of a {@link CommandCache} as Codahale
+ * gauges. Register it under a name of your choosing, for example:
+ * <pre>
+ *    registry.register(MetricRegistry.name("caches", cache.getName()), new CodahaleCacheMetrics(cache));
+ * </pre>
+ * All the gauges read from one snapshot of the stats, which is taken at most
+ * once a second, so reporting every gauge does not ask a remote cache for its
+ * size over and over.
+ */
+public class CodahaleCacheMetrics implements MetricSet
+{
+   private final Gauge<CacheStats> stats;
+
+   public CodahaleCacheMetrics(CommandCache<?,?,?> cache)
+   {
+      this.stats = new CachedGauge<CacheStats>(1, TimeUnit.SECONDS)
+      {
+         @Override
+         protected CacheStats loadValue()
+         {
+            return cache.getCacheStats();
+         }
+      };
+   }
+
+   @Override
+   public Map<String, Metric> getMetrics()
+   {
+      Map<String, Metric> metrics = new HashMap<>();
+
+      metrics.put("hits", gauge(CacheStats::getHitCount));
+      metrics.put("misses", gauge(CacheStats::getMissCount));
+      metrics.put("negativeHits", gauge(CacheStats::getNegativeHitCount));
+      metrics.put("staleHits", gauge(CacheStats::getStaleHitCount));
+      metrics.put("hitRate", gauge(CacheStats::getHitRate));
+      metrics.put("evictions", gauge(CacheStats::getEvictionCount));
+      metrics.put("putFailures", gauge(CacheStats::getPutFailureCount));
+      metrics.put("size", gauge(CacheStats::getSize));
+      metrics.put("weight", gauge(CacheStats::getWeight));
+      metrics.put("loads", gauge(CacheStats::getLoadCount));
+      metrics.put("loadTime.mean", gauge(CacheStats::getMeanLoadTime));
+      metrics.put("loadTime.p50", gauge(s -> s.getLoadTimePercentile(0.50)));
+      metrics.put("loadTime.p95", gauge(s -> s.getLoadTimePercentile(0.95)));
+      metrics.put("loadTime.p99", gauge(s -> s.getLoadTimePercentile(0.99)));
+      metrics.put("loadTime.max", gauge(CacheStats::getMaxLoadTime));
+
+      return Collections.unmodifiableMap(metrics);
+   }
+
+   /**
+    * Creates a gauge that reads one value from the latest stats.
+    */
+   private <V> Gauge<V> gauge(Function<CacheStats, V> value)
+   {
+      return () -> value.apply(stats.getValue());
+   }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.codahale;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.homeadvisor.robusto.cache.BoundedCommandCache;
+import com.homeadvisor.robusto.cache.BoundedCommandCacheConfig;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for {@link CodahaleCacheMetrics}.
+ */
+public class CodahaleCacheMetricsTest
+{
+   @Test
+   public void testGauges()
+   {
+      BoundedCommandCache<String, String, String> cache = new BoundedCommandCache<>("metrics", new BoundedCommandCacheConfig(0, 2));
+
+      cache.putCache("a", "1", 20);
+      cache.putCache("b", "2", 40);
+      cache.putCache("c", "3");
+
+      assertNotNull(cache.getCache("c"));
+      assertNull(cache.getCache("d"));
+
+      MetricRegistry registry = new MetricRegistry();
+      registry.register(MetricRegistry.name("caches", cache.getName()), new CodahaleCacheMetrics(cache));
+
+      Map<String, Gauge> gauges = registry.getGauges();
+
+      assertEquals(15, gauges.size());
+      assertEquals(1L, gauges.get("caches.metrics.hits").getValue());
+      assertEquals(1L, gauges.get("caches.metrics.misses").getValue());
+      assertEquals(0L, gauges.get("caches.metrics.negativeHits").getValue());
+      assertEquals(0L, gauges.get("caches.metrics.staleHits").getValue());
+      assertEquals(0.5, (Double)gauges.get("caches.metrics.hitRate").getValue(), 0.001);
+      assertEquals(1L, gauges.get("caches.metrics.evictions").getValue());
+      assertEquals(2L, gauges.get("caches.metrics.size").getValue());
+      assertEquals(-1L, gauges.get("caches.metrics.weight").getValue());
+      assertEquals(2L, gauges.get("caches.metrics.loads").getValue());
+      assertEquals(30.0, (Double)gauges.get("caches.metrics.loadTime.mean").getValue(), 0.001);
+      assertEquals(40L, gauges.get("caches.metrics.loadTime.max").getValue());
+   }
+}
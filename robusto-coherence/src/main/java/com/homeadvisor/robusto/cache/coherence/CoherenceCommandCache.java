@@ -15,14 +15,31 @@
  */
 package com.homeadvisor.robusto.cache.coherence;
 
+import com.homeadvisor.robusto.cache.CacheInvalidationSource;
 import com.homeadvisor.robusto.cache.CommandCache;
 import com.homeadvisor.robusto.cache.CommandCacheConfig;
 import com.tangosol.net.CacheFactory;
 import com.tangosol.net.NamedCache;
+import com.tangosol.net.cache.NearCache;
+import com.tangosol.util.Filter;
+import com.tangosol.util.InvocableMap;
+import com.tangosol.util.MapEvent;
+import com.tangosol.util.MultiplexingMapListener;
+import com.tangosol.util.extractor.IdentityExtractor;
+import com.tangosol.util.filter.PresentFilter;
+import com.tangosol.util.processor.ConditionalProcessor;
+import com.tangosol.util.processor.ExtractorProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Extension of {@link CommandCache} that uses Oracle Coherence as the
@@ -32,7 +49,7 @@ import java.util.Optional;
  * <em>Important!</em> This, by default, disables cache puts because we assume
  * the remote service cache
  */
-public class CoherenceCommandCache<K,F,T> extends CommandCache<K,F,T>
+public class CoherenceCommandCache<K,F,T> extends CommandCache<K,F,T> implements CacheInvalidationSource<K>
 {
    private final static Logger LOG = LoggerFactory.getLogger(CoherenceCommandCache.class);
 
@@ -41,6 +58,14 @@ public class CoherenceCommandCache<K,F,T> extends CommandCache<K,F,T>
     */
    private final static int MAX_DUMP_SIZE = 500;
 
+   /**
+    * Returns the value of an entry only if it is present. Built entirely from
+    * processors that ship with Coherence, so nothing needs to be deployed to
+    * the cache servers.
+    */
+   private final static InvocableMap.EntryProcessor GET_IF_PRESENT =
+         new ConditionalProcessor(PresentFilter.INSTANCE, new ExtractorProcessor(IdentityExtractor.INSTANCE));
+
    /**
     * Underlying coherence cache handle.
     */
@@ -61,9 +86,34 @@ public class CoherenceCommandCache<K,F,T> extends CommandCache<K,F,T>
    @Override
    protected Optional<F> doGetCache(K key)
    {
-      if(cache.containsKey(key))
+      //
+      // Near caches can answer from their local front map without going to
+      // the cluster at all. The front map is read once, since it can change
+      // under us; a cached null cannot be told apart from a miss that way,
+      // so it is left to the cluster.
+      //
+
+      if(cache instanceof NearCache)
       {
-         return Optional.ofNullable((F)cache.get(key));
+         Object value = ((NearCache)cache).getFrontMap().get(key);
+
+         if(value != null)
+         {
+            return Optional.of((F)value);
+         }
+      }
+
+      //
+      // Otherwise make one trip to the member that owns the key. The result
+      // only contains the key if the entry is present, which is how a miss
+      // is told apart from a cached null.
+      //
+
+      Map result = cache.invokeAll(Collections.singleton(key), GET_IF_PRESENT);
+
+      if(result.containsKey(key))
+      {
+         return Optional.ofNullable((F)result.get(key));
       }
       return null;
    }
@@ -83,6 +133,95 @@ public class CoherenceCommandCache<K,F,T> extends CommandCache<K,F,T>
       }
    }
 
+   @Override
+   protected Map<K,Optional<F>> doGetAllCache(Collection<K> keys)
+   {
+      Map<K,Optional<F>> results = new LinkedHashMap<>();
+      List<K> remaining = new ArrayList<>(keys);
+
+      if(cache instanceof NearCache)
+      {
+         Map frontMap = ((NearCache)cache).getFrontMap();
+
+         remaining.removeIf(key ->
+         {
+            Object value = frontMap.get(key);
+
+            if(value != null)
+            {
+               results.put(key, Optional.of((F)value));
+               return true;
+            }
+            return false;
+         });
+      }
+
+      //
+      // A single getAll fetches the rest in parallel from the members that
+      // own them, and only returns the keys that are present
+      //
+
+      if(!remaining.isEmpty())
+      {
+         Map<K,F> values = cache.getAll(remaining);
+
+         values.forEach((key, value) -> results.put(key, Optional.ofNullable(value)));
+      }
+
+      return results;
+   }
+
+   @Override
+   protected boolean doPutAllCache(Map<K,F> values)
+   {
+      try
+      {
+         cache.putAll(values);
+         return true;
+      }
+      catch (Exception e)
+      {
+         LOG.warn("Failed to cache {} keys in cache {}", values.size(), getName(), e);
+         return false;
+      }
+   }
+
+   /**
+    * Registers a lite map listener on the underlying cache, so the listener is
+    * told about changes from any cluster member without the values being sent
+    * along with the events.
+    */
+   @Override
+   public void addInvalidationListener(Consumer<K> listener)
+   {
+      cache.addMapListener(new MultiplexingMapListener()
+      {
+         @Override
+         protected void onMapEvent(MapEvent event)
+         {
+            listener.accept((K)event.getKey());
+         }
+      }, (Filter)null, true);
+   }
+
+   /**
+    * Asks the cluster for the size of the cache, which is a remote call.
+    * Evictions happen on the cache servers, so they are not counted here.
+    */
+   @Override
+   protected long doGetSize()
+   {
+      try
+      {
+         return cache.size();
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to get size of cache {}", getName(), e);
+         return -1;
+      }
+   }
+
    @Override
    public void emptyCache()
    {
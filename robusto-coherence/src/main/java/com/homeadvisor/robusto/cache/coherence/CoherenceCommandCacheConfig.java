@@ -65,6 +65,7 @@ public class CoherenceCommandCacheConfig extends CommandCacheConfig
       if(configMap.containsKey(CONFIG_CACHE_NAME))
       {
          CoherenceCommandCacheConfig newConfig = new CoherenceCommandCacheConfig(configMap.get(CONFIG_CACHE_NAME).toString());
+         newConfig.applyMap(configMap);
          newConfig.setPutEnabled(putEnabled);
          return newConfig;
       }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.coherence;
+
+import com.homeadvisor.robusto.cache.CommandCacheConfig;
+import com.homeadvisor.robusto.cache.NearCommandCache;
+import com.homeadvisor.robusto.cache.NearCommandCacheConfig;
+import com.tangosol.net.CacheFactory;
+import com.tangosol.net.NamedCache;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for {@link CoherenceCommandCache}, run against a single storage
+ * enabled Coherence member inside the test JVM.
+ */
+public class CoherenceCommandCacheTest
+{
+   @BeforeClass
+   public static void startMember()
+   {
+      //
+      // Keep the member private to this JVM
+      //
+
+      System.setProperty("tangosol.coherence.cluster", "robusto-test");
+      System.setProperty("tangosol.coherence.localhost", "127.0.0.1");
+      System.setProperty("tangosol.coherence.ttl", "0");
+      System.setProperty("tangosol.coherence.distributed.localstorage", "true");
+      System.setProperty("tangosol.coherence.log.level", "1");
+   }
+
+   @AfterClass
+   public static void stopMember()
+   {
+      CacheFactory.shutdown();
+   }
+
+   /**
+    * Tests that a miss, a cached null, and a cached value are all told apart
+    * by a single read.
+    */
+   @Test
+   public void testGetDistinguishesMissFromCachedNull()
+   {
+      NamedCache namedCache = CacheFactory.getCache("robusto-test");
+      namedCache.put("null", null);
+      namedCache.put("value", "cached");
+
+      CoherenceCommandCache<Object, Object, Object> cache =
+            new CoherenceCommandCache<>(namedCache, new CommandCacheConfig());
+
+      assertNull(cache.doGetCache("missing"));
+      assertEquals(Optional.empty(), cache.doGetCache("null"));
+      assertEquals(Optional.of("cached"), cache.doGetCache("value"));
+   }
+
+   /**
+    * Tests that a bulk get returns only the keys that are present.
+    */
+   @Test
+   public void testGetAll()
+   {
+      NamedCache namedCache = CacheFactory.getCache("robusto-bulk-test");
+      namedCache.put("a", "A");
+      namedCache.put("b", "B");
+
+      CoherenceCommandCache<Object, Object, Object> cache =
+            new CoherenceCommandCache<>(namedCache, new CommandCacheConfig());
+
+      Map<Object, Optional<Object>> results = cache.getAll(Arrays.asList("a", "missing", "b"));
+
+      assertEquals(2, results.size());
+      assertEquals(Optional.of("A"), results.get("a"));
+      assertEquals(Optional.of("B"), results.get("b"));
+   }
+
+   /**
+    * Tests that a near cache in front of Coherence drops its local copy when
+    * the entry is changed through Coherence directly.
+    */
+   @Test
+   public void testNearCacheInvalidatedByRemoteUpdate() throws Exception
+   {
+      NamedCache namedCache = CacheFactory.getCache("robusto-near-test");
+      namedCache.put("key", "first");
+
+      NearCommandCache<Object, Object, Object> cache = new NearCommandCache<>(
+            "near",
+            new NearCommandCacheConfig(),
+            new CoherenceCommandCache<>(namedCache, new CommandCacheConfig()));
+
+      assertEquals("first", cache.getCache("key").get());
+      assertEquals("first", cache.getCache("key").get());
+      assertEquals(1, cache.getRemoteHitCount());
+      assertEquals(1, cache.getLocalHitCount());
+
+      namedCache.put("key", "second");
+
+      //
+      // Events are delivered asynchronously
+      //
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while(!"second".equals(cache.getCache("key").get()) && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertEquals("second", cache.getCache("key").get());
+      assertEquals(2, cache.getRemoteHitCount());
+   }
+}
@@ -75,7 +75,9 @@ public abstract class AbstractApiClient
     * Returns a {@link CommandCache}, creating and adding it to the cache map
     * the first time the cache is requested. This will delegate to
     * {@link #createCache(String)} to lazily init the cache the first time
-    * it is needed.
+    * it is needed. Caches with a {@link CommandCacheConfig#getSnapshotFile()
+    * snapshot file} are loaded from their last snapshot when created, so they
+    * start warm.
     * @param name Cache name
     */
    protected <K,F,T> CommandCache<K,F,T> getCache(String name)
@@ -98,6 +100,7 @@ public abstract class AbstractApiClient
             {
                LOG.info("Attempting to create cache {} from config {}", name, config);
                cacheMap.put(name, createCacheFromConfig(name, type, config));
+               restoreSnapshot(cacheMap.get(name));
                return cacheMap.get(name);
             }
          }
@@ -121,11 +124,29 @@ public abstract class AbstractApiClient
          {
             cacheMap.get(name).getConfig().setEnabled(getConfiguration().isCacheEnabled(name));
          }
+
+         restoreSnapshot(cacheMap.get(name));
       }
 
       return cacheMap.get(name);
    }
 
+   /**
+    * Loads the last snapshot of a newly created cache, if it has snapshots
+    * configured, and starts taking new ones.
+    * @param cache Newly created cache, may be null.
+    */
+   private void restoreSnapshot(CommandCache cache)
+   {
+      if(cache != null && cache.getConfig().isSnapshotting())
+      {
+         int restored = cache.restoreSnapshot();
+         LOG.info("Restored {} entries into cache {} from snapshot {}", restored, cache.getName(), cache.getConfig().getSnapshotFile());
+
+         cache.scheduleSnapshots();
+      }
+   }
+
    /**
     * Returns null, indicating no caching will be performed. Clients should
     * override this method to get cache behavior specific to their needs.
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of in-flight executions of a command group, adjusting the
+ * limit at runtime from observed round trip times instead of relying on a
+ * fixed thread pool size. This follows the TCP Vegas approach: the lowest
+ * recent RTT is taken as the no-load latency, and the difference from it
+ * estimates how many requests are queued. When few are queued the limit is
+ * raised, when too many are queued it is lowered, and timeouts or rejections
+ * cut it multiplicatively. Requests over the limit are rejected right away.
+ * <br/><br/>
+ * A limiter should be shared by all commands in a command group, see
+ * {@link ClientConfiguration#getConcurrencyLimiter(String)} and
+ * {@link ApiCommand.Builder#withConcurrencyLimiter(AdaptiveConcurrencyLimiter)}.
+ * The Hystrix thread pool (or bulkhead) must be at least as large as the
+ * maximum limit, otherwise Hystrix will reject requests first.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+   private final int minLimit;
+
+   private final int maxLimit;
+
+   private final double backoffRatio;
+
+   private final int probeInterval;
+
+   private volatile double limit;
+
+   private final AtomicInteger inFlight = new AtomicInteger();
+
+   //
+   // Guarded by this
+   //
+
+   private long noLoadRttNanos = Long.MAX_VALUE;
+
+   private int samplesSinceProbe = 0;
+
+   //
+   // Metrics
+   //
+
+   private final AtomicLong accepted = new AtomicLong();
+
+   private final AtomicLong rejected = new AtomicLong();
+
+   /**
+    * Initialize a new AdaptiveConcurrencyLimiter from a Builder.
+    * @param builder Builder
+    */
+   public AdaptiveConcurrencyLimiter(Builder builder)
+   {
+      this.minLimit      = builder.minLimit;
+      this.maxLimit      = builder.maxLimit;
+      this.backoffRatio  = builder.backoffRatio;
+      this.probeInterval = builder.probeInterval;
+      this.limit         = builder.initialLimit;
+   }
+
+   /**
+    * Try to start an execution.
+    * @return Permit that must be completed exactly once when the execution
+    * finishes, or null if the limit has been reached.
+    */
+   public Permit tryAcquire()
+   {
+      while(true)
+      {
+         int current = inFlight.get();
+
+         if(current >= getLimit())
+         {
+            rejected.incrementAndGet();
+            return null;
+         }
+
+         if(inFlight.compareAndSet(current, current + 1))
+         {
+            accepted.incrementAndGet();
+            return new Permit(current + 1);
+         }
+      }
+   }
+
+   private synchronized void onSample(long rttNanos, int inFlightAtStart, boolean dropped)
+   {
+      if(dropped)
+      {
+         limit = Math.max(minLimit, limit * backoffRatio);
+         return;
+      }
+
+      //
+      // Periodically forget the no-load RTT so that it can follow the
+      // backend if it gets permanently slower.
+      //
+
+      if(++samplesSinceProbe >= probeInterval)
+      {
+         samplesSinceProbe = 0;
+         noLoadRttNanos = rttNanos;
+      }
+      else
+      {
+         noLoadRttNanos = Math.min(noLoadRttNanos, rttNanos);
+      }
+
+      //
+      // Do not grow the limit when it is not what holds us back.
+      //
+
+      double currentLimit = limit;
+
+      if(inFlightAtStart * 2 < currentLimit)
+      {
+         return;
+      }
+
+      double log = Math.max(1, Math.log10(currentLimit));
+      double queueSize = currentLimit * (1 - (double) noLoadRttNanos / Math.max(1, rttNanos));
+
+      if(queueSize <= 3 * log)
+      {
+         limit = Math.min(maxLimit, currentLimit + log);
+      }
+      else if(queueSize > 6 * log)
+      {
+         limit = Math.max(minLimit, currentLimit - log);
+      }
+   }
+
+   /**
+    * @return Current number of executions allowed in flight.
+    */
+   public int getLimit()
+   {
+      return (int) limit;
+   }
+
+   /**
+    * @return Current number of executions in flight.
+    */
+   public int getInFlight()
+   {
+      return inFlight.get();
+   }
+
+   /**
+    * @return Number of executions allowed to start.
+    */
+   public long getAcceptedCount()
+   {
+      return accepted.get();
+   }
+
+   /**
+    * @return Number of executions rejected because the limit was reached.
+    */
+   public long getRejectedCount()
+   {
+      return rejected.get();
+   }
+
+   /**
+    * Return a new {@link Builder} for constructing a new AdaptiveConcurrencyLimiter.
+    * @return Builder
+    */
+   public static Builder builder()
+   {
+      return new Builder();
+   }
+
+   /**
+    * Handle for a single execution holding a slot in the limiter.
+    */
+   public class Permit
+   {
+      private final long startNanos = System.nanoTime();
+
+      private final int inFlightAtStart;
+
+      private final AtomicBoolean completed = new AtomicBoolean();
+
+      private Permit(int inFlightAtStart)
+      {
+         this.inFlightAtStart = inFlightAtStart;
+      }
+
+      /**
+       * The execution succeeded, so its RTT is used to adjust the limit.
+       */
+      public void onSuccess()
+      {
+         complete(false, true);
+      }
+
+      /**
+       * The execution timed out or was rejected, a sign of overload that
+       * cuts the limit.
+       */
+      public void onDropped()
+      {
+         complete(true, true);
+      }
+
+      /**
+       * The execution ended in a way that says nothing about load, such as
+       * a bad request or being cancelled.
+       */
+      public void onIgnore()
+      {
+         complete(false, false);
+      }
+
+      private void complete(boolean dropped, boolean sample)
+      {
+         if(completed.compareAndSet(false, true))
+         {
+            inFlight.decrementAndGet();
+
+            if(sample)
+            {
+               onSample(System.nanoTime() - startNanos, inFlightAtStart, dropped);
+            }
+         }
+      }
+   }
+
+   /**
+    * Cause of the rejection when an execution is over the limit. Rejections
+    * are never retried, since retrying would add load just as the limiter is
+    * shedding it.
+    */
+   public static class LimitExceededException extends RejectedExecutionException
+   {
+      public LimitExceededException(String msg)
+      {
+         super(msg);
+      }
+   }
+
+   /**
+    * Builder class for fluently creating new {@link AdaptiveConcurrencyLimiter} objects.
+    */
+   public static class Builder
+   {
+      protected int initialLimit = 20;
+
+      protected int minLimit = 1;
+
+      protected int maxLimit = 200;
+
+      protected double backoffRatio = 0.9;
+
+      protected int probeInterval = 1000;
+
+      /**
+       * <i>Optional.</i> Limit to start with. Default is 20.
+       * @param initialLimit
+       * @return Builder
+       */
+      public Builder withInitialLimit(int initialLimit)
+      {
+         this.initialLimit = initialLimit;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Lowest the limit can go. Default is 1.
+       * @param minLimit
+       * @return Builder
+       */
+      public Builder withMinLimit(int minLimit)
+      {
+         this.minLimit = minLimit;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Highest the limit can go. Default is 200.
+       * @param maxLimit
+       * @return Builder
+       */
+      public Builder withMaxLimit(int maxLimit)
+      {
+         this.maxLimit = maxLimit;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Factor the limit is multiplied by on a timeout or
+       * rejection. Default is 0.9.
+       * @param backoffRatio
+       * @return Builder
+       */
+      public Builder withBackoffRatio(double backoffRatio)
+      {
+         this.backoffRatio = backoffRatio;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Number of samples after which the no-load RTT is
+       * measured again. Default is 1000.
+       * @param probeInterval
+       * @return Builder
+       */
+      public Builder withProbeInterval(int probeInterval)
+      {
+         this.probeInterval = probeInterval;
+         return this;
+      }
+
+      /**
+       * Create a new AdaptiveConcurrencyLimiter from this builder.
+       * @return New AdaptiveConcurrencyLimiter
+       * @throws IllegalArgumentException If any settings are out of range.
+       */
+      public AdaptiveConcurrencyLimiter build()
+      {
+         if(minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+         {
+            throw new IllegalArgumentException("Limits must satisfy 0 < min <= initial <= max");
+         }
+
+         if(backoffRatio <= 0 || backoffRatio >= 1)
+         {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+         }
+
+         return new AdaptiveConcurrencyLimiter(this);
+      }
+   }
+}
@@ -17,6 +17,8 @@ package com.homeadvisor.robusto;
 
 import com.homeadvisor.robusto.cache.CommandCache;
 import com.netflix.hystrix.*;
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
 import com.netflix.hystrix.strategy.concurrency.HystrixRequestContext;
 import com.netflix.hystrix.strategy.concurrency.HystrixRequestVariable;
 import org.slf4j.Logger;
@@ -24,15 +26,27 @@ import org.slf4j.LoggerFactory;
 import org.springframework.retry.RetryCallback;
 import org.springframework.retry.RetryContext;
 import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
 import org.springframework.retry.backoff.BackOffPolicy;
 import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.backoff.FixedBackOffPolicy;
+import org.springframework.retry.backoff.UniformRandomBackOffPolicy;
 import org.springframework.retry.policy.SimpleRetryPolicy;
 import org.springframework.retry.support.RetryTemplate;
+import rx.Observable;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.*;
 
 /**
@@ -163,17 +177,110 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
     */
    private final Function<Supplier<T>, T> retryInterceptor;
 
+   /**
+    * When true, the command cache lookup is performed on the calling thread
+    * before the command is handed to Hystrix. Only cache misses are executed
+    * inside the Hystrix thread pool.
+    */
+   private final boolean callerThreadCacheLookup;
+
+   /**
+    * Set once the calling thread has already looked up the cache key and
+    * missed, so the first attempt inside {@link #run()} does not repeat the
+    * lookup.
+    */
+   private volatile boolean callerThreadCacheMiss = false;
+
+   /**
+    * When true, each attempt is its own Hystrix execution and backoff delays
+    * are scheduled on a shared timer rather than sleeping inside the Hystrix
+    * thread. See {@link Builder#withNonBlockingRetries(boolean)}.
+    */
+   private final boolean nonBlockingRetries;
+
+   /**
+    * Zero based attempt number of this command. Only ever non-zero for the
+    * commands created internally for each non-blocking retry.
+    */
+   private final int attempt;
+
+   /**
+    * True for commands that refresh a stale cache entry in the background.
+    * These skip the cache lookup and always call the remote service.
+    */
+   private final boolean refresh;
+
+   /**
+    * Builder this command came from, kept so that non-blocking retries can
+    * create a fresh command for each attempt.
+    */
+   private final Builder<T> builder;
+
+   /**
+    * Retry listeners to notify when retries are not driven by the
+    * {@link RetryTemplate}.
+    */
+   private final List<RetryListener> retryListeners;
+
+   /**
+    * Where the command body runs, see {@link Builder#withExecutionStrategy(ExecutionStrategy)}.
+    */
+   private final ExecutionStrategy executionStrategy;
+
+   /**
+    * Optional policy for hedging slow remote calls, see {@link Builder#withHedgePolicy(HedgePolicy)}.
+    */
+   private final HedgePolicy hedgePolicy;
+
+   /**
+    * Optional limiter on in-flight executions, see {@link Builder#withConcurrencyLimiter(AdaptiveConcurrencyLimiter)}.
+    */
+   private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+   /**
+    * Deadline derived from the Hystrix timeout, started when the command is
+    * submitted.
+    */
+   private volatile Deadline deadline = Deadline.none();
+
+   /**
+    * Set once an attempt of this command gets as far as the remote call, so
+    * that only those executions are sampled by the concurrency limiter.
+    */
+   private volatile boolean remoteCalled = false;
+
    /**
     * Initialize a new ApiCommand from a Builder. The builder will handle
     * validation of parameters.
     * @param builder Builder
     */
    public ApiCommand(Builder<T> builder)
+   {
+      this(builder, 0);
+   }
+
+   /**
+    * Initialize a new ApiCommand for the given attempt number.
+    * @param builder Builder
+    * @param attempt Zero based attempt number.
+    */
+   private ApiCommand(Builder<T> builder, int attempt)
+   {
+      this(builder, attempt, false);
+   }
+
+   /**
+    * Initialize a new ApiCommand for the given attempt number.
+    * @param builder Builder
+    * @param attempt Zero based attempt number.
+    * @param refresh True if the command refreshes a stale cache entry.
+    */
+   private ApiCommand(Builder<T> builder, int attempt, boolean refresh)
    {
       super(Setter
             .withGroupKey(HystrixCommandGroupKey.Factory.asKey(builder.commandGroup))
             .andCommandKey(HystrixCommandKey.Factory.asKey(builder.commandGroup))
-            .andCommandPropertiesDefaults(builder.hystrixCommandProperties)
+            .andCommandPropertiesDefaults(builder.executionStrategy.commandProperties(builder.hystrixCommandProperties))
             .andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey(builder.commandGroup))
             .andThreadPoolPropertiesDefaults(builder.hystrixThreadProperties)
       );
@@ -185,6 +292,14 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
       this.cacheKey               = builder.cacheKey;
       this.cacheInterceptor       = builder.cacheInterceptor;
       this.retryInterceptor       = builder.retryInterceptor;
+      this.callerThreadCacheLookup = builder.callerThreadCacheLookup;
+      this.nonBlockingRetries     = builder.nonBlockingRetries;
+      this.attempt                = attempt;
+      this.refresh                = refresh;
+      this.builder                = builder;
+      this.executionStrategy      = builder.executionStrategy;
+      this.hedgePolicy            = builder.hedgePolicy;
+      this.concurrencyLimiter     = builder.concurrencyLimiter;
 
       //
       // Setup the fields that satisfy CommandContext
@@ -195,15 +310,26 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
       this.remoteServiceCallback.setContext(this);
 
       //
-      // Add a Spring retry listener to handle logging of failures and retries
+      // Add a Spring retry listener to handle logging of failures and retries.
+      // Commands for later non-blocking attempts share the template, so they
+      // must not register yet another one.
       //
 
-      this.retryTemplate.registerListener(new ApiCommandLogger(this));
+      ApiCommandLogger logger = new ApiCommandLogger(this);
+
+      if(attempt == 0 && !refresh)
+      {
+         this.retryTemplate.registerListener(logger);
+      }
+
+      this.retryListeners = new ArrayList<>(builder.retryListeners);
+      this.retryListeners.add(logger);
    }
 
    /**
     * This is the core of calling API services. The provided RemoteServiceCallback
-    * is invoked inside a spring retry container. If a {@link CommandCache} has been
+    * is invoked inside a spring retry container, unless non-blocking retries are
+    * enabled in which case a single attempt is made. If a {@link CommandCache} has been
     * provided, this first attempts to lookup the values
     * @return Result of invoking {@link UriProvider#execute(RemoteServiceCallback)}.
     * @throws Exception
@@ -212,94 +338,469 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
    protected T run() throws Exception
    {
       hystrixContext = HystrixRequestContext.initializeContext();
+      Deadline previousDeadline = Deadline.attach(deadline);
 
       try
       {
-         return retryTemplate.execute(
-               context ->
-               {
-                  Optional<T> cacheResult = null;
+         //
+         // With non-blocking retries each attempt is its own Hystrix
+         // execution, so only a single attempt is made here.
+         //
 
-                  //
-                  // Attempt cache lookup if applicable, and return the result
-                  //
+         if(nonBlockingRetries)
+         {
+            return executeAttempt(attempt);
+         }
 
-                  if(shouldUseCache())
-                  {
-                     LOG.debug("Attempting lookup of key {} from command cache", cacheKey.toString());
+         return retryTemplate.execute(this::executeAttemptWithinDeadline);
+      }
+      finally
+      {
+         Deadline.detach(previousDeadline);
+         hystrixContext.shutdown();
+      }
+   }
 
-                     if(cacheInterceptor != null)
-                     {
-                        cacheResult = cacheInterceptor.apply(() -> commandCache.getCache(cacheKey));
-                     }
-                     else
-                     {
-                        cacheResult = commandCache.getCache(cacheKey);
-                     }
+   /**
+    * Performs a single attempt of the command inside the retry template. If
+    * the attempt fails and the time left before the deadline is less than the
+    * next backoff plus what the attempt took, there is no point in retrying
+    * since Hystrix would time the command out anyway, so the retry context is
+    * marked exhausted.
+    * @param context Spring retry context.
+    * @return Result of the attempt.
+    */
+   private T executeAttemptWithinDeadline(RetryContext context)
+   {
+      long start = System.currentTimeMillis();
 
-                     if(cacheResult != null)
-                     {
-                        //
-                        // Ready to return cached result
-                        //
+      try
+      {
+         return executeAttempt(context.getRetryCount());
+      }
+      catch(RuntimeException e)
+      {
+         long attemptMillis = System.currentTimeMillis() - start;
+         long backOffMillis = estimateBackOffMillis(context.getRetryCount());
 
-                        LOG.debug("Command cache hit, returning result from cache [isPresent = {}]", cacheResult.isPresent());
+         if(deadline.getRemainingMillis() < backOffMillis + attemptMillis)
+         {
+            LOG.debug("Not retrying command {}, {} ms left is less than the {} ms backoff plus the {} ms the last attempt took",
+                  commandName, deadline.getRemainingMillis(), backOffMillis, attemptMillis);
+            context.setExhaustedOnly();
+         }
 
-                        return cacheResult.get();
-                     }
-                     else
+         throw e;
+      }
+   }
+
+   /**
+    * Estimates how long the backoff policy will sleep before the next attempt.
+    * Only the backoff policies that ship with Spring retry are understood, and
+    * for the random ones the shortest possible sleep is used; anything else
+    * is assumed not to sleep.
+    * @param retryCount Number of attempts that have already failed, not
+    *                   counting the one that just did.
+    * @return Expected backoff in millis.
+    */
+   private long estimateBackOffMillis(int retryCount)
+   {
+      BackOffPolicy backOffPolicy = builder.backoffPolicy;
+
+      if(backOffPolicy instanceof ExponentialBackOffPolicy)
+      {
+         ExponentialBackOffPolicy exponential = (ExponentialBackOffPolicy) backOffPolicy;
+         double interval = exponential.getInitialInterval() * Math.pow(exponential.getMultiplier(), retryCount);
+
+         return (long) Math.min(interval, exponential.getMaxInterval());
+      }
+      else if(backOffPolicy instanceof FixedBackOffPolicy)
+      {
+         return ((FixedBackOffPolicy) backOffPolicy).getBackOffPeriod();
+      }
+      else if(backOffPolicy instanceof UniformRandomBackOffPolicy)
+      {
+         return ((UniformRandomBackOffPolicy) backOffPolicy).getMinBackOffPeriod();
+      }
+
+      return 0;
+   }
+
+   /**
+    * Performs a single attempt of the command. If a {@link CommandCache} has
+    * been provided this first attempts to lookup the value, and otherwise calls
+    * the remote service.
+    * @param retryCount Number of attempts that have already failed.
+    * @return Cached value or result of the remote call.
+    */
+   private T executeAttempt(int retryCount)
+   {
+      Optional<T> cacheResult = null;
+
+      //
+      // Attempt cache lookup if applicable, and return the result.
+      // If the calling thread already missed on the first attempt
+      // there is no point in asking the cache again right away.
+      //
+
+      boolean alreadyMissed = callerThreadCacheMiss && retryCount == 0;
+
+      if(shouldUseCache() && !alreadyMissed && !refresh)
+      {
+         cacheResult = lookupCache();
+
+         if(cacheResult != null)
+         {
+            //
+            // Ready to return cached result
+            //
+
+            LOG.debug("Command cache hit, returning result from cache [isPresent = {}]", cacheResult.isPresent());
+
+            return cacheResult.orElse(null);
+         }
+
+         cacheResult = serveStaleWhileRevalidating();
+
+         if(cacheResult != null)
+         {
+            return cacheResult.orElse(null);
+         }
+
+         LOG.debug("Command cache miss, will call remote service");
+      }
+
+      //
+      // Command caching is either disabled or there was a miss
+      // so we have to invoke the remote call. With single flight
+      // enabled, only one command per cache key makes the call and
+      // any others that miss at the same time share its result.
+      //
+
+      if(shouldUseSingleFlight() && !refresh)
+      {
+         return (T) commandCache.getSingleFlight().execute(cacheKey, (Supplier<T>) () -> executeRemoteAndCache(retryCount));
+      }
+
+      return executeRemoteAndCache(retryCount);
+   }
+
+   /**
+    * Invokes the remote call through the {@link UriProvider} and puts the
+    * result into the command cache if applicable. A successful first attempt
+    * is added to the retry budget, if there is one.
+    * @param retryCount Number of attempts that have already failed.
+    * @return Result of the remote call.
+    */
+   private T executeRemoteAndCache(int retryCount)
+   {
+      T result = null;
+      long startTime = System.currentTimeMillis();
+
+      remoteCalled = true;
+
+      if(retryInterceptor != null)
+      {
+         result = retryInterceptor.apply(this::invokeUriProvider);
+      }
+      else
+      {
+         result = invokeUriProvider();
+      }
+
+      if(builder.retryBudget != null && retryCount == 0)
+      {
+         builder.retryBudget.recordSuccess();
+      }
+
+      //
+      // Put the result in the cache if applicable. This is wrapped
+      // in its own try/catch because failure to put into a cache
+      // should not cause overall command failures.
+      //
+
+      try
+      {
+         if(shouldUseCache())
+         {
+            LOG.debug("Putting result into command cache for key {}", cacheKey.toString());
+
+            commandCache.putCache(cacheKey, result, System.currentTimeMillis() - startTime);
+         }
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to put result into cache, command will still return normally", e);
+      }
+
+      //
+      // Now we can return the remote call result
+      //
+
+      return result;
+   }
+
+   /**
+    * Invokes the {@link UriProvider}, through the hedge policy if one was
+    * provided.
+    * @return Result of the remote call.
+    */
+   private T invokeUriProvider()
+   {
+      if(hedgePolicy != null)
+      {
+         return hedgePolicy.execute(uriProvider, remoteServiceCallback);
+      }
+
+      return uriProvider.execute(remoteServiceCallback);
+   }
+
+   /**
+    * Overridden to serve command cache hits on the calling thread when
+    * {@link Builder#withCallerThreadCacheLookup(boolean)} is enabled. A hit
+    * returns immediately without queueing on the Hystrix thread pool, and only
+    * misses are handed off to Hystrix for isolated execution. Since
+    * {@link #execute()}, {@link #queue()} and {@link #observe()} all delegate
+    * here, every execution style benefits.
+    * <br/><br/>
+    * Note that hits served this way bypass Hystrix entirely, so they will not
+    * show up in Hystrix metrics or the request log.
+    * <br/><br/>
+    * This is also where {@link Builder#withNonBlockingRetries(boolean) non-blocking
+    * retries} are wired in around the Hystrix execution, and where the
+    * {@link ExecutionStrategy} moves the execution onto its executor.
+    * @return Observable that emits the cached value, or the Hystrix execution.
+    */
+   @Override
+   public Observable<T> toObservable()
+   {
+      if(callerThreadCacheLookup && shouldUseCache() && attempt == 0 && !refresh)
+      {
+         try
+         {
+            Optional<T> cacheResult = lookupCache();
+
+            if(cacheResult == null)
+            {
+               cacheResult = serveStaleWhileRevalidating();
+            }
+
+            if(cacheResult != null)
+            {
+               LOG.debug("Command cache hit on calling thread, skipping Hystrix execution [isPresent = {}]", cacheResult.isPresent());
+
+               return Observable.just(cacheResult.orElse(null));
+            }
+
+            callerThreadCacheMiss = cacheResult == null;
+         }
+         catch(Exception e)
+         {
+            LOG.warn("Failed to lookup key {} from command cache on calling thread, will execute command", cacheKey, e);
+         }
+      }
+
+      if(getProperties().executionTimeoutEnabled().get())
+      {
+         deadline = Deadline.after(getProperties().executionTimeoutInMilliseconds().get());
+      }
+
+      //
+      // Later attempts of non-blocking retries are driven by the first
+      // attempt's command, so only that one wraps the execution.
+      //
+
+      if(nonBlockingRetries && attempt == 0)
+      {
+         Observable<T> firstAttempt = limitConcurrency(executionStrategy.subscribe(super.toObservable()));
+
+         return serveStaleOnError(new ObservableRetry<T>(commandName, builder.retryPolicy, builder.backoffPolicy, retryListeners)
+               .execute(attempt -> attempt == 0 ? firstAttempt : new ApiCommand<>(builder, attempt, refresh).toObservable()));
+      }
+
+      Observable<T> execution = limitConcurrency(executionStrategy.subscribe(super.toObservable()));
+
+      return attempt == 0 ? serveStaleOnError(execution) : execution;
+   }
+
+   /**
+    * Looks up a stale value for the cache key, if the command cache serves
+    * stale entries while they are revalidated, and starts a background
+    * refresh of the entry when one is found.
+    * @return Stale value, or null if there is none or stale-while-revalidate
+    * is not enabled.
+    */
+   private Optional<T> serveStaleWhileRevalidating()
+   {
+      if(refresh || !commandCache.getConfig().isStaleWhileRevalidate())
+      {
+         return null;
+      }
+
+      Optional<T> stale = commandCache.getStaleCache(cacheKey, false);
+
+      if(stale == null || !stale.isPresent())
+      {
+         return null;
+      }
+
+      LOG.debug("Command cache entry for key {} is stale, serving it while refreshing in the background", cacheKey);
+
+      refreshInBackground();
+
+      return stale;
+   }
+
+   /**
+    * Refreshes the cache entry by executing a copy of this command that skips
+    * the cache lookup, on the cache's {@link CommandCache#getRefreshExecutor()
+    * refresh executor}. The copy goes through Hystrix like any other command,
+    * so it is isolated and timed out the same way. Refreshes of the same key
+    * are coalesced through the cache's {@link com.homeadvisor.robusto.cache.SingleFlight},
+    * so a hot key only causes one remote call at a time, and refreshes are
+    * skipped when the refresh executor is full.
+    */
+   private void refreshInBackground()
+   {
+      commandCache.getSingleFlight().executeAsync(cacheKey, () ->
+      {
+         try
+         {
+            return CompletableFuture
+                  .supplyAsync(() -> new ApiCommand<>(builder, 0, true).execute(), commandCache.getRefreshExecutor())
+                  .whenComplete((result, t) ->
+                  {
+                     if(t != null)
                      {
-                        LOG.debug("Command cache miss, will call remote service");
+                        LOG.warn("Background refresh of key {} for command {} failed: {}", cacheKey, commandName, unwrapException(t));
                      }
-                  }
+                  });
+         }
+         catch(RejectedExecutionException e)
+         {
+            LOG.debug("Refresh executor for command {} is full, skipping refresh of key {}", commandName, cacheKey);
+
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+         }
+      });
+   }
+
+   /**
+    * Serves the last cached value for the cache key when the execution fails,
+    * if the command cache is configured to do so. This covers failures after
+    * all retries are exhausted as well as Hystrix rejections, timeouts and an
+    * open circuit. Bad requests are never answered from the cache.
+    * @param execution Execution of the command.
+    * @return Execution that falls back to the cached value.
+    */
+   private Observable<T> serveStaleOnError(Observable<T> execution)
+   {
+      if(refresh || !shouldUseCache() || !commandCache.getConfig().isServeStaleOnError())
+      {
+         return execution;
+      }
+
+      return execution.onErrorResumeNext(t ->
+      {
+         if(!(t instanceof HystrixBadRequestException))
+         {
+            Optional<T> stale = commandCache.getStaleCache(cacheKey, true);
+
+            if(stale != null && stale.isPresent())
+            {
+               LOG.warn("Command {} failed, serving stale value for key {} from command cache: {}", commandName, cacheKey, unwrapException(t));
+
+               return Observable.just(stale.get());
+            }
+         }
+
+         return Observable.error(t);
+      });
+   }
+
+   /**
+    * Holds a slot in the concurrency limiter, if one was provided, for the
+    * duration of the execution. Executions over the limit are rejected before
+    * reaching Hystrix, the same way a full thread pool would reject them,
+    * and are not retried.
+    * @param execution Hystrix execution.
+    * @return Limited execution.
+    */
+   private Observable<T> limitConcurrency(Observable<T> execution)
+   {
+      if(concurrencyLimiter == null)
+      {
+         return execution;
+      }
+
+      return Observable.defer(() ->
+      {
+         AdaptiveConcurrencyLimiter.Permit permit = concurrencyLimiter.tryAcquire();
 
-                  //
-                  // Command caching is either disabled or there was a miss
-                  // so we have to invoke the remote call.
-                  //
+         if(permit == null)
+         {
+            return Observable.error(new HystrixRuntimeException(
+                  HystrixRuntimeException.FailureType.REJECTED_SEMAPHORE_EXECUTION,
+                  ApiCommand.class,
+                  commandName + " rejected by concurrency limiter",
+                  new AdaptiveConcurrencyLimiter.LimitExceededException("Concurrency limit of " + concurrencyLimiter.getLimit() + " reached"),
+                  null));
+         }
 
-                  T result = null;
+         //
+         // Only executions that made the remote call say anything about its
+         // latency. Cache hits would otherwise drag the no-load RTT towards
+         // zero, making every real call look queued.
+         //
 
-                  if(retryInterceptor != null)
+         return execution
+               .doOnCompleted(() ->
+               {
+                  if(remoteCalled)
                   {
-                     result = retryInterceptor.apply(() -> uriProvider.execute(remoteServiceCallback));
+                     permit.onSuccess();
                   }
                   else
                   {
-                     result = uriProvider.execute(remoteServiceCallback);
+                     permit.onIgnore();
                   }
-
-                  //
-                  // Put the result in the cache if applicable. This is wrapped
-                  // in its own try/catch because failure to put into a cache
-                  // should not cause overall command failures.
-                  //
-
-                  try
+               })
+               .doOnError(t ->
+               {
+                  if(isOverloaded(t))
                   {
-                     if(shouldUseCache())
-                     {
-                        LOG.debug("Putting result into command cache for key {}", cacheKey.toString());
-
-                        commandCache.putCache(cacheKey, result);
-                     }
+                     permit.onDropped();
                   }
-                  catch(Exception e)
+                  else
                   {
-                     LOG.warn("Failed to put result into cache, command will still return normally", e);
+                     permit.onIgnore();
                   }
+               })
+               .doOnUnsubscribe(permit::onIgnore);
+      });
+   }
 
-                  //
-                  // Now we can return the remote call result
-                  //
-
-                  return result;
-               });
-      }
-      finally
+   /**
+    * @return True if the failure means the backend or this client is overloaded.
+    */
+   private static boolean isOverloaded(Throwable t)
+   {
+      if(t instanceof HystrixRuntimeException)
       {
-         hystrixContext.shutdown();
+         switch(((HystrixRuntimeException) t).getFailureType())
+         {
+            case TIMEOUT:
+            case REJECTED_THREAD_EXECUTION:
+            case REJECTED_SEMAPHORE_EXECUTION:
+               return true;
+            default:
+               return false;
+         }
       }
+
+      return false;
    }
 
    /**
@@ -311,6 +812,18 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
       return commandName;
    }
 
+   /**
+    * Get the deadline of the current execution, which starts when the command
+    * is submitted and lasts for the Hystrix execution timeout. With
+    * non-blocking retries every attempt gets its own deadline.
+    * @return Deadline, or {@link Deadline#none()} if timeouts are disabled.
+    */
+   @Override
+   public Deadline getDeadline()
+   {
+      return deadline;
+   }
+
    /**
     * Looks up the value associated with the given key from the attributes.
     * @param key Key to lookup in command data map.
@@ -361,7 +874,7 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
     * @param throwable
     * @return
     */
-   private String unwrapException(Throwable throwable) {
+   private static String unwrapException(Throwable throwable) {
       Throwable cause;
       while ((cause = throwable.getCause()) != null) {
          throwable = cause;
@@ -369,6 +882,33 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
       return throwable.getMessage();
    }
 
+   /**
+    * Looks up the cache key from the command cache, passing through the cache
+    * interceptor if one was provided.
+    * @return Result of {@link CommandCache#getCache(Object)}, which is null on
+    * a cache miss.
+    */
+   private Optional<T> lookupCache()
+   {
+      LOG.debug("Attempting lookup of key {} from command cache", cacheKey.toString());
+
+      //
+      // Hits close to going stale kick off a refresh ahead of time, so hot
+      // keys are reloaded before they ever miss
+      //
+
+      Runnable onRefreshDue = commandCache.getConfig().isRefreshAhead() ? this::refreshInBackground : null;
+
+      if(cacheInterceptor != null)
+      {
+         return cacheInterceptor.apply(() -> commandCache.getCache(cacheKey, onRefreshDue));
+      }
+      else
+      {
+         return commandCache.getCache(cacheKey, onRefreshDue);
+      }
+   }
+
    /**
     * Helper method to determine if command caching should be used before and
     * after the command is executed.
@@ -379,6 +919,100 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
       return commandCache != null && cacheKey != null && commandCache.getConfig().isEnabled();
    }
 
+   /**
+    * Helper method to determine if concurrent misses on the cache key should
+    * be coalesced into a single remote call.
+    * @return True if the command cache has single flight enabled.
+    */
+   private boolean shouldUseSingleFlight()
+   {
+      return shouldUseCache() && commandCache.getConfig().isSingleFlightEnabled();
+   }
+
+   /**
+    * Looks up many keys at once, and only calls the remote service for the
+    * ones that are missing from the cache. Hits come from a single bulk
+    * {@link CommandCache#getAll(Collection)}, the missing keys are then
+    * fetched with one command built by the provided function, and its results
+    * are put back with a single {@link CommandCache#putAll(Map)}. Missing keys
+    * the command does not return a value for are put as null, so they are
+    * remembered as known to be absent if the cache does negative caching.
+    * <br/><br/>
+    * The command should not be given a command cache of its own, since its
+    * results are cached per key here.
+    * @param commandCache Cache to look up and store values in, may be null.
+    * @param keys Keys to look up.
+    * @param commandForMissingKeys Builds the command that fetches the values
+    *                              for the keys it is given from the remote
+    *                              service.
+    * @return Values by key, in the same order as the keys. Keys without a
+    * value are left out.
+    */
+   public static <K,V> Map<K,V> executeForKeys(CommandCache<K,?,V> commandCache, Collection<K> keys, Function<Set<K>, ApiCommand<Map<K,V>>> commandForMissingKeys)
+   {
+      Map<K,Optional<V>> cached = new HashMap<>();
+
+      if(commandCache != null && commandCache.getConfig().isEnabled())
+      {
+         cached = commandCache.getAll(keys);
+      }
+
+      Set<K> missingKeys = new LinkedHashSet<>(keys);
+      missingKeys.removeAll(cached.keySet());
+
+      Map<K,V> fetched = new HashMap<>();
+
+      if(!missingKeys.isEmpty())
+      {
+         LOG.debug("Command cache missed {} of {} keys, will call remote service", missingKeys.size(), keys.size());
+
+         Map<K,V> result = commandForMissingKeys.apply(missingKeys).execute();
+
+         if(result != null)
+         {
+            fetched = result;
+         }
+
+         //
+         // Failure to put into a cache should not cause overall command
+         // failures, same as for a single key
+         //
+
+         if(commandCache != null && commandCache.getConfig().isEnabled())
+         {
+            Map<K,Object> toCache = new LinkedHashMap<>();
+
+            for(K key : missingKeys)
+            {
+               toCache.put(key, fetched.get(key));
+            }
+
+            try
+            {
+               ((CommandCache<K,Object,V>)commandCache).putAll(toCache);
+            }
+            catch(Exception e)
+            {
+               LOG.warn("Failed to put results into cache, command will still return normally", e);
+            }
+         }
+      }
+
+      Map<K,V> results = new LinkedHashMap<>();
+
+      for(K key : keys)
+      {
+         V value = cached.containsKey(key) ? cached.get(key).orElse(null) : fetched.get(key);
+
+         if(value != null)
+         {
+            results.put(key, value);
+         }
+      }
+
+      return results;
+   }
+
    /**
     * Return a new {@link Builder} for constructing a new ApiCommand.
     * @return Builder
@@ -452,6 +1086,32 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
 
       protected Function<Supplier<T>, T> retryInterceptor = null;
 
+      protected boolean callerThreadCacheLookup = false;
+
+      protected boolean nonBlockingRetries = false;
+
+      protected List<RetryListener> retryListeners = new ArrayList<>();
+
+      protected RetryPolicy retryPolicy = null;
+
+      protected ExecutionStrategy executionStrategy = ExecutionStrategy.threadPool();
+
+      protected HedgePolicy hedgePolicy = null;
+
+      protected RetryBudget retryBudget = null;
+
+      protected AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+
+      //
+      // Async counterparts, only used by buildAsync()
+      //
+
+      protected AsyncUriProvider<T> asyncUriProvider = null;
+
+      protected AsyncRemoteServiceCallback<T> asyncRemoteServiceCallback = null;
+
+      protected Function<Supplier<CompletableFuture<T>>, CompletableFuture<T>> asyncRetryInterceptor = null;
+
       public Builder()
       {
 
@@ -484,6 +1144,30 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          return this;
       }
 
+      /**
+       * <b>Required for {@link #buildAsync()}.</b> The {@link AsyncUriProvider}
+       * that will handle invoking the remote request without blocking.
+       * @param asyncUriProvider
+       * @return Builder
+       */
+      public Builder<T> withAsyncUriProvider(AsyncUriProvider<T> asyncUriProvider)
+      {
+         this.asyncUriProvider = asyncUriProvider;
+         return this;
+      }
+
+      /**
+       * <b>Required for {@link #buildAsync()}.</b> The callback to execute
+       * when the AsyncApiCommand is run.
+       * @param asyncRemoteServiceCallback
+       * @return Builder
+       */
+      public Builder<T> withAsyncRemoteServiceCallback(AsyncRemoteServiceCallback<T> asyncRemoteServiceCallback)
+      {
+         this.asyncRemoteServiceCallback = asyncRemoteServiceCallback;
+         return this;
+      }
+
       /**
        * <b>Optional.</b> Set of Hystrix Command Properties to use for the ApiCommand.
        * If not specified, normal Hystrix defaults will be used.
@@ -508,6 +1192,45 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          return this;
       }
 
+      /**
+       * <i>Optional.</i> Defines where the command runs and what limits its
+       * concurrency. Default is {@link ExecutionStrategy#threadPool()}, which
+       * uses the Hystrix thread pool sized by the thread properties. Use
+       * {@link ExecutionStrategy#virtualThreads(int)} or
+       * {@link ExecutionStrategy#bulkhead(java.util.concurrent.Executor, int)}
+       * to run blocking calls at a much higher concurrency, limited by a
+       * semaphore instead of the pool size. Ignored by {@link #buildAsync()},
+       * which always uses a semaphore.
+       * <br/><br/>
+       * Hystrix caches command properties by command group, so commands in the
+       * same group should use the same strategy.
+       * @param executionStrategy
+       * @return Builder
+       */
+      public Builder<T> withExecutionStrategy(ExecutionStrategy executionStrategy)
+      {
+         this.executionStrategy = executionStrategy != null ? executionStrategy : ExecutionStrategy.threadPool();
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Sends a second request, preferably to a different
+       * instance, when the first is slower than a percentile of recent
+       * latency, and uses whichever answers first. The policy should be shared
+       * by all commands in the group since it tracks their latency and hedging
+       * budget. Default is no hedging. Not used by {@link #buildAsync()}.
+       * <br/><br/>
+       * Only use this for idempotent calls, and note that the callback may be
+       * invoked concurrently on different threads.
+       * @param hedgePolicy
+       * @return Builder
+       */
+      public Builder<T> withHedgePolicy(HedgePolicy hedgePolicy)
+      {
+         this.hedgePolicy = hedgePolicy;
+         return this;
+      }
+
       /**
        * <i>Optional.</i> Defines a command group name for Hystrix thread pool
        * and metrics purposes. Default is just the name "ApiCommand".
@@ -559,6 +1282,7 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          if(listener != null)
          {
             retryTemplate.registerListener(listener);
+            retryListeners.add(listener);
          }
 
          return this;
@@ -579,6 +1303,80 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          return this;
       }
 
+      /**
+       * <i>Optional.</i> When true, the command cache lookup happens on the
+       * calling thread before the command is submitted to Hystrix, and cache
+       * hits are returned without ever touching the Hystrix thread pool. Only
+       * misses pay for thread pool isolation. Default is false, meaning the
+       * lookup happens inside the Hystrix thread. Has no effect unless a
+       * command cache is set via {@link #withCommandCache(CommandCache, Object)}.
+       * <br/><br/>
+       * Make sure your cache lookups are fast and cannot block for long, since
+       * they will no longer be protected by the Hystrix timeout.
+       * @param callerThreadCacheLookup Whether to lookup the cache on the calling thread.
+       * @return Builder
+       */
+      public Builder<T> withCallerThreadCacheLookup(boolean callerThreadCacheLookup)
+      {
+         this.callerThreadCacheLookup = callerThreadCacheLookup;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> When true, failed attempts are not retried inside the
+       * Hystrix thread. Instead each attempt runs as its own Hystrix execution,
+       * and the delay from the backoff policy is scheduled on a shared timer so
+       * that no thread is parked between attempts. Default is false, which
+       * retries (and sleeps) inside a single Hystrix execution.
+       * <br/><br/>
+       * Note that in this mode the Hystrix timeout applies to each attempt
+       * rather than to all attempts combined, and that every attempt counts
+       * towards Hystrix metrics and the circuit breaker. Retries stop as soon
+       * as the circuit is open. Any registered {@link RetryListener}s are
+       * notified with a null {@link RetryCallback}.
+       * @param nonBlockingRetries Whether to retry without blocking Hystrix threads.
+       * @return Builder
+       */
+      public Builder<T> withNonBlockingRetries(boolean nonBlockingRetries)
+      {
+         this.nonBlockingRetries = nonBlockingRetries;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Limits in-flight executions with a limit that adapts
+       * to the observed latency of the command group, rejecting executions
+       * over the limit right away. The limiter should be shared by all
+       * commands in the group, for example via
+       * {@link ClientConfiguration#getConcurrencyLimiter(String)}. Make sure
+       * the thread pool or bulkhead can hold the limiter's maximum. Default is
+       * no limiter.
+       * @param concurrencyLimiter
+       * @return Builder
+       */
+      public Builder<T> withConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter)
+      {
+         this.concurrencyLimiter = concurrencyLimiter;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Caps retries at a ratio of recent successful first
+       * attempts, so that retries cannot multiply the load on a struggling
+       * backend. The budget should be shared by all commands in the group,
+       * for example via {@link ClientConfiguration#getRetryBudget(String)}.
+       * Only first attempts that reach the remote call add to the budget, so
+       * cache hits do not inflate it. Default is no budget, meaning every retryable failure is retried up
+       * to the number of retries.
+       * @param retryBudget
+       * @return Builder
+       */
+      public Builder<T> withRetryBudget(RetryBudget retryBudget)
+      {
+         this.retryBudget = retryBudget;
+         return this;
+      }
+
       /**
        * <i>Optional.</i> Can be called multiple times to define which
        * exception hierachies should be retried and not. This is passed
@@ -721,6 +1519,21 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          return this;
       }
 
+      /**
+       * <i>Optional.</i> Async counterpart of {@link #withRetryInterceptor(Function)}
+       * used by {@link AsyncApiCommand}. The interceptor is passed a Supplier that
+       * starts the remote call and must return the resulting future, for example
+       * with timing added via {@link CompletableFuture#whenComplete}.
+       * @param asyncRetryInterceptor A Function that will be passed the AsyncUriProvider
+       *                              invocation that needs executing.
+       * @return Builder
+       */
+      public Builder<T> withAsyncRetryInterceptor(Function<Supplier<CompletableFuture<T>>, CompletableFuture<T>> asyncRetryInterceptor)
+      {
+         this.asyncRetryInterceptor = asyncRetryInterceptor;
+         return this;
+      }
+
       //
       // Create a new ApiCommand
       //
@@ -744,6 +1557,47 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
             throw new IllegalArgumentException("RemoteServiceCallback cannot be null");
          }
 
+         prepare();
+
+         return new ApiCommand<>(this);
+      }
+
+      /**
+       * Create a new {@link AsyncApiCommand} from this builder. This requires
+       * an {@link AsyncUriProvider} and {@link AsyncRemoteServiceCallback}
+       * instead of their blocking counterparts, and otherwise uses the same
+       * Hystrix, retry and command cache settings as {@link #build()}.
+       * @return New AsyncApiCommand
+       * @throws IllegalArgumentException If any required fields are null.
+       */
+      public AsyncApiCommand<T> buildAsync()
+      {
+         if(this.asyncUriProvider == null)
+         {
+            throw new IllegalArgumentException("AsyncUriProvider cannot be null");
+         }
+
+         if(this.asyncRemoteServiceCallback == null)
+         {
+            throw new IllegalArgumentException("AsyncRemoteServiceCallback cannot be null");
+         }
+
+         if(this.retryInterceptor != null && this.asyncRetryInterceptor == null)
+         {
+            LOG.warn("Retry interceptor is ignored by async commands, please use withAsyncRetryInterceptor() instead");
+         }
+
+         prepare();
+
+         return new AsyncApiCommand<>(this);
+      }
+
+      /**
+       * Validates and initializes the settings shared by both blocking and
+       * async commands.
+       */
+      private void prepare()
+      {
          if(this.numberOfRetries <= 0)
          {
             LOG.warn("Number of retries cannot be less than or equal to zero! Please don't do that. Setting to 1 for now, but please fix this.");
@@ -763,9 +1617,11 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          {
             ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
             backOffPolicy.setInitialInterval(500L);
-            retryTemplate.setBackOffPolicy(backOffPolicy);
+            backoffPolicy = backOffPolicy;
          }
 
+         retryTemplate.setBackOffPolicy(backoffPolicy);
+
          //
          // Setup standard failure exception classes (all Throwables are retried
          // except for NonRetryableApiCommandException).
@@ -778,22 +1634,26 @@ public class ApiCommand<T> extends HystrixCommand<T> implements CommandContext
          // Set remaining fields as needed
          //
 
-         SimpleRetryPolicy srp = new SimpleRetryPolicy(numberOfRetries, exceptionMap, true);
-         retryTemplate.setRetryPolicy(srp);
+         retryPolicy = new SimpleRetryPolicy(numberOfRetries, exceptionMap, true);
 
-         return new ApiCommand<>(this);
+         if(retryBudget != null)
+         {
+            retryPolicy = retryBudget.wrap(retryPolicy);
+         }
+
+         retryTemplate.setRetryPolicy(retryPolicy);
       }
    }
 
    /**
     * Implementation of Spring {@link RetryListener} that logs failures
-    * for ApiCommands.
+    * for ApiCommands. Also used by {@link AsyncApiCommand}.
     */
-   private class ApiCommandLogger implements RetryListener
+   static class ApiCommandLogger implements RetryListener
    {
-      private final ApiCommand apiCommand;
+      private final HystrixInvokableInfo<?> apiCommand;
 
-      public ApiCommandLogger(ApiCommand apiCommand)
+      public ApiCommandLogger(HystrixInvokableInfo<?> apiCommand)
       {
          this.apiCommand = apiCommand;
       }
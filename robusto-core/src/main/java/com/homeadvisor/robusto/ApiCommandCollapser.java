@@ -0,0 +1,427 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import com.homeadvisor.robusto.cache.CommandCache;
+import com.netflix.hystrix.HystrixCollapser;
+import com.netflix.hystrix.HystrixCollapserKey;
+import com.netflix.hystrix.HystrixCollapserProperties;
+import com.netflix.hystrix.HystrixCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Gathers individual requests for single keys that arrive within a short
+ * window into one batched {@link ApiCommand}, then splits the batch response
+ * back out to each request. This is built on {@link HystrixCollapser} with
+ * global scope, so requests from any thread can share a batch. Collapsers
+ * should be created once, using the provided {@link ApiCommandCollapser.Builder},
+ * and reused for every request:
+ *
+ * <pre>
+ *
+ * ApiCommandCollapser<Long, CustomDTO> collapser = ApiCommandCollapser.<Long, CustomDTO>builder()
+ *    .withCommandBuilder(() -> ApiCommand.<Map<Long, CustomDTO>>builder()
+ *       .withUriProvider(new ConstantUriProvider<>("http://somehost.com/"))
+ *       .withCommandGroup("GetCustomDTOs"))
+ *    .withBatchRemoteServiceCallback(CustomBatchCallback::new)
+ *    .build();
+ *
+ * CustomDTO = collapser.execute(123L);
+ * Future<CustomDTO> = collapser.queue(123L);
+ * Observable<CustomDTO> = collapser.observe(123L);
+ * </pre>
+ *
+ * When a command cache is provided, each key is looked up on the calling
+ * thread first, and only misses join a batch. Results from each batch are
+ * put into the cache individually.
+ */
+public class ApiCommandCollapser<K, T>
+{
+   private static final Logger LOG = LoggerFactory.getLogger(ApiCommandCollapser.class);
+
+   private final HystrixCollapser.Setter setter;
+
+   private final Supplier<ApiCommand.Builder<Map<K, T>>> commandBuilder;
+
+   private final Supplier<BatchRemoteServiceCallback<K, T>> batchCallback;
+
+   private final CommandCache commandCache;
+
+   private final Function<K, Object> cacheKeyFunction;
+
+   /**
+    * Initialize a new ApiCommandCollapser from a Builder. The builder will
+    * handle validation of parameters.
+    * @param builder Builder
+    */
+   public ApiCommandCollapser(Builder<K, T> builder)
+   {
+      this.commandBuilder   = builder.commandBuilder;
+      this.batchCallback    = builder.batchCallback;
+      this.commandCache     = builder.commandCache;
+      this.cacheKeyFunction = builder.cacheKeyFunction;
+
+      this.setter = HystrixCollapser.Setter
+            .withCollapserKey(HystrixCollapserKey.Factory.asKey(builder.collapserName))
+            .andScope(HystrixCollapser.Scope.GLOBAL)
+            .andCollapserPropertiesDefaults(builder.collapserProperties);
+   }
+
+   /**
+    * Get the result for the given key, blocking until its batch completes.
+    * @param key Key to get the result for.
+    * @return Result for the key, which may be null if the batch response did
+    * not include it.
+    */
+   public T execute(K key)
+   {
+      return toObservable(key).toBlocking().single();
+   }
+
+   /**
+    * Queue the given key for the next batch.
+    * @param key Key to get the result for.
+    * @return Future result for the key.
+    */
+   public Future<T> queue(K key)
+   {
+      return toObservable(key).toBlocking().toFuture();
+   }
+
+   /**
+    * Queue the given key for the next batch, eagerly.
+    * @param key Key to get the result for.
+    * @return Hot Observable result for the key.
+    */
+   public Observable<T> observe(K key)
+   {
+      Observable<T> result = toObservable(key).cache();
+      result.subscribe(value -> {}, t -> {});
+      return result;
+   }
+
+   /**
+    * Lazily queue the given key for a batch once subscribed.
+    * @param key Key to get the result for.
+    * @return Cold Observable result for the key.
+    */
+   public Observable<T> toObservable(K key)
+   {
+      return Observable.defer(() ->
+      {
+         if(shouldUseCache())
+         {
+            try
+            {
+               Optional<T> cacheResult = commandCache.getCache(cacheKeyFunction.apply(key));
+
+               if(cacheResult != null)
+               {
+                  LOG.debug("Command cache hit, returning result from cache [isPresent = {}]", cacheResult.isPresent());
+
+                  return Observable.just(cacheResult.orElse(null));
+               }
+            }
+            catch(Exception e)
+            {
+               LOG.warn("Failed to lookup key {} from command cache, will add to batch", key, e);
+            }
+         }
+
+         return new KeyCollapser(key).toObservable();
+      });
+   }
+
+   private boolean shouldUseCache()
+   {
+      return commandCache != null && commandCache.getConfig().isEnabled();
+   }
+
+   /**
+    * Return a new {@link Builder} for constructing a new ApiCommandCollapser.
+    * @return Builder
+    */
+   public static <K, T> Builder<K, T> builder()
+   {
+      return new Builder<K, T>();
+   }
+
+   /**
+    * Single use Hystrix collapser for one key. Hystrix groups these by
+    * collapser key and hands each batch to {@link #createCommand(Collection)}.
+    */
+   private class KeyCollapser extends HystrixCollapser<Map<K, T>, T, K>
+   {
+      private final K key;
+
+      KeyCollapser(K key)
+      {
+         super(setter);
+         this.key = key;
+      }
+
+      @Override
+      public K getRequestArgument()
+      {
+         return key;
+      }
+
+      @Override
+      protected HystrixCommand<Map<K, T>> createCommand(Collection<CollapsedRequest<T, K>> requests)
+      {
+         Set<K> keys = new LinkedHashSet<>();
+
+         for(CollapsedRequest<T, K> request : requests)
+         {
+            keys.add(request.getArgument());
+         }
+
+         LOG.debug("Collapsed {} requests into batch of {} keys", requests.size(), keys.size());
+
+         return commandBuilder.get()
+               .withRemoteServiceCallback(new BatchCallbackAdapter(batchCallback.get(), keys))
+               .build();
+      }
+
+      @Override
+      protected void mapResponseToRequests(Map<K, T> batchResponse, Collection<CollapsedRequest<T, K>> requests)
+      {
+         for(CollapsedRequest<T, K> request : requests)
+         {
+            K key = request.getArgument();
+            T value = batchResponse != null ? batchResponse.get(key) : null;
+
+            request.setResponse(value);
+
+            //
+            // Failure to put into a cache should not cause overall command failures.
+            //
+
+            try
+            {
+               if(shouldUseCache() && batchResponse != null && batchResponse.containsKey(key))
+               {
+                  commandCache.putCache(cacheKeyFunction.apply(key), value);
+               }
+            }
+            catch(Exception e)
+            {
+               LOG.warn("Failed to put result for key {} into cache", key, e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Presents a batch callback and its keys as the single
+    * {@link RemoteServiceCallback} of the batch command.
+    */
+   private class BatchCallbackAdapter implements RemoteServiceCallback<Map<K, T>>
+   {
+      private final BatchRemoteServiceCallback<K, T> batchCallback;
+
+      private final Collection<K> keys;
+
+      BatchCallbackAdapter(BatchRemoteServiceCallback<K, T> batchCallback, Collection<K> keys)
+      {
+         this.batchCallback = batchCallback;
+         this.keys          = keys;
+      }
+
+      @Override
+      public Map<K, T> run(String url)
+      {
+         return batchCallback.run(url, keys);
+      }
+
+      @Override
+      public void setContext(CommandContext ctx)
+      {
+         batchCallback.setContext(ctx);
+      }
+
+      @Override
+      public CommandContext getContext()
+      {
+         return batchCallback.getContext();
+      }
+   }
+
+   /**
+    * Builder class for fluently creating new {@link ApiCommandCollapser} objects.
+    */
+   public static class Builder<K, T>
+   {
+      protected Supplier<ApiCommand.Builder<Map<K, T>>> commandBuilder = null;
+
+      protected Supplier<BatchRemoteServiceCallback<K, T>> batchCallback = null;
+
+      protected String collapserName = null;
+
+      protected HystrixCollapserProperties.Setter collapserProperties
+            = HystrixCollapserProperties.Setter()
+            .withTimerDelayInMilliseconds(10)
+            .withRequestCacheEnabled(false);
+
+      protected CommandCache<?, ?, ?> commandCache = null;
+
+      protected Function<K, Object> cacheKeyFunction = key -> key;
+
+      public Builder()
+      {
+
+      }
+
+      /**
+       * <b>Required.</b> Supplies a new {@link ApiCommand.Builder} for each
+       * batch, with everything except the remote service callback set (uri
+       * provider, command group, retries, etc). A fresh builder is needed per
+       * batch since builders are not reusable.
+       * @param commandBuilder
+       * @return Builder
+       */
+      public Builder<K, T> withCommandBuilder(Supplier<ApiCommand.Builder<Map<K, T>>> commandBuilder)
+      {
+         this.commandBuilder = commandBuilder;
+         return this;
+      }
+
+      /**
+       * <b>Required.</b> Supplies the callback that makes one remote call for
+       * all keys in a batch. A new callback is needed per batch since each
+       * batch command sets its own context on it, and batches may overlap.
+       * @param batchCallback
+       * @return Builder
+       */
+      public Builder<K, T> withBatchRemoteServiceCallback(Supplier<BatchRemoteServiceCallback<K, T>> batchCallback)
+      {
+         this.batchCallback = batchCallback;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Name of the Hystrix collapser, used for properties
+       * and metrics. Default is the command group of the batch command with
+       * "Collapser" appended.
+       * @param collapserName
+       * @return Builder
+       */
+      public Builder<K, T> withCollapserName(String collapserName)
+      {
+         this.collapserName = collapserName;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> How long to wait for more requests before sending a
+       * batch. Default is 10 ms.
+       * @param timerDelayInMilliseconds
+       * @return Builder
+       */
+      public Builder<K, T> withTimerDelayInMilliseconds(int timerDelayInMilliseconds)
+      {
+         this.collapserProperties.withTimerDelayInMilliseconds(timerDelayInMilliseconds);
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Maximum number of requests in a single batch, after
+       * which a new batch is started. Default is unlimited.
+       * @param maxRequestsInBatch
+       * @return Builder
+       */
+      public Builder<K, T> withMaxRequestsInBatch(int maxRequestsInBatch)
+      {
+         this.collapserProperties.withMaxRequestsInBatch(maxRequestsInBatch);
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Set of Hystrix Collapser Properties, replacing the
+       * timer delay and batch size set on this builder.
+       * @param collapserProperties
+       * @return Builder
+       */
+      public Builder<K, T> withHystrixCollapserProperties(HystrixCollapserProperties.Setter collapserProperties)
+      {
+         this.collapserProperties = collapserProperties;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Set a command cache that individual keys are looked
+       * up in before joining a batch, and that batch results are put into.
+       * The key itself is used as the cache key.
+       * @param commandCache CommandCache to use for lookup and persistence.
+       * @return Builder
+       */
+      public Builder<K, T> withCommandCache(CommandCache<?, ?, ?> commandCache)
+      {
+         return withCommandCache(commandCache, key -> key);
+      }
+
+      /**
+       * <i>Optional.</i> Same as {@link #withCommandCache(CommandCache)},
+       * using the given function to derive the cache key from each key.
+       * @param commandCache CommandCache to use for lookup and persistence.
+       * @param cacheKeyFunction Maps a request key to its cache key.
+       * @return Builder
+       */
+      public Builder<K, T> withCommandCache(CommandCache<?, ?, ?> commandCache, Function<K, Object> cacheKeyFunction)
+      {
+         this.commandCache = commandCache;
+         this.cacheKeyFunction = cacheKeyFunction;
+         return this;
+      }
+
+      /**
+       * Create a new ApiCommandCollapser from this builder.
+       * @return New ApiCommandCollapser
+       * @throws IllegalArgumentException If any required fields are null.
+       */
+      public ApiCommandCollapser<K, T> build()
+      {
+         if(this.commandBuilder == null)
+         {
+            throw new IllegalArgumentException("Command builder cannot be null");
+         }
+
+         if(this.batchCallback == null)
+         {
+            throw new IllegalArgumentException("BatchRemoteServiceCallback cannot be null");
+         }
+
+         if(collapserName == null)
+         {
+            String commandGroup = commandBuilder.get().commandGroup;
+            collapserName = (commandGroup != null ? commandGroup : "ApiCommand") + "Collapser";
+         }
+
+         return new ApiCommandCollapser<>(this);
+      }
+   }
+}
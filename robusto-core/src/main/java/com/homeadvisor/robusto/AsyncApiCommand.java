@@ -0,0 +1,344 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import com.homeadvisor.robusto.cache.CommandCache;
+import com.netflix.hystrix.HystrixCommandGroupKey;
+import com.netflix.hystrix.HystrixCommandKey;
+import com.netflix.hystrix.HystrixObservableCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffPolicy;
+import rx.Observable;
+import rx.subscriptions.Subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking counterpart of {@link ApiCommand}, built using
+ * {@link ApiCommand.Builder#buildAsync()}. The remote call is made through an
+ * {@link AsyncUriProvider} and {@link AsyncRemoteServiceCallback}, and the
+ * command runs as a Hystrix {@link HystrixObservableCommand} with semaphore
+ * isolation, so no thread is held while a remote call is outstanding. This
+ * allows a large number of concurrent calls to be served by a handful of
+ * threads.
+ * <br/><br/>
+ * Retries, command caching (including single flight) and interceptors work the
+ * same as for ApiCommand. Retries are scheduled without blocking, and the
+ * Hystrix timeout applies to all attempts combined. Use
+ * {@link ApiCommand.Builder#withAsyncRetryInterceptor(Function)} in place of
+ * the blocking retry interceptor.
+ * <pre>
+ *
+ * CustomDTO = command.observe().toBlocking().single();
+ * Observable&lt;CustomDTO&gt; = command.toObservable();
+ * </pre>
+ *
+ * Since Hystrix caches command properties by command key, async commands
+ * should use a different command group than any blocking commands, otherwise
+ * they may end up with thread isolation.
+ */
+public class AsyncApiCommand<T> extends HystrixObservableCommand<T> implements CommandContext
+{
+   private static final Logger LOG = LoggerFactory.getLogger(AsyncApiCommand.class);
+
+   /**
+    * Used to find URLs of remote services.
+    */
+   protected final AsyncUriProvider<T> uriProvider;
+
+   /**
+    * Encompasses the command to be executed against a remote service.
+    */
+   protected final AsyncRemoteServiceCallback<T> remoteServiceCallback;
+
+   /**
+    * Optional command cache, see {@link ApiCommand#commandCache}.
+    */
+   protected final CommandCache commandCache;
+
+   /**
+    * Key for the command cache, see {@link ApiCommand#cacheKey}.
+    */
+   protected final Object cacheKey;
+
+   /**
+    * Logical name of this command.
+    */
+   private final String commandName;
+
+   /**
+    * Underlying map of variables from the builder class.
+    */
+   private final ConcurrentHashMap<String, Object> attributes;
+
+   /**
+    * Optional interceptor to fire if we end up looking up in the command
+    * cache.
+    */
+   private final Function<Supplier<Optional<T>>, Optional<T>> cacheInterceptor;
+
+   /**
+    * Optional interceptor for each invocation of the AsyncUriProvider.
+    */
+   private final Function<Supplier<CompletableFuture<T>>, CompletableFuture<T>> retryInterceptor;
+
+   private final RetryPolicy retryPolicy;
+
+   private final BackOffPolicy backOffPolicy;
+
+   private final List<RetryListener> retryListeners;
+
+   private final RetryBudget retryBudget;
+
+   private volatile Deadline deadline = Deadline.none();
+
+   /**
+    * Initialize a new AsyncApiCommand from a Builder. The builder will handle
+    * validation of parameters.
+    * @param builder Builder
+    */
+   public AsyncApiCommand(ApiCommand.Builder<T> builder)
+   {
+      super(Setter
+            .withGroupKey(HystrixCommandGroupKey.Factory.asKey(builder.commandGroup))
+            .andCommandKey(HystrixCommandKey.Factory.asKey(builder.commandGroup))
+            .andCommandPropertiesDefaults(ExecutionStrategy.copyWithSemaphoreIsolation(builder.hystrixCommandProperties, null))
+      );
+
+      this.uriProvider            = builder.asyncUriProvider;
+      this.remoteServiceCallback  = builder.asyncRemoteServiceCallback;
+      this.commandCache           = builder.commandCache;
+      this.cacheKey               = builder.cacheKey;
+      this.cacheInterceptor       = builder.cacheInterceptor;
+      this.retryInterceptor       = builder.asyncRetryInterceptor;
+      this.retryPolicy            = builder.retryPolicy;
+      this.backOffPolicy          = builder.backoffPolicy;
+      this.retryBudget            = builder.retryBudget;
+
+      commandName = builder.commandGroup;
+      attributes = builder.attributes;
+      this.remoteServiceCallback.setContext(this);
+
+      this.retryListeners = new ArrayList<>(builder.retryListeners);
+      this.retryListeners.add(new ApiCommand.ApiCommandLogger(this));
+   }
+
+   /**
+    * Runs the command attempts inside a non-blocking retry loop.
+    * @return Observable result of the first successful attempt.
+    */
+   @Override
+   protected Observable<T> construct()
+   {
+      if(getProperties().executionTimeoutEnabled().get())
+      {
+         deadline = Deadline.after(getProperties().executionTimeoutInMilliseconds().get());
+      }
+
+      return new ObservableRetry<T>(commandName, retryPolicy, backOffPolicy, retryListeners)
+            .execute(this::executeAttempt);
+   }
+
+   /**
+    * Performs a single attempt of the command, looking up the command cache
+    * first if applicable.
+    * @param attempt Number of attempts that have already failed.
+    * @return Observable of the cached value or the remote call.
+    */
+   private Observable<T> executeAttempt(int attempt)
+   {
+      try
+      {
+         if(shouldUseCache())
+         {
+            Optional<T> cacheResult = lookupCache();
+
+            if(cacheResult != null)
+            {
+               LOG.debug("Command cache hit, returning result from cache [isPresent = {}]", cacheResult.isPresent());
+
+               return Observable.just(cacheResult.orElse(null));
+            }
+
+            LOG.debug("Command cache miss, will call remote service");
+         }
+
+         CompletableFuture<T> result = shouldUseSingleFlight()
+               ? commandCache.getSingleFlight().executeAsync(cacheKey, (Supplier<CompletableFuture<T>>) () -> executeRemoteAndCache(attempt))
+               : executeRemoteAndCache(attempt);
+
+         return fromFuture(result);
+      }
+      catch(Exception e)
+      {
+         return Observable.error(e);
+      }
+   }
+
+   /**
+    * Starts the remote call through the {@link AsyncUriProvider} and puts the
+    * result into the command cache, if applicable, once it completes. A
+    * successful first attempt is added to the retry budget, if there is one.
+    * @param attempt Number of attempts that have already failed.
+    * @return Future result of the remote call.
+    */
+   private CompletableFuture<T> executeRemoteAndCache(int attempt)
+   {
+      CompletableFuture<T> result;
+
+      long startTime = System.currentTimeMillis();
+
+      if(retryInterceptor != null)
+      {
+         result = retryInterceptor.apply(() -> uriProvider.executeAsync(remoteServiceCallback));
+      }
+      else
+      {
+         result = uriProvider.executeAsync(remoteServiceCallback);
+      }
+
+      return result.thenApply(value ->
+      {
+         if(retryBudget != null && attempt == 0)
+         {
+            retryBudget.recordSuccess();
+         }
+
+         //
+         // Failure to put into a cache should not cause overall command failures.
+         //
+
+         try
+         {
+            if(shouldUseCache())
+            {
+               LOG.debug("Putting result into command cache for key {}", cacheKey.toString());
+
+               commandCache.putCache(cacheKey, value, System.currentTimeMillis() - startTime);
+            }
+         }
+         catch(Exception e)
+         {
+            LOG.warn("Failed to put result into cache, command will still return normally", e);
+         }
+
+         return value;
+      });
+   }
+
+   /**
+    * Looks up the cache key from the command cache, passing through the cache
+    * interceptor if one was provided.
+    * @return Result of {@link CommandCache#getCache(Object)}, which is null on
+    * a cache miss.
+    */
+   private Optional<T> lookupCache()
+   {
+      LOG.debug("Attempting lookup of key {} from command cache", cacheKey.toString());
+
+      if(cacheInterceptor != null)
+      {
+         return cacheInterceptor.apply(() -> commandCache.getCache(cacheKey));
+      }
+      else
+      {
+         return commandCache.getCache(cacheKey);
+      }
+   }
+
+   private boolean shouldUseCache()
+   {
+      return commandCache != null && cacheKey != null && commandCache.getConfig().isEnabled();
+   }
+
+   private boolean shouldUseSingleFlight()
+   {
+      return shouldUseCache() && commandCache.getConfig().isSingleFlightEnabled();
+   }
+
+   @Override
+   public String getCommandName()
+   {
+      return commandName;
+   }
+
+   @Override
+   public Deadline getDeadline()
+   {
+      return deadline;
+   }
+
+   @Override
+   public Object getCommandAttribute(String key)
+   {
+      return attributes.getOrDefault(key, null);
+   }
+
+   @Override
+   public void setCommandAttribute(String key, Object val)
+   {
+      if(key != null && val != null)
+      {
+         attributes.put(key, val);
+      }
+   }
+
+   @Override
+   public void removeCommandAttribute(String key)
+   {
+      attributes.remove(key);
+   }
+
+   /**
+    * Adapts a CompletableFuture to an Observable. Unsubscribing, for example
+    * when Hystrix times out the command, cancels the future.
+    */
+   private static <T> Observable<T> fromFuture(CompletableFuture<T> future)
+   {
+      return Observable.create(subscriber ->
+      {
+         subscriber.add(Subscriptions.create(() -> future.cancel(true)));
+
+         future.whenComplete((value, t) ->
+         {
+            if(subscriber.isUnsubscribed())
+            {
+               return;
+            }
+
+            if(t != null)
+            {
+               subscriber.onError(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            }
+            else
+            {
+               subscriber.onNext(value);
+               subscriber.onCompleted();
+            }
+         });
+      });
+   }
+}
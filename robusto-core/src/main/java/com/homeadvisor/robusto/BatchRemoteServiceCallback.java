@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Batch counterpart of {@link RemoteServiceCallback} used by
+ * {@link ApiCommandCollapser}. It is passed every key collected in a batch
+ * window and should make a single remote call for all of them, returning the
+ * results by key. Keys missing from the returned map complete with null.
+ */
+public interface BatchRemoteServiceCallback<K, T> extends CommandContextAware
+{
+   Map<K, T> run(String url, Collection<K> keys);
+}
@@ -20,6 +20,7 @@ import com.netflix.hystrix.HystrixThreadPoolProperties;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Encapsulates all the standard config options that make sense for all clients.
@@ -61,8 +62,46 @@ public class ClientConfiguration
     */
    private String cacheConfig = null;
 
+   /**
+    * Defines where commands run and what limits their concurrency (default is
+    * the Hystrix thread pool). See {@link ExecutionStrategy}.
+    */
+   private ExecutionStrategy executionStrategy = ExecutionStrategy.threadPool();
+
+   /**
+    * Defines if retries are limited by a {@link RetryBudget} (default is false).
+    */
+   private boolean retryBudgetEnabled = false;
+
+   /**
+    * Retries allowed per successful first attempt when the retry budget is
+    * enabled (default is 0.2).
+    */
+   private double retryBudgetRatio = RetryBudget.DEFAULT_RATIO;
+
+   /**
+    * Retries per second always allowed when the retry budget is enabled
+    * (default is 5).
+    */
+   private int retryBudgetMinRetriesPerSecond = RetryBudget.DEFAULT_MIN_RETRIES_PER_SECOND;
+
+   /**
+    * Defines if in-flight commands are limited by an {@link AdaptiveConcurrencyLimiter}
+    * (default is false).
+    */
+   private boolean concurrencyLimiterEnabled = false;
+
+   /**
+    * Highest limit the adaptive concurrency limiter can reach (default is 200).
+    */
+   private int concurrencyLimiterMaxLimit = 200;
+
    private Map<String, HystrixCommandProperties.Setter> commandPropertiesMap = new HashMap<>();
 
+   private Map<String, RetryBudget> retryBudgetMap = new ConcurrentHashMap<>();
+
+   private Map<String, AdaptiveConcurrencyLimiter> concurrencyLimiterMap = new ConcurrentHashMap<>();
+
    private Map<String, HystrixThreadPoolProperties.Setter> threadPropertiesMap = new HashMap<>();
 
    //
@@ -194,6 +233,135 @@ public class ClientConfiguration
       this.cacheConfig = cacheConfig;
    }
 
+   public boolean isRetryBudgetEnabled(String name)
+   {
+      return retryBudgetEnabled;
+   }
+
+   public void setRetryBudgetEnabled(boolean retryBudgetEnabled)
+   {
+      this.retryBudgetEnabled = retryBudgetEnabled;
+   }
+
+   public double getRetryBudgetRatio(String name)
+   {
+      return retryBudgetRatio;
+   }
+
+   public void setRetryBudgetRatio(double retryBudgetRatio)
+   {
+      this.retryBudgetRatio = retryBudgetRatio;
+   }
+
+   public int getRetryBudgetMinRetriesPerSecond(String name)
+   {
+      return retryBudgetMinRetriesPerSecond;
+   }
+
+   public void setRetryBudgetMinRetriesPerSecond(int retryBudgetMinRetriesPerSecond)
+   {
+      this.retryBudgetMinRetriesPerSecond = retryBudgetMinRetriesPerSecond;
+   }
+
+   /**
+    * Get the retry budget for the given command name. The same budget is
+    * returned for every call with the same name, so that all commands in the
+    * group share it.
+    * @param name Command name
+    * @return Retry budget for the command, or null if the retry budget is not
+    * enabled for it.
+    */
+   public RetryBudget getRetryBudget(String name)
+   {
+      if(!isRetryBudgetEnabled(name))
+      {
+         return null;
+      }
+
+      return retryBudgetMap.computeIfAbsent(name, this::buildRetryBudget);
+   }
+
+   /**
+    * Extension point for building the retry budget for a command name.
+    * @param name Name of the command group.
+    * @return New retry budget using the configured ratio and minimum retries.
+    */
+   protected RetryBudget buildRetryBudget(String name)
+   {
+      return new RetryBudget(
+            getRetryBudgetRatio(name),
+            getRetryBudgetMinRetriesPerSecond(name),
+            RetryBudget.DEFAULT_WINDOW_SECONDS);
+   }
+
+   public boolean isConcurrencyLimiterEnabled(String name)
+   {
+      return concurrencyLimiterEnabled;
+   }
+
+   public void setConcurrencyLimiterEnabled(boolean concurrencyLimiterEnabled)
+   {
+      this.concurrencyLimiterEnabled = concurrencyLimiterEnabled;
+   }
+
+   public int getConcurrencyLimiterMaxLimit(String name)
+   {
+      return concurrencyLimiterMaxLimit;
+   }
+
+   public void setConcurrencyLimiterMaxLimit(int concurrencyLimiterMaxLimit)
+   {
+      this.concurrencyLimiterMaxLimit = concurrencyLimiterMaxLimit;
+   }
+
+   /**
+    * Get the adaptive concurrency limiter for the given command name. The
+    * same limiter is returned for every call with the same name, so that all
+    * commands in the group share it.
+    * @param name Command name
+    * @return Concurrency limiter for the command, or null if it is not
+    * enabled for it.
+    */
+   public AdaptiveConcurrencyLimiter getConcurrencyLimiter(String name)
+   {
+      if(!isConcurrencyLimiterEnabled(name))
+      {
+         return null;
+      }
+
+      return concurrencyLimiterMap.computeIfAbsent(name, this::buildConcurrencyLimiter);
+   }
+
+   /**
+    * Extension point for building the concurrency limiter for a command name.
+    * @param name Name of the command group.
+    * @return New limiter using the configured maximum limit.
+    */
+   protected AdaptiveConcurrencyLimiter buildConcurrencyLimiter(String name)
+   {
+      int maxLimit = getConcurrencyLimiterMaxLimit(name);
+
+      return AdaptiveConcurrencyLimiter.builder()
+            .withInitialLimit(Math.min(20, maxLimit))
+            .withMaxLimit(maxLimit)
+            .build();
+   }
+
+   /**
+    * Allow execution strategy to vary per command.
+    * @param name Logical command name.
+    * @return Execution strategy for the given command.
+    */
+   public ExecutionStrategy getExecutionStrategy(String name)
+   {
+      return executionStrategy;
+   }
+
+   public void setExecutionStrategy(ExecutionStrategy executionStrategy)
+   {
+      this.executionStrategy = executionStrategy;
+   }
+
    /**
     * Get the hystrix command properties for the given command name. By default
     * every command will get the same default settings, unless extending clients
@@ -50,4 +50,14 @@ public interface CommandContext
     * @param key Key to remove.
     */
    void removeCommandAttribute(String key);
+
+   /**
+    * Get the deadline by which the command must finish, typically derived
+    * from its Hystrix timeout. Remote calls should not wait past it.
+    * @return Command deadline, which is {@link Deadline#none()} by default.
+    */
+   default Deadline getDeadline()
+   {
+      return Deadline.none();
+   }
 }
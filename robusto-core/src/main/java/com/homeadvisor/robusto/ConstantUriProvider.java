@@ -15,12 +15,14 @@
  */
 package com.homeadvisor.robusto;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Implementation of {@link UriProvider} that returns the same URI for every
  * invoccation of a {@link ApiCommand}. Suitable when using virtual IPs or DNS
  * aliases, or when a remote service is always tied to a specific address/IP.
  */
-public class ConstantUriProvider<T> implements UriProvider<T>
+public class ConstantUriProvider<T> implements UriProvider<T>, AsyncUriProvider<T>
 {
    private final String uri;
 
@@ -34,4 +36,10 @@ public class ConstantUriProvider<T> implements UriProvider<T>
    {
       return callback.run(uri);
    }
+
+   @Override
+   public CompletableFuture<T> executeAsync(AsyncRemoteServiceCallback<T> callback)
+   {
+      return callback.runAsync(uri);
+   }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which a command must finish, derived from its Hystrix
+ * execution timeout. Available to callbacks via {@link CommandContext#getDeadline()},
+ * and to code running on the command thread via {@link #current()}, so that
+ * each attempt can shrink its connect and read timeouts to the time that is
+ * actually left rather than using a fixed value.
+ */
+public final class Deadline
+{
+   private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+   private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+   /**
+    * Expiry as {@link System#nanoTime()}, or Long.MAX_VALUE if unbounded.
+    */
+   private final long expiresAtNanos;
+
+   private Deadline(long expiresAtNanos)
+   {
+      this.expiresAtNanos = expiresAtNanos;
+   }
+
+   /**
+    * @param millis Time from now until the deadline.
+    * @return Deadline the given number of milliseconds from now.
+    */
+   public static Deadline after(long millis)
+   {
+      return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+   }
+
+   /**
+    * @return Deadline that never expires.
+    */
+   public static Deadline none()
+   {
+      return NONE;
+   }
+
+   /**
+    * @return Deadline of the command running on this thread, or {@link #none()}.
+    */
+   public static Deadline current()
+   {
+      Deadline deadline = CURRENT.get();
+      return deadline != null ? deadline : NONE;
+   }
+
+   /**
+    * Makes the given deadline current for this thread.
+    * @param deadline Deadline to attach.
+    * @return Previously attached deadline, to pass to {@link #detach(Deadline)}.
+    */
+   static Deadline attach(Deadline deadline)
+   {
+      Deadline previous = CURRENT.get();
+      CURRENT.set(deadline);
+      return previous;
+   }
+
+   /**
+    * Restores the deadline that was current before {@link #attach(Deadline)}.
+    * @param previous Value returned by attach.
+    */
+   static void detach(Deadline previous)
+   {
+      if(previous == null)
+      {
+         CURRENT.remove();
+      }
+      else
+      {
+         CURRENT.set(previous);
+      }
+   }
+
+   /**
+    * @return False if this deadline never expires.
+    */
+   public boolean isBounded()
+   {
+      return expiresAtNanos != Long.MAX_VALUE;
+   }
+
+   /**
+    * @return True if the deadline has passed.
+    */
+   public boolean isExpired()
+   {
+      return getRemainingMillis() <= 0;
+   }
+
+   /**
+    * @return Milliseconds left until the deadline, zero if it has passed, or
+    * Long.MAX_VALUE if unbounded.
+    */
+   public long getRemainingMillis()
+   {
+      if(!isBounded())
+      {
+         return Long.MAX_VALUE;
+      }
+
+      return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+   }
+
+   /**
+    * Shrinks a timeout so that it does not go past this deadline.
+    * @param timeoutMillis Configured timeout, where zero means infinite as
+    *                      with java.net timeouts.
+    * @return The smaller of the timeout and the remaining time, and at least
+    * 1 so the result is never mistaken for an infinite timeout.
+    */
+   public int shrinkTimeout(int timeoutMillis)
+   {
+      if(!isBounded())
+      {
+         return timeoutMillis;
+      }
+
+      long remaining = Math.max(1, getRemainingMillis());
+
+      return (int) (timeoutMillis <= 0 ? Math.min(remaining, Integer.MAX_VALUE) : Math.min(timeoutMillis, remaining));
+   }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.netflix.hystrix.HystrixThreadPoolProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines where the body of an {@link ApiCommand} runs and what limits its
+ * concurrency. There are two flavors:
+ *
+ * <ul>
+ *    <li>{@link #threadPool()}: the default, where Hystrix runs the command on
+ *    its own fixed size thread pool ({@link HystrixThreadPoolProperties}) and
+ *    the pool size is the concurrency limit.</li>
+ *    <li>{@link #bulkhead(Executor, int)}: the command runs on the given
+ *    executor, and a Hystrix semaphore (bulkhead) limits how many can run at
+ *    once. {@link #virtualThreads(int)} uses a virtual thread per command
+ *    when the JVM supports it.</li>
+ * </ul>
+ *
+ * Hystrix timeouts and circuit breaking apply to both. Note that with a
+ * bulkhead a timed out command fails right away, but its thread is not
+ * interrupted, so remote calls should still have their own socket timeouts.
+ */
+public final class ExecutionStrategy
+{
+   private static final Logger LOG = LoggerFactory.getLogger(ExecutionStrategy.class);
+
+   /**
+    * Default number of commands allowed to run concurrently with a bulkhead.
+    */
+   public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1000;
+
+   private static final ExecutionStrategy THREAD_POOL = new ExecutionStrategy(null, 0);
+
+   /**
+    * Executor backing {@link #virtualThreads(int)}, created on first use.
+    */
+   private static volatile Executor virtualThreadExecutor;
+
+   private final Executor executor;
+
+   private final int maxConcurrentRequests;
+
+   private ExecutionStrategy(Executor executor, int maxConcurrentRequests)
+   {
+      this.executor = executor;
+      this.maxConcurrentRequests = maxConcurrentRequests;
+   }
+
+   /**
+    * Run commands on the Hystrix thread pool. This is the default.
+    * @return Thread pool strategy.
+    */
+   public static ExecutionStrategy threadPool()
+   {
+      return THREAD_POOL;
+   }
+
+   /**
+    * Run commands on the given executor, limiting the number of commands that
+    * can run at once. Commands over the limit are rejected immediately, the
+    * same as a full Hystrix thread pool.
+    * @param executor Executor to run command bodies on.
+    * @param maxConcurrentRequests Maximum commands to run concurrently.
+    * @return Bulkhead strategy.
+    */
+   public static ExecutionStrategy bulkhead(Executor executor, int maxConcurrentRequests)
+   {
+      if(executor == null)
+      {
+         throw new IllegalArgumentException("Executor cannot be null");
+      }
+
+      if(maxConcurrentRequests <= 0)
+      {
+         throw new IllegalArgumentException("Max concurrent requests must be greater than zero");
+      }
+
+      return new ExecutionStrategy(executor, maxConcurrentRequests);
+   }
+
+   /**
+    * Run each command on its own virtual thread, limiting the number of
+    * commands that can run at once. Virtual threads need a Java 21 or newer
+    * runtime; on older runtimes this falls back to a shared cached pool of
+    * daemon threads, which still grows with demand up to the limit.
+    * @param maxConcurrentRequests Maximum commands to run concurrently.
+    * @return Bulkhead strategy backed by virtual threads.
+    */
+   public static ExecutionStrategy virtualThreads(int maxConcurrentRequests)
+   {
+      return bulkhead(getVirtualThreadExecutor(), maxConcurrentRequests);
+   }
+
+   /**
+    * @return True if this strategy runs commands on the Hystrix thread pool.
+    */
+   public boolean isThreadPool()
+   {
+      return executor == null;
+   }
+
+   /**
+    * @return Maximum concurrent commands for a bulkhead, or 0 for the thread
+    * pool strategy.
+    */
+   public int getMaxConcurrentRequests()
+   {
+      return maxConcurrentRequests;
+   }
+
+   /**
+    * Apply this strategy to the command properties. The thread pool strategy
+    * returns them unchanged, otherwise a copy is returned that uses semaphore
+    * isolation sized to the bulkhead.
+    * @param properties Hystrix command properties.
+    * @return Properties to create the command with.
+    */
+   HystrixCommandProperties.Setter commandProperties(HystrixCommandProperties.Setter properties)
+   {
+      if(isThreadPool())
+      {
+         return properties;
+      }
+
+      return copyWithSemaphoreIsolation(properties, maxConcurrentRequests);
+   }
+
+   /**
+    * Apply this strategy to a Hystrix execution, moving the subscription
+    * (and therefore the command body) onto the executor.
+    * @param execution Observable from Hystrix.
+    * @return Observable to hand to callers.
+    */
+   <T> Observable<T> subscribe(Observable<T> execution)
+   {
+      if(isThreadPool())
+      {
+         return execution;
+      }
+
+      return execution.subscribeOn(Schedulers.from(executor));
+   }
+
+   /**
+    * Copies the given command properties, forcing semaphore isolation. A copy
+    * is needed because the same properties are often shared with other
+    * commands, for example by {@link ClientConfiguration}.
+    * @param source Properties to copy.
+    * @param maxConcurrentRequests Semaphore size, or null to keep the size from
+    *                              the source, falling back to {@link #DEFAULT_MAX_CONCURRENT_REQUESTS}.
+    * @return Copy of the properties.
+    */
+   static HystrixCommandProperties.Setter copyWithSemaphoreIsolation(
+         HystrixCommandProperties.Setter source, Integer maxConcurrentRequests)
+   {
+      if(maxConcurrentRequests == null)
+      {
+         maxConcurrentRequests = source.getExecutionIsolationSemaphoreMaxConcurrentRequests() != null
+               ? source.getExecutionIsolationSemaphoreMaxConcurrentRequests()
+               : DEFAULT_MAX_CONCURRENT_REQUESTS;
+      }
+
+      HystrixCommandProperties.Setter copy = HystrixCommandProperties.Setter()
+            .withExecutionIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE)
+            .withExecutionIsolationSemaphoreMaxConcurrentRequests(maxConcurrentRequests);
+
+      if(source.getCircuitBreakerEnabled() != null)                     copy.withCircuitBreakerEnabled(source.getCircuitBreakerEnabled());
+      if(source.getCircuitBreakerErrorThresholdPercentage() != null)    copy.withCircuitBreakerErrorThresholdPercentage(source.getCircuitBreakerErrorThresholdPercentage());
+      if(source.getCircuitBreakerForceClosed() != null)                 copy.withCircuitBreakerForceClosed(source.getCircuitBreakerForceClosed());
+      if(source.getCircuitBreakerForceOpen() != null)                   copy.withCircuitBreakerForceOpen(source.getCircuitBreakerForceOpen());
+      if(source.getCircuitBreakerRequestVolumeThreshold() != null)      copy.withCircuitBreakerRequestVolumeThreshold(source.getCircuitBreakerRequestVolumeThreshold());
+      if(source.getCircuitBreakerSleepWindowInMilliseconds() != null)   copy.withCircuitBreakerSleepWindowInMilliseconds(source.getCircuitBreakerSleepWindowInMilliseconds());
+      if(source.getExecutionTimeoutInMilliseconds() != null)            copy.withExecutionTimeoutInMilliseconds(source.getExecutionTimeoutInMilliseconds());
+      if(source.getExecutionTimeoutEnabled() != null)                   copy.withExecutionTimeoutEnabled(source.getExecutionTimeoutEnabled());
+      if(source.getFallbackIsolationSemaphoreMaxConcurrentRequests() != null) copy.withFallbackIsolationSemaphoreMaxConcurrentRequests(source.getFallbackIsolationSemaphoreMaxConcurrentRequests());
+      if(source.getFallbackEnabled() != null)                           copy.withFallbackEnabled(source.getFallbackEnabled());
+      if(source.getMetricsHealthSnapshotIntervalInMilliseconds() != null) copy.withMetricsHealthSnapshotIntervalInMilliseconds(source.getMetricsHealthSnapshotIntervalInMilliseconds());
+      if(source.getMetricsRollingPercentileBucketSize() != null)        copy.withMetricsRollingPercentileBucketSize(source.getMetricsRollingPercentileBucketSize());
+      if(source.getMetricsRollingPercentileEnabled() != null)           copy.withMetricsRollingPercentileEnabled(source.getMetricsRollingPercentileEnabled());
+      if(source.getMetricsRollingPercentileWindowInMilliseconds() != null) copy.withMetricsRollingPercentileWindowInMilliseconds(source.getMetricsRollingPercentileWindowInMilliseconds());
+      if(source.getMetricsRollingPercentileWindowBuckets() != null)     copy.withMetricsRollingPercentileWindowBuckets(source.getMetricsRollingPercentileWindowBuckets());
+      if(source.getMetricsRollingStatisticalWindowInMilliseconds() != null) copy.withMetricsRollingStatisticalWindowInMilliseconds(source.getMetricsRollingStatisticalWindowInMilliseconds());
+      if(source.getMetricsRollingStatisticalWindowBuckets() != null)    copy.withMetricsRollingStatisticalWindowBuckets(source.getMetricsRollingStatisticalWindowBuckets());
+      if(source.getRequestCacheEnabled() != null)                       copy.withRequestCacheEnabled(source.getRequestCacheEnabled());
+      if(source.getRequestLogEnabled() != null)                         copy.withRequestLogEnabled(source.getRequestLogEnabled());
+
+      return copy;
+   }
+
+   /**
+    * Lazily creates the executor used by {@link #virtualThreads(int)}. This
+    * library targets Java 8, so the virtual thread executor is looked up
+    * reflectively.
+    */
+   private static Executor getVirtualThreadExecutor()
+   {
+      if(virtualThreadExecutor == null)
+      {
+         synchronized(ExecutionStrategy.class)
+         {
+            if(virtualThreadExecutor == null)
+            {
+               virtualThreadExecutor = createVirtualThreadExecutor();
+            }
+         }
+      }
+
+      return virtualThreadExecutor;
+   }
+
+   private static Executor createVirtualThreadExecutor()
+   {
+      try
+      {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         ExecutorService executor = (ExecutorService) factory.invoke(null);
+
+         LOG.info("Using virtual threads for bulkhead command execution");
+
+         return executor;
+      }
+      catch(Exception e)
+      {
+         LOG.info("Virtual threads are not available on this JVM, bulkhead commands will use a cached thread pool");
+
+         AtomicInteger count = new AtomicInteger();
+
+         ThreadFactory threadFactory = runnable ->
+         {
+            Thread thread = new Thread(runnable, "robusto-bulkhead-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         };
+
+         return Executors.newCachedThreadPool(threadFactory);
+      }
+   }
+}
@@ -0,0 +1,805 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import com.netflix.hystrix.strategy.concurrency.HystrixContextRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Sends a speculative second (hedged) request when the first has not answered
+ * within a percentile of recent latency, and returns whichever answers first.
+ * The other request is interrupted, and otherwise left to finish in the
+ * background. Used by {@link ApiCommand}
+ * when set via {@link ApiCommand.Builder#withHedgePolicy(HedgePolicy)}.
+ * <br/><br/>
+ * A policy keeps latency history, the hedging budget and metrics, so create
+ * one per command group and share it between commands:
+ *
+ * <pre>
+ *
+ * HedgePolicy hedgePolicy = HedgePolicy.builder()
+ *    .withPercentile(95)
+ *    .withBudgetPercent(5)
+ *    .build();
+ * </pre>
+ *
+ * Hedges go to a different instance when the {@link UriProvider} implements
+ * {@link HedgingUriProvider}, as CuratorUriProvider does. Since both requests
+ * may run at the same time, the {@link RemoteServiceCallback} must be safe
+ * to call concurrently. Only use hedging for idempotent calls.
+ */
+public class HedgePolicy
+{
+   private static final Logger LOG = LoggerFactory.getLogger(HedgePolicy.class);
+
+   /**
+    * Number of recent latencies kept for calculating the hedge delay.
+    */
+   private static final int SAMPLE_SIZE = 1024;
+
+   /**
+    * How often, in samples, the hedge delay is recalculated.
+    */
+   private static final int RECALCULATE_INTERVAL = 64;
+
+   /**
+    * Maximum number of requests, first requests and hedges together, running
+    * at once on the default executor. First requests beyond that run on the
+    * calling thread without a hedge, and hedges beyond that are not sent.
+    */
+   private static final int DEFAULT_MAX_THREADS = 200;
+
+   private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+   private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+   /**
+    * Sends hedges once their delay has passed.
+    */
+   private static final ScheduledThreadPoolExecutor TIMER = timer();
+
+   private final double percentile;
+
+   private final long minDelayMillis;
+
+   private final int minSamples;
+
+   private final double tokensPerRequest;
+
+   private final double maxTokens;
+
+   private final Executor executor;
+
+   //
+   // Latency history
+   //
+
+   private final long[] samples = new long[SAMPLE_SIZE];
+
+   private final AtomicLong sampleCount = new AtomicLong();
+
+   private volatile long hedgeDelayMillis = -1;
+
+   //
+   // Hedging budget, as a token bucket where every request deposits a
+   // fraction of a token and every hedge costs a whole one.
+   //
+
+   private double tokens;
+
+   //
+   // Metrics
+   //
+
+   private final AtomicLong requests = new AtomicLong();
+
+   private final AtomicLong hedges = new AtomicLong();
+
+   private final AtomicLong hedgeWins = new AtomicLong();
+
+   private final AtomicLong budgetDenied = new AtomicLong();
+
+   private static Executor defaultExecutor()
+   {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            DEFAULT_MAX_THREADS,
+            DEFAULT_MAX_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            runnable ->
+            {
+               Thread thread = new Thread(runnable, "robusto-hedge-" + THREAD_COUNT.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            });
+
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+   }
+
+   private static ScheduledThreadPoolExecutor timer()
+   {
+      ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable ->
+      {
+         Thread thread = new Thread(runnable, "robusto-hedge-timer");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      timer.setRemoveOnCancelPolicy(true);
+      return timer;
+   }
+
+   /**
+    * Initialize a new HedgePolicy from a Builder.
+    * @param builder Builder
+    */
+   public HedgePolicy(Builder builder)
+   {
+      this.percentile       = builder.percentile;
+      this.minDelayMillis   = builder.minDelayMillis;
+      this.minSamples       = builder.minSamples;
+      this.tokensPerRequest = builder.budgetPercent / 100.0;
+      this.maxTokens        = builder.maxBurst;
+      this.executor         = builder.executor != null ? builder.executor : DEFAULT_EXECUTOR;
+   }
+
+   /**
+    * Invoke the callback through the URI provider, hedging if it takes longer
+    * than the current hedge delay and the budget allows it. Once there is a
+    * hedge delay, the first request and its hedge both run on the executor
+    * while the calling thread waits for whichever succeeds first, so a first
+    * request that is stuck in a blocking read never holds up a hedge that has
+    * already answered. The calling thread stays within the command's bulkhead
+    * while it waits. The losing request is interrupted, and left to finish in
+    * the background if it does not respond to interrupts.
+    * @param uriProvider Provider for the request.
+    * @param callback Callback for the request.
+    * @return Result of whichever request succeeds first.
+    */
+   <T> T execute(UriProvider<T> uriProvider, RemoteServiceCallback<T> callback)
+   {
+      requests.incrementAndGet();
+      deposit();
+
+      long delay = hedgeDelayMillis;
+
+      if(delay < 0)
+      {
+         return timed(() -> uriProvider.execute(callback));
+      }
+
+      AtomicReference<String> primaryUri = new AtomicReference<>();
+      HedgedCall<T> call = new HedgedCall<>();
+
+      //
+      // Both requests are wrapped here, on the calling thread, so they carry
+      // the caller's request context, MDC and deadline with them
+      //
+
+      Runnable primary = call.wrap(() -> timed(() -> uriProvider.execute(new UriRecordingCallback<>(callback, primaryUri))), false);
+      Runnable hedge = call.wrap(() -> timed(() -> executeHedge(uriProvider, callback, primaryUri.get())), true);
+
+      try
+      {
+         executor.execute(primary);
+      }
+      catch(RejectedExecutionException e)
+      {
+         LOG.debug("Hedge executor is full, making request without a hedge");
+         return timed(() -> uriProvider.execute(callback));
+      }
+
+      ScheduledFuture<?> timer = TIMER.schedule(() -> sendHedge(call, hedge, delay), delay, TimeUnit.MILLISECONDS);
+
+      try
+      {
+         T result = call.await();
+
+         if(call.isHedgeWon())
+         {
+            hedgeWins.incrementAndGet();
+         }
+
+         return result;
+      }
+      finally
+      {
+         timer.cancel(false);
+         call.cancel();
+      }
+   }
+
+   /**
+    * Sends the hedge once the delay has passed, if the first request has not
+    * answered and the budget allows it.
+    */
+   private <T> void sendHedge(HedgedCall<T> call, Runnable hedge, long delay)
+   {
+      if(!call.isPrimaryRunning())
+      {
+         return;
+      }
+
+      if(!withdraw())
+      {
+         budgetDenied.incrementAndGet();
+         return;
+      }
+
+      if(!call.hedgeSent())
+      {
+         refund();
+         return;
+      }
+
+      try
+      {
+         executor.execute(hedge);
+
+         LOG.debug("No response after {} ms, sent hedged request", delay);
+         hedges.incrementAndGet();
+      }
+      catch(RejectedExecutionException e)
+      {
+         LOG.debug("Hedge executor is full, not hedging");
+         call.hedgeRejected();
+         refund();
+         budgetDenied.incrementAndGet();
+      }
+   }
+
+   private <T> T executeHedge(UriProvider<T> uriProvider, RemoteServiceCallback<T> callback, String primaryUri)
+   {
+      if(uriProvider instanceof HedgingUriProvider && primaryUri != null)
+      {
+         return ((HedgingUriProvider<T>) uriProvider).execute(callback, Collections.singleton(primaryUri));
+      }
+      else
+      {
+         return uriProvider.execute(callback);
+      }
+   }
+
+   //
+   // Latency tracking
+   //
+
+   /**
+    * Makes a request and records how long it took, whether it succeeded,
+    * failed or was interrupted, so slow failures count towards the hedge
+    * delay as much as slow successes.
+    */
+   private <T> T timed(Supplier<T> request)
+   {
+      long start = System.nanoTime();
+
+      try
+      {
+         return request.get();
+      }
+      finally
+      {
+         record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+   }
+
+   private void record(long latencyMillis)
+   {
+      long count = sampleCount.getAndIncrement();
+      samples[(int)(count % SAMPLE_SIZE)] = latencyMillis;
+
+      if(count + 1 == minSamples || (count + 1 > minSamples && (count + 1) % RECALCULATE_INTERVAL == 0))
+      {
+         long[] copy = Arrays.copyOf(samples, (int)Math.min(count + 1, SAMPLE_SIZE));
+         Arrays.sort(copy);
+
+         int index = (int) Math.ceil(percentile / 100.0 * copy.length) - 1;
+         hedgeDelayMillis = Math.max(minDelayMillis, copy[Math.max(0, index)]);
+      }
+   }
+
+   //
+   // Budget
+   //
+
+   private synchronized void deposit()
+   {
+      tokens = Math.min(maxTokens, tokens + tokensPerRequest);
+   }
+
+   private synchronized void refund()
+   {
+      tokens = Math.min(maxTokens, tokens + 1);
+   }
+
+   private synchronized boolean withdraw()
+   {
+      if(tokens >= 1)
+      {
+         tokens -= 1;
+         return true;
+      }
+
+      return false;
+   }
+
+   //
+   // Metrics
+   //
+
+   /**
+    * @return Current delay before a hedge is sent, or -1 if there are not yet
+    * enough latency samples to hedge.
+    */
+   public long getHedgeDelayMillis()
+   {
+      return hedgeDelayMillis;
+   }
+
+   /**
+    * @return Number of requests made through this policy.
+    */
+   public long getRequestCount()
+   {
+      return requests.get();
+   }
+
+   /**
+    * @return Number of hedged requests sent.
+    */
+   public long getHedgeCount()
+   {
+      return hedges.get();
+   }
+
+   /**
+    * @return Number of times the hedged request answered first.
+    */
+   public long getHedgeWinCount()
+   {
+      return hedgeWins.get();
+   }
+
+   /**
+    * @return Number of hedges that were not sent because the budget was spent.
+    */
+   public long getBudgetDeniedCount()
+   {
+      return budgetDenied.get();
+   }
+
+   /**
+    * @return Fraction of requests that were hedged.
+    */
+   public double getHedgeRate()
+   {
+      long count = requests.get();
+      return count == 0 ? 0 : (double) hedges.get() / count;
+   }
+
+   /**
+    * Return a new {@link Builder} for constructing a new HedgePolicy.
+    * @return Builder
+    */
+   public static Builder builder()
+   {
+      return new Builder();
+   }
+
+   /**
+    * State shared between the first request, its hedge and the calling thread
+    * waiting on them. The first request to succeed completes the call. A
+    * failed first request completes it only once there is no hedge left that
+    * could still succeed, and its failure is the one reported. Interrupts are
+    * only sent to a request while it is running, and are cleared once it
+    * finishes, so they never leak to later work on the executor.
+    */
+   private static final class HedgedCall<T>
+   {
+      private final CompletableFuture<T> result = new CompletableFuture<>();
+
+      private final Request primary = new Request();
+
+      private final Request hedge = new Request();
+
+      private boolean hedgeSent = false;
+
+      private boolean hedgeWon = false;
+
+      private boolean cancelled = false;
+
+      private Throwable primaryFailure = null;
+
+      /**
+       * Wraps a request so it runs with the calling thread's Hystrix request
+       * context, MDC and {@link Deadline}, and reports back here.
+       */
+      Runnable wrap(Callable<T> callable, boolean isHedge)
+      {
+         Request request = isHedge ? hedge : primary;
+         Deadline deadline = Deadline.current();
+         Map<String, String> mdc = MDC.getCopyOfContextMap();
+
+         return new HystrixContextRunnable(() ->
+         {
+            if(!started(request))
+            {
+               return;
+            }
+
+            Deadline previous = Deadline.attach(deadline);
+            Map<String, String> previousMdc = MDC.getCopyOfContextMap();
+            setMdc(mdc);
+
+            try
+            {
+               succeeded(request, callable.call());
+            }
+            catch(Throwable t)
+            {
+               if(isHedge)
+               {
+                  LOG.debug("Hedged request failed", t);
+               }
+
+               failed(request, t);
+            }
+            finally
+            {
+               setMdc(previousMdc);
+               Deadline.detach(previous);
+            }
+         });
+      }
+
+      private static void setMdc(Map<String, String> mdc)
+      {
+         if(mdc != null)
+         {
+            MDC.setContextMap(mdc);
+         }
+         else
+         {
+            MDC.clear();
+         }
+      }
+
+      synchronized boolean isPrimaryRunning()
+      {
+         return !primary.done && !result.isDone();
+      }
+
+      /**
+       * Marks the hedge as sent, unless the call is already over.
+       * @return True if the hedge should be sent.
+       */
+      synchronized boolean hedgeSent()
+      {
+         if(primary.done || result.isDone())
+         {
+            return false;
+         }
+
+         hedgeSent = true;
+         return true;
+      }
+
+      synchronized void hedgeRejected()
+      {
+         hedgeSent = false;
+         settle();
+      }
+
+      synchronized boolean isHedgeWon()
+      {
+         return hedgeWon;
+      }
+
+      private synchronized boolean started(Request request)
+      {
+         if(cancelled || result.isDone())
+         {
+            request.done = true;
+            settle();
+            return false;
+         }
+
+         request.thread = Thread.currentThread();
+         return true;
+      }
+
+      private synchronized void succeeded(Request request, T value)
+      {
+         finished(request);
+
+         if(result.complete(value))
+         {
+            hedgeWon = request == hedge;
+            interruptRunning();
+         }
+      }
+
+      private synchronized void failed(Request request, Throwable t)
+      {
+         finished(request);
+
+         if(request == primary)
+         {
+            primaryFailure = t;
+         }
+
+         settle();
+      }
+
+      private void finished(Request request)
+      {
+         request.thread = null;
+         request.done   = true;
+         Thread.interrupted();
+      }
+
+      /**
+       * Fails the call with the first request's failure once the hedge can no
+       * longer answer, either because it was never sent or it failed too.
+       */
+      private void settle()
+      {
+         if(primaryFailure != null && (!hedgeSent || hedge.done))
+         {
+            result.completeExceptionally(primaryFailure);
+         }
+      }
+
+      private void interruptRunning()
+      {
+         if(primary.thread != null)
+         {
+            primary.thread.interrupt();
+         }
+
+         if(hedge.thread != null)
+         {
+            hedge.thread.interrupt();
+         }
+      }
+
+      /**
+       * Stops whichever requests have not finished, interrupting them if they
+       * are running. Requests that ignore the interrupt carry on in the
+       * background, but nothing waits for them.
+       */
+      synchronized void cancel()
+      {
+         cancelled = true;
+         interruptRunning();
+      }
+
+      /**
+       * Waits for the first request, or its hedge, to succeed.
+       * @return Result of whichever succeeded first.
+       * @throws RuntimeException The first request's failure if neither
+       * succeeded.
+       */
+      T await()
+      {
+         try
+         {
+            return result.get();
+         }
+         catch(InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new RetryableApiCommandException("Interrupted while waiting for hedged request", e);
+         }
+         catch(ExecutionException e)
+         {
+            Throwable cause = e.getCause();
+
+            if(cause instanceof RuntimeException)
+            {
+               throw (RuntimeException) cause;
+            }
+
+            if(cause instanceof Error)
+            {
+               throw (Error) cause;
+            }
+
+            throw new RetryableApiCommandException("Request failed", cause);
+         }
+      }
+
+      /**
+       * One of the two requests, and the thread it is running on, if any.
+       */
+      private static final class Request
+      {
+         private Thread thread = null;
+
+         private boolean done = false;
+      }
+   }
+
+   /**
+    * Passes the URI a request was made with to the hedge, so it can avoid it.
+    */
+   private static class UriRecordingCallback<T> implements RemoteServiceCallback<T>
+   {
+      private final RemoteServiceCallback<T> delegate;
+
+      private final AtomicReference<String> uri;
+
+      UriRecordingCallback(RemoteServiceCallback<T> delegate, AtomicReference<String> uri)
+      {
+         this.delegate = delegate;
+         this.uri = uri;
+      }
+
+      @Override
+      public T run(String url)
+      {
+         uri.set(url);
+         return delegate.run(url);
+      }
+
+      @Override
+      public void setContext(CommandContext ctx)
+      {
+         delegate.setContext(ctx);
+      }
+
+      @Override
+      public CommandContext getContext()
+      {
+         return delegate.getContext();
+      }
+   }
+
+   /**
+    * Builder class for fluently creating new {@link HedgePolicy} objects.
+    */
+   public static class Builder
+   {
+      protected double percentile = 95;
+
+      protected long minDelayMillis = 5;
+
+      protected int minSamples = 100;
+
+      protected double budgetPercent = 5;
+
+      protected int maxBurst = 10;
+
+      protected Executor executor = null;
+
+      /**
+       * <i>Optional.</i> Percentile of recent latency after which a hedge is
+       * sent. Default is 95.
+       * @param percentile Percentile between 0 and 100.
+       * @return Builder
+       */
+      public Builder withPercentile(double percentile)
+      {
+         this.percentile = percentile;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Lower bound for the hedge delay, so that very fast
+       * services are not hedged on noise. Default is 5 ms.
+       * @param minDelayMillis
+       * @return Builder
+       */
+      public Builder withMinDelayInMilliseconds(long minDelayMillis)
+      {
+         this.minDelayMillis = minDelayMillis;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Number of latency samples needed before hedging
+       * starts. Default is 100.
+       * @param minSamples
+       * @return Builder
+       */
+      public Builder withMinSamples(int minSamples)
+      {
+         this.minSamples = minSamples;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Maximum extra load from hedging, as a percentage of
+       * requests. Default is 5.
+       * @param budgetPercent
+       * @return Builder
+       */
+      public Builder withBudgetPercent(double budgetPercent)
+      {
+         this.budgetPercent = budgetPercent;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Maximum number of hedges that can be saved up in the
+       * budget and sent in a burst. Default is 10.
+       * @param maxBurst
+       * @return Builder
+       */
+      public Builder withMaxBurst(int maxBurst)
+      {
+         this.maxBurst = maxBurst;
+         return this;
+      }
+
+      /**
+       * <i>Optional.</i> Executor to make requests and their hedges on once
+       * hedging has started. It should be bounded and reject requests it
+       * cannot start right away, since a hedge that waits in a queue is no
+       * use. A first request it rejects runs on the calling thread without a
+       * hedge. Default is a shared pool of up to 200 threads.
+       * @param executor
+       * @return Builder
+       */
+      public Builder withExecutor(Executor executor)
+      {
+         this.executor = executor;
+         return this;
+      }
+
+      /**
+       * Create a new HedgePolicy from this builder.
+       * @return New HedgePolicy
+       * @throws IllegalArgumentException If any settings are out of range.
+       */
+      public HedgePolicy build()
+      {
+         if(percentile <= 0 || percentile > 100)
+         {
+            throw new IllegalArgumentException("Percentile must be greater than 0 and at most 100");
+         }
+
+         if(minSamples <= 0)
+         {
+            throw new IllegalArgumentException("Min samples must be greater than zero");
+         }
+
+         return new HedgePolicy(this);
+      }
+   }
+}
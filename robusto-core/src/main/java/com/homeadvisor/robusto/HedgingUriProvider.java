@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import java.util.Collection;
+
+/**
+ * A {@link UriProvider} that can steer a request away from URIs that are
+ * already being tried, so that a hedged request made by a {@link HedgePolicy}
+ * goes to a different service instance than the original.
+ */
+public interface HedgingUriProvider<T> extends UriProvider<T>
+{
+   /**
+    * Same as {@link #execute(RemoteServiceCallback)}, preferring a URI that
+    * is not in the given collection. If no other URI is available, any URI
+    * may be used.
+    * @param callback Callback to invoke with the chosen URI.
+    * @param excludedUris URIs already in use by other requests.
+    * @return Result of the callback.
+    */
+   T execute(RemoteServiceCallback<T> callback, Collection<String> excludedUris);
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import com.netflix.hystrix.exception.HystrixRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import rx.Observable;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries a reactive execution without blocking any threads. This mirrors what
+ * the Spring {@link org.springframework.retry.support.RetryTemplate} does for
+ * blocking retries, using the same retry policy, backoff policy and listeners,
+ * except that each retry is only subscribed to once the backoff delay has
+ * elapsed on the shared RxJava computation scheduler.
+ * <br/><br/>
+ * A new instance must be used for every logical execution since it holds the
+ * retry and backoff state. Listeners are notified with a null
+ * {@link org.springframework.retry.RetryCallback}.
+ */
+class ObservableRetry<T>
+{
+   private static final Logger LOG = LoggerFactory.getLogger(ObservableRetry.class);
+
+   private final String commandName;
+
+   private final RetryPolicy retryPolicy;
+
+   private final List<RetryListener> retryListeners;
+
+   private final RetryContext retryContext;
+
+   private final DelaySleeper sleeper = new DelaySleeper();
+
+   private final BackOffPolicy backOffPolicy;
+
+   private final BackOffContext backOffContext;
+
+   public ObservableRetry(String commandName, RetryPolicy retryPolicy, BackOffPolicy backOffPolicy, List<RetryListener> retryListeners)
+   {
+      this.commandName    = commandName;
+      this.retryPolicy    = retryPolicy;
+      this.retryListeners = retryListeners;
+      this.retryContext   = retryPolicy.open(null);
+
+      //
+      // Swap the sleeper on a private copy of the backoff policy so that
+      // backOff() records the delay instead of sleeping. Policies that do
+      // not sleep have no delay at all.
+      //
+
+      if(backOffPolicy instanceof SleepingBackOffPolicy)
+      {
+         this.backOffPolicy  = ((SleepingBackOffPolicy<?>) backOffPolicy).withSleeper(sleeper);
+         this.backOffContext = this.backOffPolicy.start(retryContext);
+      }
+      else
+      {
+         this.backOffPolicy  = null;
+         this.backOffContext = null;
+      }
+   }
+
+   /**
+    * Executes the given attempts until one succeeds or the retry policy gives up.
+    * @param attempts Creates the execution for a zero based attempt number.
+    * @return Observable of the first successful attempt, or the last failure.
+    */
+   public Observable<T> execute(Func1<Integer, Observable<T>> attempts)
+   {
+      boolean allowed = true;
+
+      for(RetryListener listener : retryListeners)
+      {
+         allowed = listener.open(retryContext, null) && allowed;
+      }
+
+      if(!allowed)
+      {
+         retryContext.setExhaustedOnly();
+      }
+
+      return attempt(attempts, 0)
+            .doOnCompleted(() -> close(null))
+            .doOnError(this::close);
+   }
+
+   /**
+    * @return The retry context for this execution.
+    */
+   public RetryContext getRetryContext()
+   {
+      return retryContext;
+   }
+
+   private Observable<T> attempt(Func1<Integer, Observable<T>> attempts, int attempt)
+   {
+      return Observable.defer(() -> attempts.call(attempt)).onErrorResumeNext(t ->
+      {
+         //
+         // Hystrix wraps failures, but the retry policy classifies the
+         // exceptions thrown by the remote call.
+         //
+
+         Throwable cause = (t instanceof HystrixRuntimeException && t.getCause() != null) ? t.getCause() : t;
+
+         //
+         // Failures that are never retried mark the context exhausted before
+         // they are registered, so a budgeted retry policy does not spend a
+         // retry on them
+         //
+
+         if(isShortCircuited(t) || cause instanceof AdaptiveConcurrencyLimiter.LimitExceededException)
+         {
+            retryContext.setExhaustedOnly();
+         }
+
+         retryPolicy.registerThrowable(retryContext, cause);
+
+         for(RetryListener listener : retryListeners)
+         {
+            listener.onError(retryContext, null, cause);
+         }
+
+         if(retryContext.isExhaustedOnly() || !retryPolicy.canRetry(retryContext))
+         {
+            return Observable.error(t);
+         }
+
+         long delay = nextBackOffDelay();
+
+         LOG.debug("Scheduling attempt {} of command {} in {} ms", retryContext.getRetryCount() + 1, commandName, delay);
+
+         return Observable
+               .timer(delay, TimeUnit.MILLISECONDS, Schedulers.computation())
+               .flatMap(tick -> attempt(attempts, retryContext.getRetryCount()));
+      });
+   }
+
+   private long nextBackOffDelay()
+   {
+      if(backOffPolicy == null)
+      {
+         return 0;
+      }
+
+      sleeper.delay = 0;
+      backOffPolicy.backOff(backOffContext);
+      return sleeper.delay;
+   }
+
+   private boolean isShortCircuited(Throwable t)
+   {
+      return t instanceof HystrixRuntimeException
+            && ((HystrixRuntimeException) t).getFailureType() == HystrixRuntimeException.FailureType.SHORTCIRCUIT;
+   }
+
+   private void close(Throwable t)
+   {
+      retryPolicy.close(retryContext);
+
+      for(RetryListener listener : retryListeners)
+      {
+         listener.close(retryContext, null, t);
+      }
+   }
+
+   /**
+    * Spring {@link Sleeper} that records the requested backoff period rather
+    * than sleeping.
+    */
+   private static class DelaySleeper implements Sleeper
+   {
+      private volatile long delay = 0;
+
+      @Override
+      public void sleep(long backOffPeriod)
+      {
+         delay = backOffPeriod;
+      }
+   }
+}
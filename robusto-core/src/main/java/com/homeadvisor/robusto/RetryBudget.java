@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries at a ratio of recent successful first attempts, so that a
+ * struggling backend does not get a multiple of its normal traffic from
+ * retries. Works as a token bucket over a rolling window: every first attempt
+ * that succeeds deposits a fraction of a token, every retry withdraws a whole
+ * one, and both expire when they fall out of the window. Once the earned
+ * retries are spent, a small reserve of retries is still allowed every second
+ * so that quiet clients can retry. The reserve refills each second and cannot
+ * be saved up, so it never allows more than that rate.
+ * <br/><br/>
+ * A budget should be shared by all commands in a command group, see
+ * {@link ClientConfiguration#getRetryBudget(String)} and
+ * {@link ApiCommand.Builder#withRetryBudget(RetryBudget)}. The first attempt
+ * of a command is never denied, only retries. Commands record their own
+ * successful first attempts, counting only those that reached the remote
+ * call. When using a budget with a plain Spring retry template instead,
+ * register it as a listener on the template so it sees successes.
+ */
+public class RetryBudget implements RetryListener
+{
+   /**
+    * Default ratio of retries to successful first attempts.
+    */
+   public static final double DEFAULT_RATIO = 0.2;
+
+   /**
+    * Default retries per second allowed regardless of traffic.
+    */
+   public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 5;
+
+   /**
+    * Default length of the rolling window.
+    */
+   public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+   private static final String DENIED_ATTRIBUTE = RetryBudget.class.getName() + ".denied";
+
+   private final double ratio;
+
+   private final int minRetriesPerSecond;
+
+   private final int windowSeconds;
+
+   //
+   // Rolling window of one second buckets
+   //
+
+   private final long[] bucketSeconds;
+
+   private final long[] deposits;
+
+   private final long[] withdrawals;
+
+   private final long[] reserveWithdrawals;
+
+   //
+   // Metrics
+   //
+
+   private final AtomicLong retriesAllowed = new AtomicLong();
+
+   private final AtomicLong retriesDenied = new AtomicLong();
+
+   public RetryBudget()
+   {
+      this(DEFAULT_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_WINDOW_SECONDS);
+   }
+
+   /**
+    * @param ratio Retries allowed per successful first attempt, e.g. 0.2 to
+    *              allow 20% extra load from retries.
+    * @param minRetriesPerSecond Retries allowed each second regardless of
+    *                            traffic, once earned retries are spent.
+    * @param windowSeconds Length of the rolling window.
+    */
+   public RetryBudget(double ratio, int minRetriesPerSecond, int windowSeconds)
+   {
+      if(ratio < 0 || minRetriesPerSecond < 0 || windowSeconds <= 0)
+      {
+         throw new IllegalArgumentException("Retry budget ratio and min retries cannot be negative, and window must be positive");
+      }
+
+      this.ratio = ratio;
+      this.minRetriesPerSecond = minRetriesPerSecond;
+      this.windowSeconds = windowSeconds;
+
+      bucketSeconds = new long[windowSeconds];
+      deposits = new long[windowSeconds];
+      withdrawals = new long[windowSeconds];
+      reserveWithdrawals = new long[windowSeconds];
+   }
+
+   /**
+    * Records a successful first attempt, adding to the budget.
+    */
+   public synchronized void recordSuccess()
+   {
+      deposits[currentBucket()]++;
+   }
+
+   /**
+    * Withdraws a retry from the budget if there is one available.
+    * @return True if the retry is allowed.
+    */
+   public synchronized boolean tryAcquire()
+   {
+      int bucket = currentBucket();
+
+      if(getEarnedBalance() >= 1)
+      {
+         withdrawals[bucket]++;
+         retriesAllowed.incrementAndGet();
+         return true;
+      }
+
+      if(reserveWithdrawals[bucket] < minRetriesPerSecond)
+      {
+         reserveWithdrawals[bucket]++;
+         retriesAllowed.incrementAndGet();
+         return true;
+      }
+
+      retriesDenied.incrementAndGet();
+      return false;
+   }
+
+   /**
+    * @return Number of retries currently available, earned plus what is left
+    * of this second's reserve.
+    */
+   public synchronized double getBalance()
+   {
+      int bucket = currentBucket();
+
+      return Math.max(0, getEarnedBalance()) + minRetriesPerSecond - reserveWithdrawals[bucket];
+   }
+
+   /**
+    * @return Retries earned by successful first attempts in the window, less
+    * those already spent.
+    */
+   private double getEarnedBalance()
+   {
+      long now = currentSecond();
+      long depositCount = 0;
+      long withdrawalCount = 0;
+
+      for(int i = 0; i < windowSeconds; i++)
+      {
+         if(now - bucketSeconds[i] < windowSeconds)
+         {
+            depositCount += deposits[i];
+            withdrawalCount += withdrawals[i];
+         }
+      }
+
+      return ratio * depositCount - withdrawalCount;
+   }
+
+   /**
+    * @return Number of retries allowed by the budget.
+    */
+   public long getRetriesAllowedCount()
+   {
+      return retriesAllowed.get();
+   }
+
+   /**
+    * @return Number of retries denied because the budget was spent.
+    */
+   public long getRetriesDeniedCount()
+   {
+      return retriesDenied.get();
+   }
+
+   /**
+    * Wraps a retry policy so that every retry it allows must also be allowed
+    * by this budget.
+    * @param delegate Policy deciding which failures are retryable.
+    * @return Budgeted retry policy.
+    */
+   public RetryPolicy wrap(RetryPolicy delegate)
+   {
+      return new BudgetedRetryPolicy(delegate);
+   }
+
+   //
+   // RetryListener, for counting successful first attempts when used with a
+   // plain retry template
+   //
+
+   @Override
+   public <T, E extends Throwable> boolean open(RetryContext context, RetryCallback<T, E> callback)
+   {
+      return true;
+   }
+
+   @Override
+   public <T, E extends Throwable> void close(RetryContext context, RetryCallback<T, E> callback, Throwable throwable)
+   {
+      if(throwable == null && context.getRetryCount() == 0)
+      {
+         recordSuccess();
+      }
+   }
+
+   @Override
+   public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback, Throwable throwable)
+   {
+
+   }
+
+   private int currentBucket()
+   {
+      long now = currentSecond();
+      int bucket = (int) (now % windowSeconds);
+
+      if(bucketSeconds[bucket] != now)
+      {
+         bucketSeconds[bucket] = now;
+         deposits[bucket] = 0;
+         withdrawals[bucket] = 0;
+         reserveWithdrawals[bucket] = 0;
+      }
+
+      return bucket;
+   }
+
+   private static long currentSecond()
+   {
+      return System.currentTimeMillis() / 1000;
+   }
+
+   /**
+    * Consults the budget once per failure, when the failure is registered,
+    * since the retry template may ask {@link #canRetry(RetryContext)} more
+    * than once for the same failure. Failures whose context is already marked
+    * exhausted, for example because the next backoff would not fit before
+    * the deadline, will not be retried, so they do not take a retry from
+    * the budget.
+    */
+   private class BudgetedRetryPolicy implements RetryPolicy
+   {
+      private final RetryPolicy delegate;
+
+      BudgetedRetryPolicy(RetryPolicy delegate)
+      {
+         this.delegate = delegate;
+      }
+
+      @Override
+      public boolean canRetry(RetryContext context)
+      {
+         return delegate.canRetry(context) && !context.hasAttribute(DENIED_ATTRIBUTE);
+      }
+
+      @Override
+      public RetryContext open(RetryContext parent)
+      {
+         return delegate.open(parent);
+      }
+
+      @Override
+      public void close(RetryContext context)
+      {
+         delegate.close(context);
+      }
+
+      @Override
+      public void registerThrowable(RetryContext context, Throwable throwable)
+      {
+         delegate.registerThrowable(context, throwable);
+
+         if(context.isExhaustedOnly())
+         {
+            return;
+         }
+
+         if(delegate.canRetry(context) && !context.hasAttribute(DENIED_ATTRIBUTE) && !tryAcquire())
+         {
+            context.setAttribute(DENIED_ATTRIBUTE, true);
+         }
+      }
+   }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementation of {@link CommandCache} that is safe to share between many
+ * threads and holds at most {@link BoundedCommandCacheConfig#getMaxSize()}
+ * entries, optionally expiring them a fixed time after they are written.
+ * <br/><br/>
+ * Entries live in a {@link ConcurrentHashMap}, so reads never lock. A read only
+ * bumps a small saturating frequency counter on the entry, and skips even that
+ * write once the counter is saturated, so hot keys do not contend on a shared
+ * cache line. Inserting a new key takes a single eviction lock, which is also
+ * where the S3-FIFO eviction policy runs:
+ * <ul>
+ *    <li>New keys enter a small FIFO queue sized at 10% of the cache.</li>
+ *    <li>Keys leaving the small queue that were read more than once move to
+ *        the main queue; all others are evicted and remembered in a ghost
+ *        queue of recently evicted keys.</li>
+ *    <li>Keys in the ghost queue that are inserted again go straight to the
+ *        main queue.</li>
+ *    <li>Keys leaving the main queue are reinserted if they were read since
+ *        they were last examined, otherwise they are evicted.</li>
+ * </ul>
+ * This keeps one-hit wonders from flushing frequently used entries, while the
+ * bookkeeping on the read path stays a single field update.
+ */
+public class BoundedCommandCache<K,F,T> extends CommandCache<K,F,T>
+{
+   /**
+    * Saturation point of the per entry read frequency.
+    */
+   private static final int MAX_FREQUENCY = 3;
+
+   /**
+    * Underlying mechanism for storing cache data.
+    */
+   private final ConcurrentHashMap<K, Node<K,F>> cache = new ConcurrentHashMap<>();
+
+   /**
+    * Guards the queues and sizes below. Only taken to insert a new key or
+    * empty the cache.
+    */
+   private final ReentrantLock evictionLock = new ReentrantLock();
+
+   private final ArrayDeque<Node<K,F>> smallQueue = new ArrayDeque<>();
+
+   private final ArrayDeque<Node<K,F>> mainQueue = new ArrayDeque<>();
+
+   private final LinkedHashMap<K, Boolean> ghostQueue;
+
+   private final int maxSize;
+
+   private final int smallCapacity;
+
+   private final long expirationNanos;
+
+   /**
+    * Live entries in each queue. Invalidated entries are not counted, even
+    * while they are still waiting in a queue.
+    */
+   private int smallSize = 0;
+
+   private int mainSize = 0;
+
+   /**
+    * Invalidated entries still waiting in a queue.
+    */
+   private int removedCount = 0;
+
+   public BoundedCommandCache(String cacheName, BoundedCommandCacheConfig cacheConfig)
+   {
+      super(cacheName, cacheConfig);
+
+      this.maxSize         = Math.max(1, cacheConfig.getMaxSize());
+      this.smallCapacity   = Math.max(1, maxSize / 10);
+      this.expirationNanos = TimeUnit.SECONDS.toNanos(cacheConfig.getExpiration());
+
+      final int ghostCapacity = maxSize - smallCapacity;
+      this.ghostQueue = new LinkedHashMap<K, Boolean>()
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<K, Boolean> eldest)
+         {
+            return size() > ghostCapacity;
+         }
+      };
+   }
+
+   @Override
+   protected Optional<F> doGetCache(K key)
+   {
+      Node<K,F> node = cache.get(key);
+
+      if(node == null || isExpired(node))
+      {
+         return null;
+      }
+
+      if(node.frequency < MAX_FREQUENCY)
+      {
+         node.frequency++;
+      }
+
+      return Optional.ofNullable(node.value);
+   }
+
+   @Override
+   protected boolean doPutCache(K key, F value)
+   {
+      return put(key, value, expiresAt());
+   }
+
+   @Override
+   protected void doExportCache(CacheSnapshot.EntryConsumer<K,F> consumer)
+   {
+      long nowMillis = System.currentTimeMillis();
+      long nowNanos  = CacheClock.nanoTime();
+
+      cache.forEach((key, node) ->
+      {
+         if(!node.removed && !isExpired(node))
+         {
+            long expiresAt = expirationNanos > 0
+                  ? nowMillis + TimeUnit.NANOSECONDS.toMillis(node.expiresAt - nowNanos)
+                  : Long.MAX_VALUE;
+
+            consumer.accept(key, node.value, expiresAt);
+         }
+      });
+   }
+
+   /**
+    * Keeps the remaining time to live of restored entries, rather than
+    * giving them a full one.
+    */
+   @Override
+   protected boolean doImportCache(K key, F value, long expiresAt)
+   {
+      if(expirationNanos == 0)
+      {
+         return put(key, value, 0);
+      }
+
+      long remainingMillis = Math.min(expiresAt - System.currentTimeMillis(), TimeUnit.NANOSECONDS.toMillis(expirationNanos));
+
+      return put(key, value, CacheClock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+   }
+
+   /**
+    * Inserts or replaces an entry that expires at the given {@link CacheClock}
+    * time.
+    */
+   private boolean put(K key, F value, long expiresAt)
+   {
+      //
+      // Replacing the value of a cached key does not change its place in
+      // either queue, so it does not need the eviction lock. If the node was
+      // evicted or invalidated while it was being updated the new value went
+      // nowhere, so fall through and insert it again.
+      //
+
+      Node<K,F> node = cache.get(key);
+
+      if(node != null)
+      {
+         node.update(value, expiresAt);
+
+         if(cache.get(key) == node)
+         {
+            return true;
+         }
+      }
+
+      evictionLock.lock();
+      try
+      {
+         node = cache.get(key);
+
+         if(node != null)
+         {
+            node.update(value, expiresAt);
+            return true;
+         }
+
+         //
+         // Make room before inserting, so the new entry can never be the one
+         // evicted to make room for itself
+         //
+
+         boolean ghost = ghostQueue.remove(key) != null;
+
+         while(smallSize + mainSize >= maxSize)
+         {
+            evict();
+         }
+
+         node = new Node<>(key, value, expiresAt);
+         cache.put(key, node);
+
+         if(ghost)
+         {
+            node.main = true;
+            mainQueue.addFirst(node);
+            mainSize++;
+         }
+         else
+         {
+            smallQueue.addFirst(node);
+            smallSize++;
+         }
+      }
+      finally
+      {
+         evictionLock.unlock();
+      }
+
+      return true;
+   }
+
+   /**
+    * Removes a single entry from the cache, if present. Its slot is free for a
+    * new entry right away; the node itself is dropped from its queue the next
+    * time eviction reaches it, or when enough invalidated nodes pile up.
+    * @param key Key to remove.
+    */
+   public void invalidate(K key)
+   {
+      evictionLock.lock();
+      try
+      {
+         Node<K,F> node = cache.remove(key);
+
+         if(node != null)
+         {
+            node.removed = true;
+
+            if(node.main)
+            {
+               mainSize--;
+            }
+            else
+            {
+               smallSize--;
+            }
+
+            //
+            // Keep a steady stream of invalidations from growing the queues
+            // without bound when nothing is being evicted
+            //
+
+            if(++removedCount > maxSize)
+            {
+               smallQueue.removeIf(queued -> queued.removed);
+               mainQueue.removeIf(queued -> queued.removed);
+               removedCount = 0;
+            }
+         }
+      }
+      finally
+      {
+         evictionLock.unlock();
+      }
+   }
+
+   /**
+    * Returns the number of entries currently held, including any that have
+    * expired but have not yet been evicted.
+    * @return Number of entries in the cache.
+    */
+   public int size()
+   {
+      return cache.size();
+   }
+
+   @Override
+   protected long doGetSize()
+   {
+      return cache.size();
+   }
+
+   @Override
+   public void emptyCache()
+   {
+      evictionLock.lock();
+      try
+      {
+         cache.clear();
+         smallQueue.clear();
+         mainQueue.clear();
+         ghostQueue.clear();
+         smallSize    = 0;
+         mainSize     = 0;
+         removedCount = 0;
+      }
+      finally
+      {
+         evictionLock.unlock();
+      }
+   }
+
+   @Override
+   public String dumpCache()
+   {
+      StringBuilder output = new StringBuilder("Contents of cache ").append(getName()).append("\n").append("\n");
+
+      cache.forEach( (key, node) -> output.append(key).append(" : ").append(node.value).append("\n") );
+
+      return output.toString();
+   }
+
+   /**
+    * Evicts a single entry. Must be called while holding the eviction lock.
+    */
+   private void evict()
+   {
+      if(smallSize >= smallCapacity || mainSize == 0)
+      {
+         if(evictSmall())
+         {
+            return;
+         }
+      }
+
+      evictMain();
+   }
+
+   /**
+    * Removes entries from the tail of the small queue until one is evicted,
+    * promoting any that were read more than once to the main queue.
+    * @return True if an entry was evicted, false if the small queue emptied
+    * first.
+    */
+   private boolean evictSmall()
+   {
+      Node<K,F> node;
+
+      while((node = smallQueue.pollLast()) != null)
+      {
+         if(node.removed)
+         {
+            removedCount--;
+            continue;
+         }
+
+         smallSize--;
+
+         if(node.frequency > 1 && !isExpired(node))
+         {
+            node.frequency = 0;
+            node.main = true;
+            mainQueue.addFirst(node);
+            mainSize++;
+         }
+         else
+         {
+            cache.remove(node.key, node);
+            recordEvictions(1);
+
+            if(!isExpired(node))
+            {
+               ghostQueue.put(node.key, Boolean.TRUE);
+            }
+
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Removes entries from the tail of the main queue until one is evicted,
+    * giving any that were read since they were last examined another pass.
+    */
+   private void evictMain()
+   {
+      Node<K,F> node;
+
+      while((node = mainQueue.pollLast()) != null)
+      {
+         if(node.removed)
+         {
+            removedCount--;
+         }
+         else if(node.frequency > 0 && !isExpired(node))
+         {
+            node.frequency--;
+            mainQueue.addFirst(node);
+         }
+         else
+         {
+            mainSize--;
+            cache.remove(node.key, node);
+            recordEvictions(1);
+            return;
+         }
+      }
+   }
+
+   /**
+    * Picks when a newly written entry expires, shortened by a random part of
+    * {@link CommandCacheConfig#getExpirationJitter()}.
+    */
+   private long expiresAt()
+   {
+      if(expirationNanos == 0)
+      {
+         return 0;
+      }
+
+      long jitterNanos = getConfig().getExpirationJitter() > 0
+            ? (long)(ThreadLocalRandom.current().nextDouble() * expirationNanos * getConfig().getExpirationJitter() / 100)
+            : 0;
+
+      return CacheClock.nanoTime() + expirationNanos - jitterNanos;
+   }
+
+   private boolean isExpired(Node<K,F> node)
+   {
+      return expirationNanos > 0 && CacheClock.nanoTime() - node.expiresAt > 0;
+   }
+
+   /**
+    * A cached value along with the bookkeeping used by the eviction policy.
+    */
+   private static final class Node<K,F>
+   {
+      final K key;
+
+      volatile F value;
+
+      volatile long expiresAt;
+
+      /**
+       * Approximate number of reads, saturating at {@link #MAX_FREQUENCY}.
+       * Updated without synchronization; a lost increment only makes the
+       * eviction policy slightly less precise.
+       */
+      volatile int frequency;
+
+      /**
+       * Set when the node is invalidated while still in a queue. Only
+       * accessed under the eviction lock.
+       */
+      boolean removed;
+
+      /**
+       * Set when the node moves to the main queue. Only accessed under the
+       * eviction lock.
+       */
+      boolean main;
+
+      Node(K key, F value, long expiresAt)
+      {
+         this.key       = key;
+         this.value     = value;
+         this.expiresAt = expiresAt;
+      }
+
+      void update(F value, long expiresAt)
+      {
+         this.expiresAt = expiresAt;
+         this.value     = value;
+      }
+   }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.Map;
+
+/**
+ * Extension of {@link CommandCacheConfig} that adds the size bound and
+ * expiration used by {@link BoundedCommandCache}.
+ */
+public class BoundedCommandCacheConfig extends CommandCacheConfig
+{
+   protected static final String CONFIG_MAX_VALUE = "maxValue";
+
+   protected static final String CONFIG_EXPIRATION = "expiration";
+
+   /**
+    * Maximum number of entries allowed in the cache.
+    */
+   private int maxSize = 10000;
+
+   /**
+    * Time after an entry is written before it expires (in seconds). Zero
+    * means entries never expire and are only removed by eviction.
+    */
+   private int expiration = 0;
+
+   /**
+    * Initialize this cache config using default values.
+    */
+   public BoundedCommandCacheConfig()
+   {
+
+   }
+
+   /**
+    * Initialize this cache config using custom values.
+    */
+   public BoundedCommandCacheConfig(int expiration, int maxSize)
+   {
+      this.expiration = expiration;
+      this.maxSize    = maxSize;
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public void setMaxSize(int maxSize)
+   {
+      this.maxSize = maxSize;
+   }
+
+   public int getExpiration()
+   {
+      return expiration;
+   }
+
+   public void setExpiration(int expiration)
+   {
+      this.expiration = expiration;
+   }
+
+   @Override
+   public boolean isExpirationJittered()
+   {
+      return expiration > 0;
+   }
+
+   /**
+    * Creates a new BoundedCommandCacheConfig from the given map of config
+    * values. Only values this class cares about will be used, others will be
+    * ignored.
+    * @param configMap Map of config key/value pairs.
+    * @return New BoundedCommandCacheConfig.
+    */
+   public static BoundedCommandCacheConfig fromMap(Map<String, Object> configMap)
+   {
+      BoundedCommandCacheConfig newConfig = new BoundedCommandCacheConfig();
+
+      newConfig.applyMap(configMap);
+      newConfig.setMaxSize(Integer.valueOf(configMap.getOrDefault(CONFIG_MAX_VALUE, "10000").toString()));
+      newConfig.setExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_EXPIRATION, "0").toString()));
+
+      return newConfig;
+   }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coarse monotonic clock for cache expiration checks. Reading the system
+ * clock on every cache get is a measurable part of a hit, while expirations
+ * are configured in seconds; this clock is a volatile read of a value that a
+ * single daemon thread refreshes every {@link #RESOLUTION_MILLIS}
+ * milliseconds. The thread is only started the first time the clock is used.
+ */
+final class CacheClock
+{
+   static final long RESOLUTION_MILLIS = 10;
+
+   private static volatile long now = System.nanoTime();
+
+   private CacheClock()
+   {
+   }
+
+   /**
+    * Returns the current time in nanoseconds, accurate to within
+    * {@link #RESOLUTION_MILLIS}. Like {@link System#nanoTime()}, only the
+    * difference between two values is meaningful.
+    * @return Current time in nanoseconds.
+    */
+   static long nanoTime()
+   {
+      Ticker.ensureStarted();
+      return now;
+   }
+
+   /**
+    * Holder for the refresh thread, so it is created lazily and only once.
+    */
+   private static final class Ticker
+   {
+      static
+      {
+         ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r ->
+         {
+            Thread thread = new Thread(r, "robusto-cache-clock");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+         executor.scheduleAtFixedRate(
+               () -> now = System.nanoTime(),
+               RESOLUTION_MILLIS,
+               RESOLUTION_MILLIS,
+               TimeUnit.MILLISECONDS);
+      }
+
+      static void ensureStarted()
+      {
+         // Loading the class is enough
+      }
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.io.Serializable;
+
+/**
+ * Wrapper that {@link CommandCache} stores in place of the raw value when
+ * the cache needs to know how old an entry is, for example to tell fresh
+ * entries from stale ones (see {@link CommandCacheConfig#getSoftExpiration()}).
+ * The write time is wall clock time so that ages are meaningful to every
+ * client of a distributed cache.
+ */
+public final class CacheEntry<F> implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   private final F value;
+
+   private final long writtenAt;
+
+   private final float expirationJitter;
+
+   private final long loadMillis;
+
+   public CacheEntry(F value, long writtenAt)
+   {
+      this(value, writtenAt, 0, 0);
+   }
+
+   public CacheEntry(F value, long writtenAt, float expirationJitter, long loadMillis)
+   {
+      this.value            = value;
+      this.writtenAt        = writtenAt;
+      this.expirationJitter = expirationJitter;
+      this.loadMillis       = loadMillis;
+   }
+
+   public F getValue()
+   {
+      return value;
+   }
+
+   /**
+    * Time the entry was written, in milliseconds since the epoch.
+    * @return Write time.
+    */
+   public long getWrittenAt()
+   {
+      return writtenAt;
+   }
+
+   /**
+    * Fraction by which the expirations of this entry are shortened, see
+    * {@link CommandCacheConfig#getExpirationJitter()}.
+    * @return Jitter between 0 and 1.
+    */
+   public float getExpirationJitter()
+   {
+      return expirationJitter;
+   }
+
+   /**
+    * Time the remote call that produced the value took, or 0 if unknown.
+    * See {@link CommandCacheConfig#getEarlyExpiration()}.
+    * @return Load time in milliseconds.
+    */
+   public long getLoadMillis()
+   {
+      return loadMillis;
+   }
+
+   @Override
+   public String toString()
+   {
+      return String.valueOf(value);
+   }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Implemented by {@link CommandCache}s that can tell interested parties when
+ * an entry changes outside of this JVM, for example through events from a
+ * distributed cache. {@link NearCommandCache} uses this to drop local copies
+ * of entries that changed remotely.
+ */
+public interface CacheInvalidationSource<K>
+{
+   /**
+    * Register a listener to be called with the key of every entry that is
+    * inserted, updated, or removed.
+    * @param listener Listener to call.
+    */
+   void addInvalidationListener(Consumer<K> listener);
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the entries of a {@link CommandCache} to a memory-mapped file, and
+ * reads them back, so a restarted process can start with a warm cache. See
+ * {@link CommandCacheConfig#isSnapshotting()}.
+ * <br/><br/>
+ * Each entry is stored with the time it expires, so entries that expired
+ * while the process was down are skipped on restore and the others keep only
+ * their remaining time to live. Keys and values are written with Java
+ * serialization, one entry at a time, so an entry that cannot be written or
+ * read back (for example because its class changed in the new release) is
+ * skipped without losing the rest.
+ * <br/><br/>
+ * A snapshot is written to a temporary file that then replaces the previous
+ * snapshot, so a process that dies mid-write never leaves a torn file behind.
+ * A file that was cut short some other way still restores the entries before
+ * the point where it ends.
+ * <br/><br/>
+ * <em>Important!</em> Restoring a snapshot deserializes whatever classes the
+ * file names, and Java deserialization of untrusted data can run arbitrary
+ * code. The snapshot file must be as trusted as the application itself: keep
+ * it in a directory that only the application's own user can write to, and
+ * never point it at a file that comes from somewhere else.
+ */
+public final class CacheSnapshot
+{
+   private final static Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+   private static final int MAGIC = 0x524F4253;
+
+   private static final int VERSION = 1;
+
+   /**
+    * Magic, version, entry count and data length.
+    */
+   private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+   /**
+    * Size of each region of the file mapped at a time.
+    */
+   private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+   /**
+    * Caches with periodic snapshots, which get a final snapshot when the JVM
+    * shuts down. Only weakly referenced, so scheduling snapshots does not keep
+    * a cache alive after the application is done with it.
+    */
+   private static final List<ScheduledSnapshot> scheduled = new CopyOnWriteArrayList<>();
+
+   private CacheSnapshot()
+   {
+   }
+
+   /**
+    * Receives the entries of a cache, see {@link CommandCache#doExportCache(EntryConsumer)}.
+    */
+   @FunctionalInterface
+   public interface EntryConsumer<K,F>
+   {
+      /**
+       * @param key Cache key
+       * @param value Value from the underlying cache
+       * @param expiresAt Time the entry expires in epoch milliseconds, or
+       *                  {@link Long#MAX_VALUE} if it does not expire.
+       */
+      void accept(K key, F value, long expiresAt);
+   }
+
+   /**
+    * Writes every entry of the cache to the given file.
+    * @param cache Cache to snapshot.
+    * @param file Snapshot file, replaced if it exists.
+    * @return Number of entries written.
+    * @throws IOException If the file cannot be written.
+    */
+   public static <K,F> int write(CommandCache<K,F,?> cache, Path file) throws IOException
+   {
+      Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+      if(file.getParent() != null)
+      {
+         Files.createDirectories(file.getParent());
+      }
+
+      int count;
+
+      try(MappedWriter writer = new MappedWriter(FileChannel.open(tempFile,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)))
+      {
+         cache.doExportCache((key, value, expiresAt) ->
+         {
+            try
+            {
+               writer.write(serialize(key, value, expiresAt));
+            }
+            catch(IOException e)
+            {
+               LOG.debug("Unable to snapshot key {} of cache {}, skipping it", key, cache.getName(), e);
+            }
+         });
+
+         count = writer.finish();
+      }
+
+      Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      return count;
+   }
+
+   /**
+    * Reads the entries from the given file that have not yet expired into the
+    * cache. The file is read with Java serialization, so it must come from a
+    * trusted source, see the class documentation.
+    * @param cache Cache to restore.
+    * @param file Snapshot file.
+    * @return Number of entries restored, or zero if there is no snapshot.
+    * @throws IOException If the file cannot be read or is not a snapshot.
+    */
+   public static <K,F> int read(CommandCache<K,F,?> cache, Path file) throws IOException
+   {
+      if(!Files.exists(file))
+      {
+         return 0;
+      }
+
+      int restored = 0;
+      long now = System.currentTimeMillis();
+
+      try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()));
+
+         if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+         {
+            throw new IOException("Not a cache snapshot: " + file);
+         }
+
+         int count = header.getInt();
+         long end = HEADER_SIZE + header.getLong();
+
+         MappedReader reader = new MappedReader(channel, Math.min(end, channel.size()));
+
+         for(int i = 0; i < count; i++)
+         {
+            byte[] bytes;
+
+            try
+            {
+               bytes = reader.read();
+            }
+            catch(IOException e)
+            {
+               LOG.warn("Cache snapshot {} ends after {} of {} entries, restoring only those", file, i, count);
+               break;
+            }
+
+            try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+            {
+               K key = (K)input.readObject();
+               F value = (F)input.readObject();
+               long expiresAt = input.readLong();
+
+               if(expiresAt > now && cache.doImportCache(key, value, expiresAt))
+               {
+                  restored++;
+               }
+            }
+            catch(IOException | ClassNotFoundException | ClassCastException e)
+            {
+               LOG.debug("Unable to restore an entry of cache {}, skipping it", cache.getName(), e);
+            }
+         }
+      }
+
+      return restored;
+   }
+
+   /**
+    * Writes a snapshot of the cache every {@link CommandCacheConfig#getSnapshotInterval()}
+    * seconds on a shared daemon thread, and once more when the JVM shuts down,
+    * for as long as the cache is still in use.
+    * @param cache Cache to snapshot.
+    */
+   static void schedule(CommandCache<?,?,?> cache)
+   {
+      long interval = Math.max(1, cache.getConfig().getSnapshotInterval());
+      ScheduledSnapshot snapshot = new ScheduledSnapshot(cache);
+
+      scheduled.add(snapshot);
+      snapshot.future = Scheduler.executor.scheduleWithFixedDelay(snapshot, interval, interval, TimeUnit.SECONDS);
+   }
+
+   private static byte[] serialize(Object key, Object value, long expiresAt) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      try(ObjectOutputStream output = new ObjectOutputStream(bytes))
+      {
+         output.writeObject(key);
+         output.writeObject(value);
+         output.writeLong(expiresAt);
+      }
+
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Holder for the snapshot thread, so it is created lazily and only once.
+    */
+   private static final class Scheduler
+   {
+      private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r ->
+      {
+         Thread thread = new Thread(r, "robusto-cache-snapshot");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      static
+      {
+         Runtime.getRuntime().addShutdownHook(new Thread(
+               () -> scheduled.forEach(ScheduledSnapshot::run),
+               "robusto-cache-snapshot-shutdown"));
+      }
+   }
+
+   /**
+    * Periodic snapshot of a cache, which stops itself once the cache has been
+    * garbage collected.
+    */
+   private static final class ScheduledSnapshot implements Runnable
+   {
+      private final WeakReference<CommandCache<?,?,?>> cache;
+
+      private volatile ScheduledFuture<?> future;
+
+      private ScheduledSnapshot(CommandCache<?,?,?> cache)
+      {
+         this.cache = new WeakReference<>(cache);
+      }
+
+      @Override
+      public void run()
+      {
+         CommandCache<?,?,?> target = cache.get();
+
+         if(target != null)
+         {
+            target.writeSnapshot();
+            return;
+         }
+
+         scheduled.remove(this);
+
+         if(future != null)
+         {
+            future.cancel(false);
+         }
+      }
+   }
+
+   /**
+    * Appends length prefixed entries to a file, mapping a chunk of it at a
+    * time, and writes the header last.
+    */
+   private static final class MappedWriter implements AutoCloseable
+   {
+      private final FileChannel channel;
+
+      private MappedByteBuffer buffer = null;
+
+      private long bufferStart = HEADER_SIZE;
+
+      private int count = 0;
+
+      private MappedWriter(FileChannel channel)
+      {
+         this.channel = channel;
+      }
+
+      private void write(byte[] bytes) throws IOException
+      {
+         int needed = 4 + bytes.length;
+
+         if(buffer == null || buffer.remaining() < needed)
+         {
+            long position = buffer == null ? HEADER_SIZE : bufferStart + buffer.position();
+
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(CHUNK_SIZE, needed));
+            bufferStart = position;
+         }
+
+         buffer.putInt(bytes.length);
+         buffer.put(bytes);
+         count++;
+      }
+
+      /**
+       * Writes the header and flushes the file to disk.
+       * @return Number of entries written.
+       */
+      private int finish() throws IOException
+      {
+         long dataLength = buffer == null ? 0 : bufferStart + buffer.position() - HEADER_SIZE;
+
+         if(buffer != null)
+         {
+            buffer.force();
+         }
+
+         MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+         header.putInt(MAGIC);
+         header.putInt(VERSION);
+         header.putInt(count);
+         header.putLong(dataLength);
+         header.force();
+
+         try
+         {
+            channel.truncate(HEADER_SIZE + dataLength);
+         }
+         catch(IOException e)
+         {
+            //
+            // Some platforms cannot shrink a file that is still mapped, which
+            // only leaves unused space since the header records the length
+            //
+         }
+
+         return count;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         channel.close();
+      }
+   }
+
+   /**
+    * Reads length prefixed entries from a file, mapping a chunk of it at a
+    * time.
+    */
+   private static final class MappedReader
+   {
+      private final FileChannel channel;
+
+      private final long end;
+
+      private MappedByteBuffer buffer = null;
+
+      private long bufferStart = HEADER_SIZE;
+
+      private MappedReader(FileChannel channel, long end)
+      {
+         this.channel = channel;
+         this.end     = end;
+      }
+
+      private byte[] read() throws IOException
+      {
+         ensure(4);
+         int length = buffer.getInt();
+
+         ensure(length);
+         byte[] bytes = new byte[length];
+         buffer.get(bytes);
+
+         return bytes;
+      }
+
+      private void ensure(int needed) throws IOException
+      {
+         if(buffer != null && buffer.remaining() >= needed)
+         {
+            return;
+         }
+
+         long position = buffer == null ? HEADER_SIZE : bufferStart + buffer.position();
+
+         if(position + needed > end)
+         {
+            throw new IOException("Cache snapshot is truncated");
+         }
+
+         buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(end - position, Math.max(CHUNK_SIZE, needed)));
+         bufferStart = position;
+      }
+   }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.Arrays;
+
+/**
+ * Point in time statistics for a {@link CommandCache}, see
+ * {@link CommandCache#getCacheStats()}. Counts are totals since the cache was
+ * created.
+ * <br/><br/>
+ * Load times are kept as a histogram with fixed buckets (see
+ * {@link #getLoadTimeBuckets()}), so percentiles are only as precise as the
+ * bucket they fall in.
+ */
+public final class CacheStats
+{
+   /**
+    * Upper bounds of the load time histogram buckets, in milliseconds. Loads
+    * longer than the last bound go into one more overflow bucket.
+    */
+   private static final long[] LOAD_TIME_BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+   private final long hitCount;
+
+   private final long missCount;
+
+   private final long negativeHitCount;
+
+   private final long staleHitCount;
+
+   private final long evictionCount;
+
+   private final long putFailureCount;
+
+   private final long size;
+
+   private final long weight;
+
+   private final long[] loadTimeCounts;
+
+   private final long totalLoadTime;
+
+   private final long maxLoadTime;
+
+   CacheStats(long hitCount, long missCount, long negativeHitCount, long staleHitCount, long evictionCount,
+              long putFailureCount, long size, long weight, long[] loadTimeCounts, long totalLoadTime, long maxLoadTime)
+   {
+      this.hitCount         = hitCount;
+      this.missCount        = missCount;
+      this.negativeHitCount = negativeHitCount;
+      this.staleHitCount    = staleHitCount;
+      this.evictionCount    = evictionCount;
+      this.putFailureCount  = putFailureCount;
+      this.size             = size;
+      this.weight           = weight;
+      this.loadTimeCounts   = loadTimeCounts;
+      this.totalLoadTime    = totalLoadTime;
+      this.maxLoadTime      = maxLoadTime;
+   }
+
+   /**
+    * Number of gets that returned a cached value.
+    * @return Hit count.
+    */
+   public long getHitCount()
+   {
+      return hitCount;
+   }
+
+   /**
+    * Number of gets that found nothing, or only a stale or expired value.
+    * @return Miss count.
+    */
+   public long getMissCount()
+   {
+      return missCount;
+   }
+
+   /**
+    * Number of gets for keys remembered as known to be absent, see
+    * {@link CommandCacheConfig#isNegativeCaching()}.
+    * @return Negative hit count.
+    */
+   public long getNegativeHitCount()
+   {
+      return negativeHitCount;
+   }
+
+   /**
+    * Number of stale values served after a get missed on them, see
+    * {@link CommandCache#getStaleCache(Object, boolean)}. Each of these is
+    * also counted once as a miss, by the get that came before it.
+    * @return Stale hit count.
+    */
+   public long getStaleHitCount()
+   {
+      return staleHitCount;
+   }
+
+   /**
+    * Total number of gets.
+    * @return Request count.
+    */
+   public long getRequestCount()
+   {
+      return hitCount + missCount + negativeHitCount;
+   }
+
+   /**
+    * Fraction of gets that did not need a remote call, counting negative hits
+    * along with hits.
+    * @return Hit rate between 0 and 1, or 1 if there have been no gets.
+    */
+   public double getHitRate()
+   {
+      long requests = getRequestCount();
+      return requests == 0 ? 1.0 : (double)(hitCount + negativeHitCount) / requests;
+   }
+
+   /**
+    * Number of entries the cache removed to make room or because they
+    * expired, as reported by the implementation. Caches that cannot tell
+    * report zero.
+    * @return Eviction count.
+    */
+   public long getEvictionCount()
+   {
+      return evictionCount;
+   }
+
+   /**
+    * Number of values that could not be put into the underlying cache,
+    * including puts dropped or failed by the write behind queue.
+    * @return Put failure count.
+    */
+   public long getPutFailureCount()
+   {
+      return putFailureCount;
+   }
+
+   /**
+    * Number of entries currently in the cache.
+    * @return Size, or -1 if the cache cannot tell.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    * Memory taken up by the entries currently in the cache, in bytes.
+    * @return Weight, or -1 if the cache does not track it.
+    */
+   public long getWeight()
+   {
+      return weight;
+   }
+
+   /**
+    * Number of values loaded into the cache with a known load time.
+    * @return Load count.
+    */
+   public long getLoadCount()
+   {
+      long count = 0;
+
+      for(long bucket : loadTimeCounts)
+      {
+         count += bucket;
+      }
+
+      return count;
+   }
+
+   /**
+    * Sum of all load times, in milliseconds.
+    * @return Total load time.
+    */
+   public long getTotalLoadTime()
+   {
+      return totalLoadTime;
+   }
+
+   /**
+    * Average load time, in milliseconds.
+    * @return Mean load time, or 0 if nothing was loaded.
+    */
+   public double getMeanLoadTime()
+   {
+      long count = getLoadCount();
+      return count == 0 ? 0 : (double)totalLoadTime / count;
+   }
+
+   /**
+    * Longest load time, in milliseconds.
+    * @return Max load time.
+    */
+   public long getMaxLoadTime()
+   {
+      return maxLoadTime;
+   }
+
+   /**
+    * Estimates a load time percentile as the upper bound of the histogram
+    * bucket it falls in, or the longest load time if that is lower.
+    * @param percentile Percentile between 0 and 1, e.g. 0.99.
+    * @return Load time in milliseconds, or 0 if nothing was loaded.
+    */
+   public long getLoadTimePercentile(double percentile)
+   {
+      long count = getLoadCount();
+
+      if(count == 0)
+      {
+         return 0;
+      }
+
+      long rank = (long)Math.ceil(percentile * count);
+      long seen = 0;
+
+      for(int i = 0; i < LOAD_TIME_BUCKETS.length; i++)
+      {
+         seen += loadTimeCounts[i];
+
+         if(seen >= rank)
+         {
+            return Math.min(LOAD_TIME_BUCKETS[i], maxLoadTime);
+         }
+      }
+
+      return maxLoadTime;
+   }
+
+   /**
+    * Upper bounds of the load time histogram buckets, in milliseconds.
+    * @return Bucket bounds.
+    */
+   public static long[] getLoadTimeBuckets()
+   {
+      return LOAD_TIME_BUCKETS.clone();
+   }
+
+   /**
+    * Number of loads in each histogram bucket. Has one more element than
+    * {@link #getLoadTimeBuckets()}, for loads longer than the last bound.
+    * @return Load counts by bucket.
+    */
+   public long[] getLoadTimeCounts()
+   {
+      return loadTimeCounts.clone();
+   }
+
+   /**
+    * Finds the histogram bucket for a load time.
+    */
+   static int bucketOf(long loadMillis)
+   {
+      int index = Arrays.binarySearch(LOAD_TIME_BUCKETS, loadMillis);
+      return index >= 0 ? index : -index - 1;
+   }
+
+   /**
+    * Number of buckets in the load time histogram, including the overflow.
+    */
+   static int bucketCount()
+   {
+      return LOAD_TIME_BUCKETS.length + 1;
+   }
+
+   @Override
+   public String toString()
+   {
+      return new StringBuilder("CacheStats{")
+            .append("hits=").append(hitCount)
+            .append(", misses=").append(missCount)
+            .append(", negativeHits=").append(negativeHitCount)
+            .append(", staleHits=").append(staleHitCount)
+            .append(", evictions=").append(evictionCount)
+            .append(", putFailures=").append(putFailureCount)
+            .append(", size=").append(size)
+            .append(", weight=").append(weight)
+            .append(", loads=").append(getLoadCount())
+            .append(", meanLoadTime=").append(getMeanLoadTime())
+            .append(", maxLoadTime=").append(maxLoadTime)
+            .append("}")
+            .toString();
+   }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the running counts behind {@link CacheStats} for a single cache.
+ * Every method may be called from many threads at once.
+ */
+final class CacheStatsCounter
+{
+   private final LongAdder hits = new LongAdder();
+
+   private final LongAdder misses = new LongAdder();
+
+   private final LongAdder negativeHits = new LongAdder();
+
+   private final LongAdder staleHits = new LongAdder();
+
+   private final LongAdder evictions = new LongAdder();
+
+   private final LongAdder putFailures = new LongAdder();
+
+   private final AtomicLongArray loadTimeCounts = new AtomicLongArray(CacheStats.bucketCount());
+
+   private final LongAdder totalLoadTime = new LongAdder();
+
+   private final LongAccumulator maxLoadTime = new LongAccumulator(Math::max, 0);
+
+   void recordHit()
+   {
+      hits.increment();
+   }
+
+   void recordMiss()
+   {
+      misses.increment();
+   }
+
+   void recordNegativeHit()
+   {
+      negativeHits.increment();
+   }
+
+   void recordStaleHit()
+   {
+      staleHits.increment();
+   }
+
+   void recordEvictions(long count)
+   {
+      evictions.add(count);
+   }
+
+   void recordPutFailures(long count)
+   {
+      putFailures.add(count);
+   }
+
+   void recordLoad(long loadMillis)
+   {
+      loadTimeCounts.incrementAndGet(CacheStats.bucketOf(loadMillis));
+      totalLoadTime.add(loadMillis);
+      maxLoadTime.accumulate(loadMillis);
+   }
+
+   /**
+    * Captures the current counts.
+    * @param size Current number of entries.
+    * @param weight Current weight.
+    * @param otherPutFailures Put failures counted elsewhere.
+    */
+   CacheStats snapshot(long size, long weight, long otherPutFailures)
+   {
+      long[] loads = new long[loadTimeCounts.length()];
+
+      for(int i = 0; i < loads.length; i++)
+      {
+         loads[i] = loadTimeCounts.get(i);
+      }
+
+      return new CacheStats(
+            hits.sum(),
+            misses.sum(),
+            negativeHits.sum(),
+            staleHits.sum(),
+            evictions.sum(),
+            putFailures.sum() + otherPutFailures,
+            size,
+            weight,
+            loads,
+            totalLoadTime.sum(),
+            maxLoadTime.get());
+   }
+}
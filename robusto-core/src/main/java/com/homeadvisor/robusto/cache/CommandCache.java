@@ -15,7 +15,20 @@
  */
 package com.homeadvisor.robusto.cache;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract class for defining basic command caching. This provides the bare
@@ -38,6 +51,14 @@ import java.util.Optional;
  */
 public abstract class CommandCache<K,F,T>
 {
+   private final static Logger LOG = LoggerFactory.getLogger(CommandCache.class);
+
+   /**
+    * Maximum number of refreshes waiting for a thread in the default refresh
+    * executor.
+    */
+   private static final int REFRESH_QUEUE_SIZE = 100;
+
    /**
     * Unique name for this cache.
     */
@@ -59,10 +80,71 @@ public abstract class CommandCache<K,F,T>
     */
    private CachePutHandler<F> cachePutHandler = null;
 
+   /**
+    * Coalesces concurrent remote calls for the same key when
+    * {@link CommandCacheConfig#isSingleFlightEnabled()} is set. Shared by
+    * every command that uses this cache.
+    */
+   private final SingleFlight<K> singleFlight = new SingleFlight<>();
+
+   /**
+    * Runs background refreshes of entries in this cache. Created the first
+    * time it is needed unless one is provided.
+    */
+   private volatile Executor refreshExecutor = null;
+
+   /**
+    * Keys whose remote call returned null, see {@link CommandCacheConfig#isNegativeCaching()}.
+    * Created the first time it is needed.
+    */
+   private volatile BoundedCommandCache<K,Boolean,Boolean> negativeCache = null;
+
+   /**
+    * Puts waiting to be written in the background, see {@link CommandCacheConfig#isWriteBehind()}.
+    * Created the first time it is needed.
+    */
+   private volatile WriteBehindQueue<K,F> writeBehindQueue = null;
+
+   /**
+    * Results of the {@link CacheGetHandler} by key, see {@link CommandCacheConfig#isMemoizingTranslations()}.
+    * Created the first time it is needed.
+    */
+   private volatile BoundedCommandCache<K,Translation<F,T>,Translation<F,T>> translationMemo = null;
+
+   /**
+    * Set once periodic snapshots have been scheduled, so they only ever are
+    * once.
+    */
+   private boolean snapshotsScheduled = false;
+
+   /**
+    * Running counts behind {@link #getCacheStats()}.
+    */
+   private final CacheStatsCounter stats = new CacheStatsCounter();
+
    public CommandCache(String cacheName, CommandCacheConfig cacheConfig)
    {
       this.cacheName = cacheName;
       this.cacheConfig = cacheConfig;
+
+      //
+      // Jitter and early expiration work on the write time of timestamped
+      // values, so without a soft or hard expiration they would silently do
+      // nothing (unless the underlying cache jitters its own expiration)
+      //
+
+      if(!cacheConfig.isTimestamped())
+      {
+         if(cacheConfig.getExpirationJitter() > 0 && !cacheConfig.isExpirationJittered())
+         {
+            LOG.warn("Ignoring expirationJitter of cache {}, it requires softExpiration or hardExpiration", cacheName);
+         }
+
+         if(cacheConfig.getEarlyExpiration() > 0)
+         {
+            LOG.warn("Ignoring earlyExpiration of cache {}, it requires softExpiration or hardExpiration", cacheName);
+         }
+      }
    }
 
    /**
@@ -114,34 +196,444 @@ public abstract class CommandCache<K,F,T>
       return cacheConfig;
    }
 
+   /**
+    * Provides access to the {@link SingleFlight} used to coalesce concurrent
+    * misses on this cache. Useful for reporting how many remote calls were
+    * coalesced.
+    * @return Single flight group for this cache.
+    */
+   public SingleFlight<K> getSingleFlight()
+   {
+      return singleFlight;
+   }
+
+   /**
+    * Provides the executor used to refresh entries in the background, either
+    * because they are stale (see {@link CommandCacheConfig#isStaleWhileRevalidate()})
+    * or due for a refresh (see {@link CommandCacheConfig#getRefreshAhead()}).
+    * By default this is a small dedicated pool of {@link CommandCacheConfig#getRefreshThreads()}
+    * daemon threads with a bounded queue, which rejects refreshes once full
+    * so that a burst of hot keys cannot pile up work.
+    * @return Refresh executor.
+    */
+   public Executor getRefreshExecutor()
+   {
+      if(refreshExecutor == null)
+      {
+         synchronized(this)
+         {
+            if(refreshExecutor == null)
+            {
+               AtomicInteger threadCount = new AtomicInteger();
+
+               ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                     getConfig().getRefreshThreads(),
+                     getConfig().getRefreshThreads(),
+                     60,
+                     TimeUnit.SECONDS,
+                     new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE),
+                     r ->
+                     {
+                        Thread thread = new Thread(r, "robusto-refresh-" + cacheName + "-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                     });
+
+               executor.allowCoreThreadTimeOut(true);
+               refreshExecutor = executor;
+            }
+         }
+      }
+
+      return refreshExecutor;
+   }
+
+   /**
+    * Replace the executor used for background refreshes. The executor should
+    * reject work it cannot take on soon rather than queue it indefinitely.
+    * @param refreshExecutor Refresh executor.
+    */
+   public void setRefreshExecutor(Executor refreshExecutor)
+   {
+      this.refreshExecutor = refreshExecutor;
+   }
+
+   /**
+    * Provides access to the keys remembered as known to be absent.
+    * @return Negative cache, or null if negative caching is not enabled.
+    */
+   public BoundedCommandCache<K,Boolean,Boolean> getNegativeCache()
+   {
+      if(negativeCache == null && getConfig().isNegativeCaching())
+      {
+         synchronized(this)
+         {
+            if(negativeCache == null)
+            {
+               negativeCache = new BoundedCommandCache<>(
+                     cacheName + ".negative",
+                     new BoundedCommandCacheConfig(getConfig().getNegativeExpiration(), getConfig().getNegativeMaxSize()));
+            }
+         }
+      }
+
+      return negativeCache;
+   }
+
+   /**
+    * Provides access to the puts waiting to be written in the background,
+    * along with counts of puts that were written or dropped. Once the queue
+    * is {@link WriteBehindQueue#close() closed}, puts are written directly.
+    * @return Write behind queue, or null if write behind is not enabled.
+    */
+   public WriteBehindQueue<K,F> getWriteBehindQueue()
+   {
+      if(writeBehindQueue == null && getConfig().isWriteBehind())
+      {
+         synchronized(this)
+         {
+            if(writeBehindQueue == null)
+            {
+               writeBehindQueue = new WriteBehindQueue<>(
+                     cacheName,
+                     getConfig().getWriteBehindQueueSize(),
+                     getConfig().getWriteBehindBatchSize(),
+                     this,
+                     CommandCache::doPutAllCache);
+            }
+         }
+      }
+
+      return writeBehindQueue;
+   }
+
+   /**
+    * Writes the entries of this cache to its {@link CommandCacheConfig#getSnapshotFile()
+    * snapshot file}, replacing the previous snapshot. Errors are logged rather
+    * than thrown, since a missing snapshot only means a cold start.
+    * @return Number of entries written.
+    */
+   public int writeSnapshot()
+   {
+      if(!getConfig().isSnapshotting())
+      {
+         return 0;
+      }
+
+      try
+      {
+         int count = CacheSnapshot.write(this, Paths.get(getConfig().getSnapshotFile()));
+         LOG.debug("Wrote {} entries of cache {} to snapshot", count, cacheName);
+         return count;
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to write snapshot of cache {}", cacheName, e);
+         return 0;
+      }
+   }
+
+   /**
+    * Puts the entries from this cache's {@link CommandCacheConfig#getSnapshotFile()
+    * snapshot file} that have not yet expired back into the cache. Errors are
+    * logged rather than thrown, and leave the cache to start cold.
+    * @return Number of entries restored.
+    */
+   public int restoreSnapshot()
+   {
+      if(!getConfig().isSnapshotting())
+      {
+         return 0;
+      }
+
+      try
+      {
+         return CacheSnapshot.read(this, Paths.get(getConfig().getSnapshotFile()));
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to restore snapshot of cache {}, starting empty", cacheName, e);
+         return 0;
+      }
+   }
+
+   /**
+    * Starts writing a snapshot of this cache every {@link CommandCacheConfig#getSnapshotInterval()}
+    * seconds, and once more when the JVM shuts down. Does nothing if snapshots
+    * are not configured or already scheduled.
+    */
+   public synchronized void scheduleSnapshots()
+   {
+      if(getConfig().isSnapshotting() && !snapshotsScheduled)
+      {
+         snapshotsScheduled = true;
+         CacheSnapshot.schedule(this);
+      }
+   }
+
+   /**
+    * Provides the current statistics for this cache: gets, loads, evictions,
+    * put failures, and its size and weight as reported by the implementation
+    * (see {@link #doGetSize()} and {@link #doGetWeight()}).
+    * @return Snapshot of the cache statistics.
+    */
+   public CacheStats getCacheStats()
+   {
+      WriteBehindQueue<K,F> queue = writeBehindQueue;
+      long queueFailures = queue != null ? queue.getDroppedCount() + queue.getFailedCount() : 0;
+
+      return stats.snapshot(doGetSize(), doGetWeight(), queueFailures);
+   }
+
    /**
     * Public interface for getting values from the underlying cache. This does
     * the work of passing values through any registered {@link CacheGetHandler}
-    * after calling {@link #doGetCache(Object)}.
+    * after calling {@link #doGetCache(Object)}. Entries that are stale (see
+    * {@link CommandCacheConfig#getSoftExpiration()}) are treated as misses.
+    * <br/><br/>
+    * A miss returns null, while a key that is known to be absent (see
+    * {@link CommandCacheConfig#isNegativeCaching()}) returns an empty Optional,
+    * which is also what is passed to the {@link CacheGetHandler}.
     * @param key Cache key
     * @return Result of cache get
     */
    public Optional<T> getCache(K key)
    {
+      return getCache(key, null);
+   }
+
+   /**
+    * Same as {@link #getCache(Object)}, but also tells the caller when the
+    * entry is close enough to going stale that it should be reloaded (see
+    * {@link CommandCacheConfig#getRefreshAhead()}).
+    * @param key Cache key
+    * @param onRefreshDue Optional callback, invoked before returning a hit that
+    *                     is due for a refresh.
+    * @return Result of cache get
+    */
+   public Optional<T> getCache(K key, Runnable onRefreshDue)
+   {
+      Optional<F> cacheValue = doGetCache(key);
+      boolean knownAbsent = false;
+
+      if((cacheValue == null || !cacheValue.isPresent()) && isKnownAbsent(key))
+      {
+         cacheValue = Optional.empty();
+         knownAbsent = true;
+      }
+
+      if(onRefreshDue != null && isRefreshDue(cacheValue))
+      {
+         onRefreshDue.run();
+      }
+
+      return recordGet(translate(key, checkAge(cacheValue, false, false), knownAbsent), knownAbsent);
+   }
+
+   /**
+    * Like {@link #getCache(Object)}, but also returns entries that are stale.
+    * Used to serve stale values while they are refreshed, or when a remote
+    * call fails, once {@link #getCache(Object)} has already missed and been
+    * counted as a miss. So a lookup that finds a stale value is only counted
+    * as a {@link CacheStats#getStaleHitCount() stale hit}, and one that does
+    * not is not counted again.
+    * @param key Cache key
+    * @param pastHardExpiration Also return entries that are past the hard
+    *                           expiration, as long as the underlying cache
+    *                           still holds them.
+    * @return Result of cache get
+    */
+   public Optional<T> getStaleCache(K key, boolean pastHardExpiration)
+   {
+      Optional<T> result = translate(key, checkAge(doGetCache(key), true, pastHardExpiration), false);
+
+      if(result != null && result.isPresent())
+      {
+         stats.recordStaleHit();
+      }
+
+      return result;
+   }
+
+   /**
+    * Bulk version of {@link #getCache(Object)}, which looks up all the keys
+    * with as few calls to the underlying cache as it allows (see
+    * {@link #doGetAllCache(Collection)}).
+    * @param keys Cache keys
+    * @return Result of cache get for every key that is a hit or known to be
+    * absent, in the same order as the keys. Misses are left out.
+    */
+   public Map<K,Optional<T>> getAll(Collection<K> keys)
+   {
+      Map<K,Optional<F>> cacheValues = doGetAllCache(keys);
+      Map<K,Optional<T>> results = new LinkedHashMap<>();
+
+      for(K key : keys)
+      {
+         Optional<F> cacheValue = cacheValues.get(key);
+         boolean knownAbsent = false;
+
+         if((cacheValue == null || !cacheValue.isPresent()) && isKnownAbsent(key))
+         {
+            cacheValue = Optional.empty();
+            knownAbsent = true;
+         }
+
+         Optional<T> result = recordGet(translate(key, checkAge(cacheValue, false, false), knownAbsent), knownAbsent);
+
+         if(result != null)
+         {
+            results.put(key, result);
+         }
+      }
+
+      return results;
+   }
+
+   /**
+    * Counts the result of a get as a hit, miss or negative hit.
+    * @return The result, unchanged.
+    */
+   private Optional<T> recordGet(Optional<T> result, boolean knownAbsent)
+   {
+      if(knownAbsent)
+      {
+         stats.recordNegativeHit();
+      }
+      else if(result == null)
+      {
+         stats.recordMiss();
+      }
+      else
+      {
+         stats.recordHit();
+      }
+
+      return result;
+   }
+
+   /**
+    * Determines if the key was remembered as known to be absent.
+    */
+   private boolean isKnownAbsent(K key)
+   {
+      BoundedCommandCache<K,Boolean,Boolean> negatives = getNegativeCache();
+      return negatives != null && negatives.doGetCache(key) != null;
+   }
+
+   /**
+    * Determines if a value from the underlying cache is within the refresh
+    * ahead window at the end of its time to live.
+    */
+   private boolean isRefreshDue(Optional<F> cacheValue)
+   {
+      if(!getConfig().isRefreshAhead() || cacheValue == null || !(cacheValue.orElse(null) instanceof CacheEntry))
+      {
+         return false;
+      }
+
+      CacheEntry<F> entry = (CacheEntry<F>)cacheValue.get();
+      long ttlMillis = expiresAfter(entry, getConfig().getSoftExpiration() > 0 ? getConfig().getSoftExpiration() : getConfig().getHardExpiration());
+      long age = System.currentTimeMillis() - entry.getWrittenAt();
+
+      return age >= ttlMillis - ttlMillis * getConfig().getRefreshAhead() / 100 && age < ttlMillis;
+   }
+
+   /**
+    * Unwraps a {@link CacheEntry}, treating it as a miss if it is too old.
+    * Values that were not written with a timestamp are always returned.
+    */
+   private Optional<F> checkAge(Optional<F> cacheValue, boolean allowStale, boolean allowExpired)
+   {
+      if(cacheValue == null || !(cacheValue.orElse(null) instanceof CacheEntry))
+      {
+         return cacheValue;
+      }
+
+      CacheEntry<F> entry = (CacheEntry<F>)cacheValue.get();
+      int softExpiration = getConfig().getSoftExpiration();
+      int hardExpiration = getConfig().getHardExpiration();
+      long age = System.currentTimeMillis() - entry.getWrittenAt();
+
       //
-      // Lookup the value from the underlying cache
+      // Lookups for fresh entries may see an entry as older than it is, so
+      // it expires early for one of them (see CommandCacheConfig.getEarlyExpiration()).
+      // That moves up whichever expiration ends freshness: the soft one if
+      // set, otherwise the hard one.
       //
 
-      Optional<F> cacheValue = doGetCache(key);
+      long freshAge = allowStale ? age : age + earlyExpirationMillis(entry);
+
+      if(!allowExpired && hardExpiration > 0 && (softExpiration > 0 ? age : freshAge) >= expiresAfter(entry, hardExpiration))
+      {
+         return null;
+      }
+
+      if(!allowStale && softExpiration > 0 && freshAge >= expiresAfter(entry, softExpiration))
+      {
+         return null;
+      }
 
+      return Optional.ofNullable(entry.getValue());
+   }
+
+   /**
+    * Converts an expiration in seconds into the time to live of the entry,
+    * shortened by the jitter it was written with.
+    */
+   private long expiresAfter(CacheEntry<F> entry, int expiration)
+   {
+      return (long)(expiration * 1000L * (1 - entry.getExpirationJitter()));
+   }
+
+   /**
+    * Picks how much earlier than its actual age an entry should be treated
+    * as expired on this lookup. This is the XFetch rule: the load time of
+    * the entry, scaled by the configured weight and by an exponentially
+    * distributed random factor, so it is usually small but occasionally
+    * large enough to expire the entry early.
+    */
+   private long earlyExpirationMillis(CacheEntry<F> entry)
+   {
+      if(getConfig().getEarlyExpiration() <= 0 || entry.getLoadMillis() <= 0)
+      {
+         return 0;
+      }
+
+      double random = 1 - ThreadLocalRandom.current().nextDouble();
+
+      return (long)(entry.getLoadMillis() * getConfig().getEarlyExpiration() * -Math.log(random));
+   }
+
+   /**
+    * Passes a value from the underlying cache through the registered
+    * {@link CacheGetHandler}, if any. Without a handler, an empty value is a
+    * miss unless the key is known to be absent.
+    */
+   private Optional<T> translate(K key, Optional<F> cacheValue, boolean knownAbsent)
+   {
       //
       // Prepare to translate the result, if applicable. If no handler
       // is present F and T *must* be the same type so we can safely
       // cast between the two.
       //
 
+      if(getCacheGetHandler() != null && getConfig().isMemoizingTranslations())
+      {
+         return translateMemoized(key, cacheValue);
+      }
+
       if(getCacheGetHandler() != null && cacheValue != null)
       {
           return getCacheGetHandler().afterCacheGet(cacheValue);
       }
       else
       {
-         if(cacheValue !=null && cacheValue.isPresent())
+         if(knownAbsent)
+         {
+            return Optional.empty();
+         }
+         else if(cacheValue != null && cacheValue.isPresent())
          {
             return Optional.ofNullable((T) cacheValue.get());
          }
@@ -152,25 +644,208 @@ public abstract class CommandCache<K,F,T>
       }
    }
 
+   /**
+    * Reuses the last translation for the key as long as the underlying cache
+    * still returns the very same value it was made from. A new value, or one
+    * that is gone or too old, means the memoized translation is dropped.
+    * Comparing by identity keeps hits to a single extra map lookup, and
+    * caches that hand out a new copy on every get simply translate each time.
+    */
+   private Optional<T> translateMemoized(K key, Optional<F> cacheValue)
+   {
+      BoundedCommandCache<K,Translation<F,T>,Translation<F,T>> memo = getTranslationMemo();
+      Optional<Translation<F,T>> memoized = memo.doGetCache(key);
+      F source = cacheValue != null ? cacheValue.orElse(null) : null;
+
+      if(source == null)
+      {
+         if(memoized != null)
+         {
+            memo.invalidate(key);
+         }
+
+         return cacheValue != null ? getCacheGetHandler().afterCacheGet(cacheValue) : null;
+      }
+
+      if(memoized != null && memoized.get().source == source)
+      {
+         return memoized.get().translated;
+      }
+
+      Optional<T> translated = getCacheGetHandler().afterCacheGet(cacheValue);
+      memo.doPutCache(key, new Translation<>(source, translated));
+
+      return translated;
+   }
+
+   /**
+    * Provides the memo of translated values, creating it the first time.
+    */
+   private BoundedCommandCache<K,Translation<F,T>,Translation<F,T>> getTranslationMemo()
+   {
+      if(translationMemo == null)
+      {
+         synchronized(this)
+         {
+            if(translationMemo == null)
+            {
+               translationMemo = new BoundedCommandCache<>(
+                     cacheName + ".translations",
+                     new BoundedCommandCacheConfig(0, getConfig().getTranslationMemoSize()));
+            }
+         }
+      }
+
+      return translationMemo;
+   }
+
    /**
     * Public interface for putting values into the underlying cache. This does
     * the work of passing the value through any registered {@link CachePutHandler}
     * prior to calling {@link #doPutCache(Object, Object)}. If the put handler
     * returns null, this method simply returns true and skips caching entirely.
+    * A null value is remembered as known to be absent instead, without going
+    * through the put handler, when {@link CommandCacheConfig#isNegativeCaching()
+    * negative caching} is enabled.
+    * <br/><br/>
+    * With {@link CommandCacheConfig#isWriteBehind() write behind} enabled the
+    * value is only queued, and is written by a background thread.
     * @param key Cache key
     * @param value Value to cache
     * @return True if successful, false if any error occur from underlying cache
-    * put.
+    * put or the write behind queue is full.
     */
    public boolean putCache(K key, F value)
    {
+      return put(key, value, 0);
+   }
+
+   /**
+    * Same as {@link #putCache(Object, Object)}, but also records how long it
+    * took to load the value, which makes hot keys that are expensive to load
+    * more likely to be reloaded early (see {@link CommandCacheConfig#getEarlyExpiration()}).
+    * The load time is also recorded in the {@link #getCacheStats() statistics}.
+    * @param key Cache key
+    * @param value Value to cache
+    * @param loadMillis Time it took to load the value, in milliseconds.
+    * @return True if successful, false if any error occur from underlying cache
+    * put or the write behind queue is full.
+    */
+   public boolean putCache(K key, F value, long loadMillis)
+   {
+      stats.recordLoad(loadMillis);
+      return put(key, value, loadMillis);
+   }
+
+   /**
+    * Does the work of a single put, see {@link #putCache(Object, Object, long)}.
+    */
+   private boolean put(K key, F value, long loadMillis)
+   {
+      value = preparePut(key, value, loadMillis);
+
+      if(value == null)
+      {
+         return true;
+      }
+
+      WriteBehindQueue<K,F> queue = getWriteBehindQueue();
+
+      if(queue != null && !queue.isClosed())
+      {
+         return queue.offer(key, value);
+      }
+
+      boolean success = doPutCache(key, value);
+
+      if(!success)
+      {
+         stats.recordPutFailures(1);
+      }
+
+      return success;
+   }
+
+   /**
+    * Bulk version of {@link #putCache(Object, Object)}, which puts all the
+    * values with as few calls to the underlying cache as it allows (see
+    * {@link #doPutAllCache(Map)}). Each value goes through the same handling
+    * as a single put, including being queued when write behind is enabled.
+    * @param values Values to cache by key, which may include nulls.
+    * @return True if successful, false if any error occur from underlying cache
+    * put.
+    */
+   public boolean putAll(Map<K,F> values)
+   {
+      Map<K,F> prepared = new LinkedHashMap<>();
+
+      values.forEach((key, value) ->
+      {
+         value = preparePut(key, value, 0);
+
+         if(value != null)
+         {
+            prepared.put(key, value);
+         }
+      });
+
+      WriteBehindQueue<K,F> queue = getWriteBehindQueue();
+
+      if(queue != null && !queue.isClosed())
+      {
+         boolean success = true;
+
+         for(Map.Entry<K,F> entry : prepared.entrySet())
+         {
+            success &= queue.offer(entry.getKey(), entry.getValue());
+         }
+
+         return success;
+      }
+
+      if(prepared.isEmpty() || doPutAllCache(prepared))
+      {
+         return true;
+      }
+
+      stats.recordPutFailures(prepared.size());
+      return false;
+   }
+
+   /**
+    * Does the work shared by single and bulk puts before the value is handed
+    * to the underlying cache.
+    * @return Value to put into the underlying cache, or null if there is
+    * nothing more to do.
+    */
+   private F preparePut(K key, F value, long loadMillis)
+   {
+      //
+      // A null result is remembered as known to be absent if negative caching
+      // is enabled. Negative entries are kept locally, so this applies even
+      // when puts to the cache itself are disabled.
+      //
+
+      BoundedCommandCache<K,Boolean,Boolean> negatives = getNegativeCache();
+
+      if(value == null && negatives != null)
+      {
+         negatives.doPutCache(key, Boolean.TRUE);
+         return null;
+      }
+
       //
       // Some caches may wish to avoid puts
       //
 
       if(getConfig().isPutEnabled() == false)
       {
-         return true;
+         return null;
+      }
+
+      if(negatives != null && negatives.doGetCache(key) != null)
+      {
+         negatives.invalidate(key);
       }
 
       if(getCachePutHandler() != null)
@@ -178,11 +853,34 @@ public abstract class CommandCache<K,F,T>
          value = getCachePutHandler().beforeCachePut(value);
       }
 
-      return value == null ? true : doPutCache(key, value);
+      if(value == null)
+      {
+         return null;
+      }
+
+      //
+      // Record the write time if entries can go stale or expire by age,
+      // along with what it takes to spread out their expirations
+      //
+
+      if(getConfig().isTimestamped())
+      {
+         float jitter = getConfig().getExpirationJitter() > 0
+               ? ThreadLocalRandom.current().nextFloat() * getConfig().getExpirationJitter() / 100
+               : 0;
+
+         value = (F) new CacheEntry<>(value, System.currentTimeMillis(), jitter, loadMillis);
+      }
+
+      return value;
    }
 
    /**
     * Gets a value from the cache for a the given key if it exists.
+    * Implementations may return either null or an empty Optional when the
+    * key is not present; both count as a miss. Keys known to be absent are
+    * tracked separately (see {@link CommandCacheConfig#isNegativeCaching()}),
+    * so an empty Optional never means a cached null.
     * @param key Key to use for lookup.
     * @return Value from cache, or null if the key is not present.
     */
@@ -196,6 +894,108 @@ public abstract class CommandCache<K,F,T>
     */
    protected abstract boolean doPutCache(K key, F value);
 
+   /**
+    * Gets the values from the cache for all the given keys that exist. The
+    * default implementation calls {@link #doGetCache(Object)} for each key,
+    * implementations should override this when the underlying cache can
+    * fetch many keys at once.
+    * @param keys Keys to use for lookup.
+    * @return Values from cache by key. Keys that are not present are left out.
+    */
+   protected Map<K,Optional<F>> doGetAllCache(Collection<K> keys)
+   {
+      Map<K,Optional<F>> results = new LinkedHashMap<>();
+
+      for(K key : keys)
+      {
+         Optional<F> value = doGetCache(key);
+
+         if(value != null)
+         {
+            results.put(key, value);
+         }
+      }
+
+      return results;
+   }
+
+   /**
+    * Put many key/value pairs into the cache. The default implementation
+    * calls {@link #doPutCache(Object, Object)} for each pair, implementations
+    * should override this when the underlying cache can store many values at
+    * once.
+    * @param values Values by key
+    * @return True if the operation succeeded for every pair, false otherwise.
+    */
+   protected boolean doPutAllCache(Map<K,F> values)
+   {
+      boolean success = true;
+
+      for(Map.Entry<K,F> entry : values.entrySet())
+      {
+         success &= doPutCache(entry.getKey(), entry.getValue());
+      }
+
+      return success;
+   }
+
+   /**
+    * Passes every entry in the cache to the consumer, along with the time it
+    * expires, to write a snapshot. The default implementation passes nothing,
+    * so caches that do not override it have empty snapshots.
+    * @param consumer Receives each entry.
+    */
+   protected void doExportCache(CacheSnapshot.EntryConsumer<K,F> consumer)
+   {
+
+   }
+
+   /**
+    * Put an entry restored from a snapshot into the cache, expiring it at the
+    * given time if the cache supports expiring individual entries. The
+    * default implementation calls {@link #doPutCache(Object, Object)}.
+    * @param key Key
+    * @param value Value
+    * @param expiresAt Time the entry expires in epoch milliseconds, or
+    *                  {@link Long#MAX_VALUE} if it does not expire.
+    * @return True if the operation succeeded, false otherwise.
+    */
+   protected boolean doImportCache(K key, F value, long expiresAt)
+   {
+      return doPutCache(key, value);
+   }
+
+   /**
+    * Number of entries currently in the cache, for {@link #getCacheStats()}.
+    * The default implementation returns -1, meaning the size is not known.
+    * @return Number of entries, or -1.
+    */
+   protected long doGetSize()
+   {
+      return -1;
+   }
+
+   /**
+    * Memory taken up by the entries currently in the cache, in bytes, for
+    * {@link #getCacheStats()}. The default implementation returns -1, meaning
+    * the weight is not tracked.
+    * @return Weight in bytes, or -1.
+    */
+   protected long doGetWeight()
+   {
+      return -1;
+   }
+
+   /**
+    * Implementations call this whenever entries are removed to make room or
+    * because they expired, so they show up in {@link #getCacheStats()}.
+    * @param count Number of entries evicted.
+    */
+   protected void recordEvictions(long count)
+   {
+      stats.recordEvictions(count);
+   }
+
    /**
     * Allows clients to purge all entries from the cache.
     */
@@ -206,4 +1006,21 @@ public abstract class CommandCache<K,F,T>
     * @return List of key/value pairs.
     */
    public abstract String dumpCache();
+
+   /**
+    * A value translated by the {@link CacheGetHandler}, along with the value
+    * from the underlying cache it was made from.
+    */
+   private static class Translation<F,T>
+   {
+      private final F source;
+
+      private final Optional<T> translated;
+
+      private Translation(F source, Optional<T> translated)
+      {
+         this.source     = source;
+         this.translated = translated;
+      }
+   }
 }
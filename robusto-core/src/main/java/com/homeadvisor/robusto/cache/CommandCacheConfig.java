@@ -28,6 +28,38 @@ public class CommandCacheConfig
 
    protected static final String CONFIG_PUT_ENABLED = "putEnabled";
 
+   protected static final String CONFIG_SINGLE_FLIGHT = "singleFlight";
+
+   protected static final String CONFIG_SOFT_EXPIRATION = "softExpiration";
+
+   protected static final String CONFIG_HARD_EXPIRATION = "hardExpiration";
+
+   protected static final String CONFIG_STALE_WHILE_REVALIDATE = "staleWhileRevalidate";
+
+   protected static final String CONFIG_SERVE_STALE_ON_ERROR = "serveStaleOnError";
+
+   protected static final String CONFIG_REFRESH_AHEAD = "refreshAhead";
+
+   protected static final String CONFIG_REFRESH_THREADS = "refreshThreads";
+
+   protected static final String CONFIG_EXPIRATION_JITTER = "expirationJitter";
+
+   protected static final String CONFIG_EARLY_EXPIRATION = "earlyExpiration";
+
+   protected static final String CONFIG_NEGATIVE_EXPIRATION = "negativeExpiration";
+
+   protected static final String CONFIG_NEGATIVE_MAX_VALUE = "negativeMaxValue";
+
+   protected static final String CONFIG_WRITE_BEHIND_QUEUE_SIZE = "writeBehindQueueSize";
+
+   protected static final String CONFIG_WRITE_BEHIND_BATCH_SIZE = "writeBehindBatchSize";
+
+   protected static final String CONFIG_TRANSLATION_MEMO_SIZE = "translationMemoSize";
+
+   protected static final String CONFIG_SNAPSHOT_FILE = "snapshotFile";
+
+   protected static final String CONFIG_SNAPSHOT_INTERVAL = "snapshotInterval";
+
    /**
     * Indicate if this cache should be used at all.
     */
@@ -43,6 +75,133 @@ public class CommandCacheConfig
     */
    private boolean putEnabled = true;
 
+   /**
+    * A flag indicating if concurrent misses for the same key should be
+    * coalesced into a single remote call (default is false). When enabled,
+    * only one command per key calls the remote service at a time and all
+    * other commands that miss on that key wait for and share its result.
+    */
+   private boolean singleFlightEnabled = false;
+
+   /**
+    * Age after which an entry is stale (in seconds), and no longer returned
+    * as a normal cache hit. Zero means entries never go stale. This is on top
+    * of whatever expiration the underlying cache applies.
+    */
+   private int softExpiration = 0;
+
+   /**
+    * Age after which an entry is no longer served while it is revalidated
+    * (in seconds). Zero means stale entries are served for as long as the
+    * underlying cache holds them.
+    */
+   private int hardExpiration = 0;
+
+   /**
+    * A flag indicating if stale entries should be returned right away while
+    * the command refreshes them in the background (default is true). When
+    * false, stale entries are treated as misses, but can still be served by
+    * {@link #isServeStaleOnError()}.
+    */
+   private boolean staleWhileRevalidate = true;
+
+   /**
+    * A flag indicating if the last cached value for a key should be returned
+    * when the remote call fails (default is false), no matter how old it is,
+    * as long as the underlying cache still holds it.
+    */
+   private boolean serveStaleOnError = false;
+
+   /**
+    * Percentage of an entry's time to live at the end of which a cache hit
+    * triggers a background refresh of the entry (default is 0, disabled).
+    * The time to live is the soft expiration if one is set, otherwise the
+    * hard expiration. For example, with a soft expiration of 60 seconds and
+    * refresh ahead of 20, hits on entries older than 48 seconds reload them.
+    */
+   private int refreshAhead = 0;
+
+   /**
+    * Percentage by which each entry's time to live is randomly shortened
+    * when it is written (default is 0, disabled). For example, with a soft
+    * expiration of 60 seconds and a jitter of 10, entries go stale anywhere
+    * between 54 and 60 seconds after they are written, so entries written
+    * in the same burst do not all expire in the same second. Only applies
+    * when a soft or hard expiration is set, or when the underlying cache
+    * jitters its own expiration (see {@link #isExpirationJittered()});
+    * otherwise it is ignored and a warning is logged when the cache is
+    * created.
+    */
+   private int expirationJitter = 0;
+
+   /**
+    * Weight of probabilistic early expiration (default is 0, disabled),
+    * where 1 is a good starting point. Each lookup treats an entry as
+    * already expired with a probability that rises as its expiration
+    * approaches, and rises sooner for keys whose remote call took longer,
+    * so that usually a single caller recomputes a hot key shortly before it
+    * would have expired for everyone. Only applies when a soft or hard
+    * expiration is set, since it works on the write time those store with
+    * each entry; otherwise it is ignored and a warning is logged when the
+    * cache is created.
+    */
+   private double earlyExpiration = 0;
+
+   /**
+    * Number of threads dedicated to background refreshes for the cache.
+    */
+   private int refreshThreads = 2;
+
+   /**
+    * Time that a key whose remote call returned null is remembered as known
+    * to be absent (in seconds). Zero, the default, means null results are not
+    * cached at all. This is independent of any other expiration, and is
+    * usually much shorter.
+    */
+   private int negativeExpiration = 0;
+
+   /**
+    * Maximum number of keys remembered as known to be absent. Kept separate
+    * from the size of the cache so lookups for keys that do not exist cannot
+    * push out real values.
+    */
+   private int negativeMaxSize = 1000;
+
+   /**
+    * Maximum number of puts waiting to be written to the cache in the
+    * background. Zero, the default, means puts are written on the calling
+    * thread. Once the queue is full further puts are dropped rather than
+    * slowing down callers.
+    */
+   private int writeBehindQueueSize = 0;
+
+   /**
+    * Maximum number of queued puts written to the cache in a single bulk put.
+    */
+   private int writeBehindBatchSize = 100;
+
+   /**
+    * Maximum number of values translated by the {@link CacheGetHandler} that
+    * are kept, so hits on hot keys can skip the handler. Only suitable for
+    * handlers that always give the same result for the same value. Zero, the
+    * default, means the handler runs on every hit.
+    */
+   private int translationMemoSize = 0;
+
+   /**
+    * File that the entries of the cache are periodically written to, and
+    * restored from when the cache is created by an {@link com.homeadvisor.robusto.AbstractApiClient}.
+    * Null, the default, means no snapshots are taken. Restoring uses Java
+    * deserialization, so the file must not be writable by anyone the
+    * application does not trust, see {@link CacheSnapshot}.
+    */
+   private String snapshotFile = null;
+
+   /**
+    * Time between snapshots (in seconds).
+    */
+   private int snapshotInterval = 60;
+
    public boolean isEnabled()
    {
       return enabled;
@@ -63,6 +222,272 @@ public class CommandCacheConfig
       this.putEnabled = putEnabled;
    }
 
+   public boolean isSingleFlightEnabled()
+   {
+      return singleFlightEnabled;
+   }
+
+   public void setSingleFlightEnabled(boolean singleFlightEnabled)
+   {
+      this.singleFlightEnabled = singleFlightEnabled;
+   }
+
+   public int getSoftExpiration()
+   {
+      return softExpiration;
+   }
+
+   public void setSoftExpiration(int softExpiration)
+   {
+      this.softExpiration = softExpiration;
+   }
+
+   public int getHardExpiration()
+   {
+      return hardExpiration;
+   }
+
+   public void setHardExpiration(int hardExpiration)
+   {
+      this.hardExpiration = hardExpiration;
+   }
+
+   /**
+    * Determines if stale entries should be served while they are refreshed,
+    * which only applies when a soft expiration is set.
+    * @return True if stale-while-revalidate is in effect.
+    */
+   public boolean isStaleWhileRevalidate()
+   {
+      return staleWhileRevalidate && softExpiration > 0;
+   }
+
+   public void setStaleWhileRevalidate(boolean staleWhileRevalidate)
+   {
+      this.staleWhileRevalidate = staleWhileRevalidate;
+   }
+
+   public boolean isServeStaleOnError()
+   {
+      return serveStaleOnError;
+   }
+
+   public void setServeStaleOnError(boolean serveStaleOnError)
+   {
+      this.serveStaleOnError = serveStaleOnError;
+   }
+
+   public int getRefreshAhead()
+   {
+      return refreshAhead;
+   }
+
+   public void setRefreshAhead(int refreshAhead)
+   {
+      this.refreshAhead = Math.max(0, Math.min(100, refreshAhead));
+   }
+
+   /**
+    * Determines if hits near the end of an entry's time to live should
+    * trigger a background refresh, which requires an expiration to be set.
+    * @return True if refresh ahead is in effect.
+    */
+   public boolean isRefreshAhead()
+   {
+      return refreshAhead > 0 && isTimestamped();
+   }
+
+   public int getExpirationJitter()
+   {
+      return expirationJitter;
+   }
+
+   public void setExpirationJitter(int expirationJitter)
+   {
+      this.expirationJitter = Math.max(0, Math.min(100, expirationJitter));
+   }
+
+   public double getEarlyExpiration()
+   {
+      return earlyExpiration;
+   }
+
+   public void setEarlyExpiration(double earlyExpiration)
+   {
+      this.earlyExpiration = Math.max(0, earlyExpiration);
+   }
+
+   public int getRefreshThreads()
+   {
+      return refreshThreads;
+   }
+
+   public void setRefreshThreads(int refreshThreads)
+   {
+      this.refreshThreads = refreshThreads;
+   }
+
+   public int getNegativeExpiration()
+   {
+      return negativeExpiration;
+   }
+
+   public void setNegativeExpiration(int negativeExpiration)
+   {
+      this.negativeExpiration = negativeExpiration;
+   }
+
+   public int getNegativeMaxSize()
+   {
+      return negativeMaxSize;
+   }
+
+   public void setNegativeMaxSize(int negativeMaxSize)
+   {
+      this.negativeMaxSize = negativeMaxSize;
+   }
+
+   public int getWriteBehindQueueSize()
+   {
+      return writeBehindQueueSize;
+   }
+
+   public void setWriteBehindQueueSize(int writeBehindQueueSize)
+   {
+      this.writeBehindQueueSize = writeBehindQueueSize;
+   }
+
+   public int getWriteBehindBatchSize()
+   {
+      return writeBehindBatchSize;
+   }
+
+   public void setWriteBehindBatchSize(int writeBehindBatchSize)
+   {
+      this.writeBehindBatchSize = writeBehindBatchSize;
+   }
+
+   public int getTranslationMemoSize()
+   {
+      return translationMemoSize;
+   }
+
+   public void setTranslationMemoSize(int translationMemoSize)
+   {
+      this.translationMemoSize = translationMemoSize;
+   }
+
+   public String getSnapshotFile()
+   {
+      return snapshotFile;
+   }
+
+   public void setSnapshotFile(String snapshotFile)
+   {
+      this.snapshotFile = snapshotFile;
+   }
+
+   public int getSnapshotInterval()
+   {
+      return snapshotInterval;
+   }
+
+   public void setSnapshotInterval(int snapshotInterval)
+   {
+      this.snapshotInterval = snapshotInterval;
+   }
+
+   /**
+    * Determines if the cache should be snapshotted to a file and restored
+    * from it on startup.
+    * @return True if a snapshot file is set.
+    */
+   public boolean isSnapshotting()
+   {
+      return snapshotFile != null && !snapshotFile.isEmpty();
+   }
+
+   /**
+    * Determines if translated values should be kept and reused while the
+    * value they came from is still in the cache.
+    * @return True if translations are memoized.
+    */
+   public boolean isMemoizingTranslations()
+   {
+      return translationMemoSize > 0;
+   }
+
+   /**
+    * Determines if puts should be queued and written in the background.
+    * @return True if write behind is in effect.
+    */
+   public boolean isWriteBehind()
+   {
+      return writeBehindQueueSize > 0;
+   }
+
+   /**
+    * Determines if null results should be cached as known to be absent.
+    * @return True if negative caching is in effect.
+    */
+   public boolean isNegativeCaching()
+   {
+      return negativeExpiration > 0;
+   }
+
+   /**
+    * Determines if cached values need to carry their write time, which is
+    * the case whenever entries can go stale or expire by age.
+    * @return True if values are stored as {@link CacheEntry}s.
+    */
+   public boolean isTimestamped()
+   {
+      return softExpiration > 0 || hardExpiration > 0;
+   }
+
+   /**
+    * Determines if the underlying cache applies {@link #getExpirationJitter()}
+    * to an expiration of its own, so the jitter takes effect even when values
+    * are not timestamped. Configs for caches that do should override this.
+    * @return True if the underlying cache jitters its own expiration.
+    */
+   public boolean isExpirationJittered()
+   {
+      return false;
+   }
+
+   /**
+    * Parses a number of bytes, with an optional <code>k</code>, <code>m</code>
+    * or <code>g</code> suffix, for example <code>256m</code>.
+    * @param value Number of bytes.
+    * @return Number of bytes as a long.
+    */
+   public static long parseBytes(String value)
+   {
+      String trimmed = value.trim().toLowerCase();
+      long multiplier = 1;
+
+      switch(trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1))
+      {
+         case 'k':
+            multiplier = 1024L;
+            break;
+         case 'm':
+            multiplier = 1024L * 1024;
+            break;
+         case 'g':
+            multiplier = 1024L * 1024 * 1024;
+            break;
+      }
+
+      if(multiplier > 1)
+      {
+         trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+      }
+
+      return Long.parseLong(trimmed) * multiplier;
+   }
+
    /**
     * Creates a new CommandCacheConfig from the given map of config values. Only
     * values this class cares about will be used, otehr will be ignored.
@@ -73,9 +498,36 @@ public class CommandCacheConfig
    {
       CommandCacheConfig newConfig = new CommandCacheConfig();
 
-      newConfig.setEnabled(Boolean.valueOf(configMap.getOrDefault(CONFIG_ENABLED, "true").toString()));
-      newConfig.setPutEnabled(Boolean.valueOf(configMap.getOrDefault(CONFIG_PUT_ENABLED, "true").toString()));
+      newConfig.applyMap(configMap);
 
       return newConfig;
    }
+
+   /**
+    * Sets the config values common to all caches from the given map of config
+    * values. Extending configs should call this from their own fromMap() so
+    * they pick up the common settings.
+    * @param configMap Map of config key/value pairs.
+    */
+   protected void applyMap(Map<String, Object> configMap)
+   {
+      setEnabled(Boolean.valueOf(configMap.getOrDefault(CONFIG_ENABLED, "true").toString()));
+      setPutEnabled(Boolean.valueOf(configMap.getOrDefault(CONFIG_PUT_ENABLED, "true").toString()));
+      setSingleFlightEnabled(Boolean.valueOf(configMap.getOrDefault(CONFIG_SINGLE_FLIGHT, "false").toString()));
+      setSoftExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_SOFT_EXPIRATION, "0").toString()));
+      setHardExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_HARD_EXPIRATION, "0").toString()));
+      setStaleWhileRevalidate(Boolean.valueOf(configMap.getOrDefault(CONFIG_STALE_WHILE_REVALIDATE, "true").toString()));
+      setServeStaleOnError(Boolean.valueOf(configMap.getOrDefault(CONFIG_SERVE_STALE_ON_ERROR, "false").toString()));
+      setRefreshAhead(Integer.valueOf(configMap.getOrDefault(CONFIG_REFRESH_AHEAD, "0").toString()));
+      setRefreshThreads(Integer.valueOf(configMap.getOrDefault(CONFIG_REFRESH_THREADS, "2").toString()));
+      setExpirationJitter(Integer.valueOf(configMap.getOrDefault(CONFIG_EXPIRATION_JITTER, "0").toString()));
+      setEarlyExpiration(Double.valueOf(configMap.getOrDefault(CONFIG_EARLY_EXPIRATION, "0").toString()));
+      setNegativeExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_NEGATIVE_EXPIRATION, "0").toString()));
+      setNegativeMaxSize(Integer.valueOf(configMap.getOrDefault(CONFIG_NEGATIVE_MAX_VALUE, "1000").toString()));
+      setWriteBehindQueueSize(Integer.valueOf(configMap.getOrDefault(CONFIG_WRITE_BEHIND_QUEUE_SIZE, "0").toString()));
+      setWriteBehindBatchSize(Integer.valueOf(configMap.getOrDefault(CONFIG_WRITE_BEHIND_BATCH_SIZE, "100").toString()));
+      setTranslationMemoSize(Integer.valueOf(configMap.getOrDefault(CONFIG_TRANSLATION_MEMO_SIZE, "0").toString()));
+      setSnapshotFile(configMap.containsKey(CONFIG_SNAPSHOT_FILE) ? configMap.get(CONFIG_SNAPSHOT_FILE).toString() : null);
+      setSnapshotInterval(Integer.valueOf(configMap.getOrDefault(CONFIG_SNAPSHOT_INTERVAL, "60").toString()));
+   }
 }
@@ -21,13 +21,16 @@ import java.util.Optional;
 /**
  * Implementation of {@link CommandCache} backed by a Java HashMap. There is no
  * timeout or expiration, this is really just the simplest form of caching.
+ * Every access locks the map, which keeps it safe to share between threads
+ * (including the snapshot and write behind threads) but makes it a poor fit
+ * for heavy concurrent use, see {@link BoundedCommandCache} for that.
  */
 public class HashMapCommandCache<K,F,T> extends CommandCache<K,F,T>
 {
    /**
     * Underlying mechanism for storing cache data.
     */
-   private HashMap<K,F> cache = new HashMap<>();
+   private final HashMap<K,F> cache = new HashMap<>();
 
    public HashMapCommandCache(String cacheName, CommandCacheConfig cacheConfig)
    {
@@ -37,20 +40,51 @@ public class HashMapCommandCache<K,F,T> extends CommandCache<K,F,T>
    @Override
    protected Optional<F> doGetCache(K key)
    {
-      return cache.containsKey(key) ? Optional.ofNullable(cache.get(key)) : null;
+      synchronized(cache)
+      {
+         return cache.containsKey(key) ? Optional.ofNullable(cache.get(key)) : null;
+      }
    }
 
    @Override
    protected boolean doPutCache(K key, F value)
    {
-      cache.put(key, value);
+      synchronized(cache)
+      {
+         cache.put(key, value);
+      }
       return true;
    }
 
+   @Override
+   protected void doExportCache(CacheSnapshot.EntryConsumer<K,F> consumer)
+   {
+      HashMap<K,F> copy;
+
+      synchronized(cache)
+      {
+         copy = new HashMap<>(cache);
+      }
+
+      copy.forEach((key, value) -> consumer.accept(key, value, Long.MAX_VALUE));
+   }
+
+   @Override
+   protected long doGetSize()
+   {
+      synchronized(cache)
+      {
+         return cache.size();
+      }
+   }
+
    @Override
    public void emptyCache()
    {
-      cache.clear();
+      synchronized(cache)
+      {
+         cache.clear();
+      }
    }
 
    @Override
@@ -58,7 +92,10 @@ public class HashMapCommandCache<K,F,T> extends CommandCache<K,F,T>
    {
       StringBuilder output = new StringBuilder("Contents of cache ").append(getName()).append("\n").append("\n");
 
-      cache.forEach( (key, value) -> output.append(key).append(" : ").append(value).append("\n") );
+      synchronized(cache)
+      {
+         cache.forEach( (key, value) -> output.append(key).append(" : ").append(value).append("\n") );
+      }
 
       return output.toString();
    }
@@ -25,6 +25,6 @@ public class HashMapCommandCacheFactory implements CommandCacheFactory<HashMapCo
    @Override
    public HashMapCommandCache create(String name, Map<String, Object> config)
    {
-      return new HashMapCommandCache(name, new CommandCacheConfig());
+      return new HashMapCommandCache(name, CommandCacheConfig.fromMap(config));
    }
 }
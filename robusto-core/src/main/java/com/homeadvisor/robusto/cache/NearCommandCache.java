@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implementation of {@link CommandCache} that keeps a small, short lived
+ * {@link BoundedCommandCache} in front of any other (usually remote)
+ * CommandCache. Hits in the local tier never leave the JVM; misses fall
+ * through to the remote tier, and remote hits are copied into the local tier.
+ * <br/><br/>
+ * Local copies expire after {@link NearCommandCacheConfig#getLocalExpiration()}
+ * seconds. If the remote cache is a {@link CacheInvalidationSource}, local
+ * copies are also dropped as soon as the remote cache reports a change. A
+ * remote read that races with an invalidation of the same key never leaves
+ * its older value behind in the local tier.
+ * <br/><br/>
+ * Values pass between the two tiers exactly as the remote cache stores them,
+ * in both directions, so any {@link CacheGetHandler}, {@link CachePutHandler},
+ * expiration or write behind settings should be set on this cache rather than
+ * the remote one. The only remote setting honored is whether puts are enabled.
+ */
+public class NearCommandCache<K,F,T> extends CommandCache<K,F,T>
+{
+   /**
+    * Number of invalidation generations, must be a power of two.
+    */
+   private static final int GENERATION_STRIPES = 1024;
+
+   private final BoundedCommandCache<K,F,F> localCache;
+
+   private final CommandCache<K,F,?> remoteCache;
+
+   private final LongAdder localHits = new LongAdder();
+
+   private final LongAdder remoteHits = new LongAdder();
+
+   private final LongAdder misses = new LongAdder();
+
+   /**
+    * Bumped for a key each time it is invalidated. Keys share stripes, so an
+    * invalidation may also keep an unrelated key out of the local tier for
+    * one read, which only costs a remote get.
+    */
+   private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+   public NearCommandCache(String cacheName, NearCommandCacheConfig cacheConfig, CommandCache<K,F,?> remoteCache)
+   {
+      super(cacheName, cacheConfig);
+
+      this.localCache  = new BoundedCommandCache<>(cacheName + ".local", cacheConfig.getLocalConfig());
+      this.remoteCache = remoteCache;
+
+      if(cacheConfig.isInvalidateOnRemoteEvents() && remoteCache instanceof CacheInvalidationSource)
+      {
+         ((CacheInvalidationSource<K>)remoteCache).addInvalidationListener(this::invalidate);
+      }
+   }
+
+   @Override
+   protected Optional<F> doGetCache(K key)
+   {
+      Optional<F> value = localCache.doGetCache(key);
+
+      if(value != null)
+      {
+         localHits.increment();
+         return value;
+      }
+
+      long generation = generations.get(stripe(key));
+
+      value = remoteCache.doGetCache(key);
+
+      if(value != null)
+      {
+         remoteHits.increment();
+         putLocal(key, value.orElse(null), generation);
+         return value;
+      }
+
+      misses.increment();
+      return null;
+   }
+
+   /**
+    * Puts the value into the remote cache, unless puts are disabled there,
+    * and always into the local tier.
+    */
+   @Override
+   protected boolean doPutCache(K key, F value)
+   {
+      boolean result = !remoteCache.getConfig().isPutEnabled() || remoteCache.doPutCache(key, value);
+      localCache.doPutCache(key, value);
+      return result;
+   }
+
+   /**
+    * Answers what it can from the local tier, and fetches all the remaining
+    * keys from the remote tier in one bulk get.
+    */
+   @Override
+   protected Map<K,Optional<F>> doGetAllCache(Collection<K> keys)
+   {
+      Map<K,Optional<F>> results = localCache.doGetAllCache(keys);
+      localHits.add(results.size());
+
+      List<K> localMisses = new ArrayList<>();
+
+      for(K key : keys)
+      {
+         if(!results.containsKey(key))
+         {
+            localMisses.add(key);
+         }
+      }
+
+      if(localMisses.isEmpty())
+      {
+         return results;
+      }
+
+      long[] missGenerations = new long[localMisses.size()];
+
+      for(int i = 0; i < missGenerations.length; i++)
+      {
+         missGenerations[i] = generations.get(stripe(localMisses.get(i)));
+      }
+
+      Map<K,Optional<F>> remoteResults = remoteCache.doGetAllCache(localMisses);
+      remoteHits.add(remoteResults.size());
+      misses.add(localMisses.size() - remoteResults.size());
+
+      for(int i = 0; i < missGenerations.length; i++)
+      {
+         K key = localMisses.get(i);
+         Optional<F> value = remoteResults.get(key);
+
+         if(value != null)
+         {
+            putLocal(key, value.orElse(null), missGenerations[i]);
+         }
+      }
+
+      results.putAll(remoteResults);
+
+      return results;
+   }
+
+   /**
+    * Puts the values into the remote cache in one bulk put, unless puts are
+    * disabled there, and always into the local tier.
+    */
+   @Override
+   protected boolean doPutAllCache(Map<K,F> values)
+   {
+      boolean result = !remoteCache.getConfig().isPutEnabled() || remoteCache.doPutAllCache(values);
+      values.forEach(localCache::doPutCache);
+      return result;
+   }
+
+   /**
+    * Drops the local copy of an entry, so the next get goes to the remote
+    * cache.
+    * @param key Key to drop.
+    */
+   public void invalidate(K key)
+   {
+      generations.incrementAndGet(stripe(key));
+      localCache.invalidate(key);
+   }
+
+   /**
+    * Copies a value read from the remote tier into the local tier, then takes
+    * it out again if the key was invalidated at any point since the remote
+    * read started. An invalidation either bumps the generation before the
+    * check below, or runs its own local invalidate after this put.
+    * @param generation Generation of the key before the remote read.
+    */
+   private void putLocal(K key, F value, long generation)
+   {
+      localCache.doPutCache(key, value);
+
+      if(generations.get(stripe(key)) != generation)
+      {
+         localCache.invalidate(key);
+      }
+   }
+
+   private static int stripe(Object key)
+   {
+      int hash = key == null ? 0 : key.hashCode();
+      return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+   }
+
+   /**
+    * Provides access to the remote tier.
+    * @return Remote cache.
+    */
+   public CommandCache<K,F,?> getRemoteCache()
+   {
+      return remoteCache;
+   }
+
+   /**
+    * Number of gets answered by the local tier.
+    * @return Local hit count.
+    */
+   public long getLocalHitCount()
+   {
+      return localHits.sum();
+   }
+
+   /**
+    * Number of gets that missed locally and were answered by the remote tier.
+    * @return Remote hit count.
+    */
+   public long getRemoteHitCount()
+   {
+      return remoteHits.sum();
+   }
+
+   /**
+    * Number of gets that missed in both tiers.
+    * @return Miss count.
+    */
+   public long getMissCount()
+   {
+      return misses.sum();
+   }
+
+   /**
+    * Reports the size of the remote tier, which holds every entry.
+    */
+   @Override
+   protected long doGetSize()
+   {
+      return remoteCache.doGetSize();
+   }
+
+   /**
+    * Reports the weight of the remote tier, which holds every entry.
+    */
+   @Override
+   protected long doGetWeight()
+   {
+      return remoteCache.doGetWeight();
+   }
+
+   @Override
+   public void emptyCache()
+   {
+      localCache.emptyCache();
+      remoteCache.emptyCache();
+   }
+
+   @Override
+   public String dumpCache()
+   {
+      return localCache.dumpCache() + "\n" + remoteCache.dumpCache();
+   }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.Map;
+
+/**
+ * Extension of {@link CommandCacheConfig} that adds the settings for the
+ * local tier of a {@link NearCommandCache}.
+ */
+public class NearCommandCacheConfig extends CommandCacheConfig
+{
+   protected static final String CONFIG_LOCAL_MAX_VALUE = "local.maxValue";
+
+   protected static final String CONFIG_LOCAL_EXPIRATION = "local.expiration";
+
+   protected static final String CONFIG_INVALIDATE = "invalidate";
+
+   /**
+    * Maximum number of entries held in the local tier.
+    */
+   private int localMaxSize = 1000;
+
+   /**
+    * Time after an entry is copied into the local tier before it expires (in
+    * seconds). Kept short so that, without invalidation events, local copies
+    * are never far behind the remote cache.
+    */
+   private int localExpiration = 5;
+
+   /**
+    * Drop local copies when the remote cache reports that an entry changed,
+    * if the remote cache is a {@link CacheInvalidationSource}.
+    */
+   private boolean invalidateOnRemoteEvents = true;
+
+   public int getLocalMaxSize()
+   {
+      return localMaxSize;
+   }
+
+   public void setLocalMaxSize(int localMaxSize)
+   {
+      this.localMaxSize = localMaxSize;
+   }
+
+   public int getLocalExpiration()
+   {
+      return localExpiration;
+   }
+
+   public void setLocalExpiration(int localExpiration)
+   {
+      this.localExpiration = localExpiration;
+   }
+
+   public boolean isInvalidateOnRemoteEvents()
+   {
+      return invalidateOnRemoteEvents;
+   }
+
+   public void setInvalidateOnRemoteEvents(boolean invalidateOnRemoteEvents)
+   {
+      this.invalidateOnRemoteEvents = invalidateOnRemoteEvents;
+   }
+
+   /**
+    * Builds the config for the local tier.
+    * @return New BoundedCommandCacheConfig.
+    */
+   public BoundedCommandCacheConfig getLocalConfig()
+   {
+      return new BoundedCommandCacheConfig(localExpiration, localMaxSize);
+   }
+
+   /**
+    * Creates a new NearCommandCacheConfig from the given map of config values.
+    * Only values this class cares about will be used, others will be ignored.
+    * @param configMap Map of config key/value pairs.
+    * @return New NearCommandCacheConfig.
+    */
+   public static NearCommandCacheConfig fromMap(Map<String, Object> configMap)
+   {
+      NearCommandCacheConfig newConfig = new NearCommandCacheConfig();
+
+      newConfig.applyMap(configMap);
+      newConfig.setLocalMaxSize(Integer.valueOf(configMap.getOrDefault(CONFIG_LOCAL_MAX_VALUE, "1000").toString()));
+      newConfig.setLocalExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_LOCAL_EXPIRATION, "5").toString()));
+      newConfig.setInvalidateOnRemoteEvents(Boolean.valueOf(configMap.getOrDefault(CONFIG_INVALIDATE, "true").toString()));
+
+      return newConfig;
+   }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates a new instance of a {@link NearCommandCache}. The remote tier is
+ * built by another {@link CommandCacheFactory}, named by the <code>remote</code>
+ * config value, and is passed every config value starting with
+ * <code>remote.</code> with that prefix removed. For example, a Coherence
+ * cache with a local tier of 500 entries that expire after 2 seconds:
+ * <br/>
+ * <pre>remote=com.homeadvisor.robusto.cache.coherence.CoherenceCommandCacheFactory,remote.name=my-cache,local.maxValue=500,local.expiration=2</pre>
+ */
+public class NearCommandCacheFactory implements CommandCacheFactory<NearCommandCache>
+{
+   private static final String CONFIG_REMOTE = "remote";
+
+   private static final String REMOTE_PREFIX = "remote.";
+
+   @Override
+   public NearCommandCache create(String name, Map<String, Object> config)
+   {
+      Object remoteType = config.get(CONFIG_REMOTE);
+
+      if(remoteType == null)
+      {
+         throw new IllegalArgumentException("Near cache " + name + " requires a remote cache factory");
+      }
+
+      Map<String, Object> remoteConfig = new HashMap<>();
+
+      config.forEach((key, value) ->
+      {
+         if(key.startsWith(REMOTE_PREFIX))
+         {
+            remoteConfig.put(key.substring(REMOTE_PREFIX.length()), value);
+         }
+      });
+
+      CommandCache remoteCache;
+
+      try
+      {
+         CommandCacheFactory remoteFactory = (CommandCacheFactory)Class.forName(remoteType.toString()).newInstance();
+         remoteCache = remoteFactory.create(name, remoteConfig);
+      }
+      catch(ReflectiveOperationException e)
+      {
+         throw new IllegalArgumentException("Unable to create remote cache factory " + remoteType, e);
+      }
+
+      return new NearCommandCache(name, NearCommandCacheConfig.fromMap(config), remoteCache);
+   }
+}
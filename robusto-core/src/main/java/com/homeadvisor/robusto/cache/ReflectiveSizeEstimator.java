@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Implementation of {@link SizeEstimator} that walks every object reachable
+ * from the value through its fields and adds up their shallow sizes, counting
+ * objects that are reachable more than once only once. Sizes assume a 64-bit
+ * JVM with compressed object pointers, the default for heaps under 32 GB.
+ * <br/><br/>
+ * Objects that are shared by the whole application rather than owned by the
+ * value, such as classes, class loaders, threads, loggers and enum constants,
+ * are neither counted nor followed, which also keeps the walk from wandering
+ * off into the rest of the heap through them. Anything else reachable is
+ * counted, so a value that references some other large shared object will be
+ * over-estimated. To bound the cost of each estimate the walk stops after
+ * visiting {@link #getMaxObjects()} objects, under-estimating anything bigger.
+ * Fields that cannot be read, which can happen for JDK internals on newer
+ * JVMs, are counted but not followed.
+ */
+public class ReflectiveSizeEstimator implements SizeEstimator
+{
+   /**
+    * Default limit on the number of objects visited per estimate.
+    */
+   public static final int DEFAULT_MAX_OBJECTS = 10000;
+
+   private static final int OBJECT_HEADER = 12;
+
+   private static final int ARRAY_HEADER = 16;
+
+   private static final int REFERENCE = 4;
+
+   /**
+    * Field layout of each class seen, since reflection is slow.
+    */
+   private static final ClassValue<Layout> layouts = new ClassValue<Layout>()
+   {
+      @Override
+      protected Layout computeValue(Class<?> type)
+      {
+         return new Layout(type);
+      }
+   };
+
+   private final int maxObjects;
+
+   public ReflectiveSizeEstimator()
+   {
+      this(DEFAULT_MAX_OBJECTS);
+   }
+
+   /**
+    * @param maxObjects Limit on the number of objects visited per estimate.
+    */
+   public ReflectiveSizeEstimator(int maxObjects)
+   {
+      if(maxObjects <= 0)
+      {
+         throw new IllegalArgumentException("Max objects must be positive");
+      }
+
+      this.maxObjects = maxObjects;
+   }
+
+   /**
+    * @return Limit on the number of objects visited per estimate.
+    */
+   public int getMaxObjects()
+   {
+      return maxObjects;
+   }
+
+   @Override
+   public long estimate(Object value)
+   {
+      if(value == null || isShared(value))
+      {
+         return 0;
+      }
+
+      Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+      ArrayDeque<Object> pending = new ArrayDeque<>();
+      long total = 0;
+      int count = 0;
+
+      visited.add(value);
+      pending.add(value);
+
+      while(!pending.isEmpty() && count++ < maxObjects)
+      {
+         Object current = pending.poll();
+         Class<?> type = current.getClass();
+
+         if(type.isArray())
+         {
+            Class<?> component = type.getComponentType();
+            int length = java.lang.reflect.Array.getLength(current);
+
+            total += align(ARRAY_HEADER + (long)length * sizeOf(component));
+
+            if(!component.isPrimitive())
+            {
+               for(Object element : (Object[])current)
+               {
+                  follow(element, visited, pending);
+               }
+            }
+         }
+         else
+         {
+            Layout layout = layouts.get(type);
+            total += layout.shallowSize;
+
+            for(Field field : layout.references)
+            {
+               try
+               {
+                  follow(field.get(current), visited, pending);
+               }
+               catch(IllegalAccessException e)
+               {
+                  // Counted as a reference, but not followed
+               }
+            }
+         }
+      }
+
+      return total;
+   }
+
+   private static void follow(Object next, Set<Object> visited, ArrayDeque<Object> pending)
+   {
+      if(next != null && !isShared(next) && visited.add(next))
+      {
+         pending.add(next);
+      }
+   }
+
+   /**
+    * Determines if an object belongs to the application as a whole rather
+    * than to any one value, so it should not be counted.
+    */
+   private static boolean isShared(Object object)
+   {
+      return object instanceof Class
+            || object instanceof ClassLoader
+            || object instanceof Thread
+            || object instanceof ThreadGroup
+            || object instanceof Enum
+            || object instanceof org.slf4j.Logger
+            || object instanceof java.util.logging.Logger;
+   }
+
+   private static int sizeOf(Class<?> type)
+   {
+      if(type == long.class || type == double.class)
+      {
+         return 8;
+      }
+      else if(type == int.class || type == float.class)
+      {
+         return 4;
+      }
+      else if(type == short.class || type == char.class)
+      {
+         return 2;
+      }
+      else if(type == byte.class || type == boolean.class)
+      {
+         return 1;
+      }
+
+      return REFERENCE;
+   }
+
+   private static long align(long size)
+   {
+      return (size + 7) & ~7L;
+   }
+
+   /**
+    * Shallow size of a class, and the fields that hold references.
+    */
+   private static final class Layout
+   {
+      private final long shallowSize;
+
+      private final List<Field> references = new ArrayList<>();
+
+      private Layout(Class<?> type)
+      {
+         long size = OBJECT_HEADER;
+
+         for(Class<?> c = type; c != null; c = c.getSuperclass())
+         {
+            for(Field field : c.getDeclaredFields())
+            {
+               if(Modifier.isStatic(field.getModifiers()))
+               {
+                  continue;
+               }
+
+               size += sizeOf(field.getType());
+
+               if(!field.getType().isPrimitive())
+               {
+                  try
+                  {
+                     field.setAccessible(true);
+                     references.add(field);
+                  }
+                  catch(RuntimeException e)
+                  {
+                     // Not accessible on this JVM, counted but not followed
+                  }
+               }
+            }
+         }
+
+         this.shallowSize = align(size);
+      }
+   }
+}
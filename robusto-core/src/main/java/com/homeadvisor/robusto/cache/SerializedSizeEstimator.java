@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Implementation of {@link SizeEstimator} that uses the length of the value
+ * in Java serialization, without keeping the serialized bytes. Values that
+ * cannot be serialized are estimated by a {@link ReflectiveSizeEstimator}
+ * instead.
+ */
+public class SerializedSizeEstimator implements SizeEstimator
+{
+   private final SizeEstimator fallback = new ReflectiveSizeEstimator();
+
+   @Override
+   public long estimate(Object value)
+   {
+      if(value == null)
+      {
+         return 0;
+      }
+
+      CountingOutputStream count = new CountingOutputStream();
+
+      try(ObjectOutputStream output = new ObjectOutputStream(count))
+      {
+         output.writeObject(value);
+      }
+      catch(IOException e)
+      {
+         return fallback.estimate(value);
+      }
+
+      return count.bytes;
+   }
+
+   /**
+    * Discards everything written to it, keeping only the count.
+    */
+   private static final class CountingOutputStream extends OutputStream
+   {
+      private long bytes = 0;
+
+      @Override
+      public void write(int b)
+      {
+         bytes++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len)
+      {
+         bytes += len;
+      }
+   }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import com.homeadvisor.robusto.RetryableApiCommandException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key so that only one of them actually
+ * runs at a time. The first caller for a key becomes the leader and runs the
+ * supplied loader; any caller that arrives while the leader is still running
+ * simply waits for the leader's result (or exception) instead of running its
+ * own loader.
+ * <br/><br/>
+ * This is used by {@link com.homeadvisor.robusto.ApiCommand} to prevent a
+ * thundering herd of remote calls when a hot key misses in a {@link CommandCache}.
+ * See {@link CommandCacheConfig#isSingleFlightEnabled()}.
+ */
+public class SingleFlight<K>
+{
+   private final static Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+   /**
+    * Loads that are currently in progress, keyed by cache key.
+    */
+   private final ConcurrentHashMap<K, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+   /**
+    * Number of loads that were actually executed.
+    */
+   private final AtomicLong executedCount = new AtomicLong();
+
+   /**
+    * Number of callers that were handed the result of another caller's load
+    * instead of executing their own.
+    */
+   private final AtomicLong coalescedCount = new AtomicLong();
+
+   /**
+    * Runs the loader for the given key, unless a load for the same key is
+    * already in progress, in which case this waits for and returns that
+    * result instead.
+    * @param key Key to coalesce loads on.
+    * @param loader Loads the value, only invoked if this caller is the leader.
+    * @return Result of the loader, possibly from another caller.
+    */
+   @SuppressWarnings("unchecked")
+   public <V> V execute(K key, Supplier<V> loader)
+   {
+      CompletableFuture<Object> future = new CompletableFuture<>();
+
+      CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+
+      if(existing != null)
+      {
+         coalescedCount.incrementAndGet();
+
+         LOG.debug("Load of key {} already in flight, waiting for its result", key);
+
+         return (V) await(existing);
+      }
+
+      executedCount.incrementAndGet();
+
+      try
+      {
+         V value = loader.get();
+         future.complete(value);
+         return value;
+      }
+      catch(RuntimeException | Error e)
+      {
+         future.completeExceptionally(e);
+         throw e;
+      }
+      finally
+      {
+         inFlight.remove(key, future);
+      }
+   }
+
+   /**
+    * Non-blocking version of {@link #execute(Object, Supplier)}. The loader
+    * starts the load and returns its future; callers that arrive while the
+    * load is still in progress share its result. Every caller gets its own
+    * dependent future, so cancelling one does not affect the others or the
+    * shared load.
+    * @param key Key to coalesce loads on.
+    * @param loader Starts the load, only invoked if this caller is the leader.
+    * @return Future result of the loader, possibly from another caller.
+    */
+   @SuppressWarnings("unchecked")
+   public <V> CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> loader)
+   {
+      CompletableFuture<Object> future = new CompletableFuture<>();
+
+      CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+
+      if(existing != null)
+      {
+         coalescedCount.incrementAndGet();
+
+         LOG.debug("Load of key {} already in flight, sharing its result", key);
+
+         return existing.thenApply(value -> (V) value);
+      }
+
+      executedCount.incrementAndGet();
+
+      try
+      {
+         loader.get().whenComplete((value, t) ->
+         {
+            inFlight.remove(key, future);
+
+            if(t != null)
+            {
+               future.completeExceptionally(t);
+            }
+            else
+            {
+               future.complete(value);
+            }
+         });
+      }
+      catch(RuntimeException | Error e)
+      {
+         inFlight.remove(key, future);
+         future.completeExceptionally(e);
+      }
+
+      return future.thenApply(value -> (V) value);
+   }
+
+   /**
+    * @return Number of loads that were actually executed.
+    */
+   public long getExecutedCount()
+   {
+      return executedCount.get();
+   }
+
+   /**
+    * @return Number of callers that shared the result of another caller's
+    * load rather than executing their own.
+    */
+   public long getCoalescedCount()
+   {
+      return coalescedCount.get();
+   }
+
+   /**
+    * @return Number of keys currently being loaded.
+    */
+   public int getInFlightCount()
+   {
+      return inFlight.size();
+   }
+
+   /**
+    * Waits on a leader's result, rethrowing its failure as-is when possible so
+    * that retry policies see the same exception types as the leader.
+    */
+   private Object await(CompletableFuture<Object> future)
+   {
+      try
+      {
+         return future.get();
+      }
+      catch(InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new RetryableApiCommandException("Interrupted waiting for in-flight load", e);
+      }
+      catch(ExecutionException e)
+      {
+         if(e.getCause() instanceof RuntimeException)
+         {
+            throw (RuntimeException) e.getCause();
+         }
+
+         if(e.getCause() instanceof Error)
+         {
+            throw (Error) e.getCause();
+         }
+
+         throw new RetryableApiCommandException("In-flight load failed", e.getCause());
+      }
+   }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+/**
+ * Estimates how many bytes of memory a cached value takes up, so caches can
+ * be bounded by memory rather than by number of entries. Implementations
+ * must be safe to call from many threads at once.
+ * <br/><br/>
+ * {@link ReflectiveSizeEstimator} is used by default, and works with any
+ * value. {@link SerializedSizeEstimator} uses the serialized length instead,
+ * which is a closer match for values that are mostly strings and byte
+ * arrays, but costs a full serialization per put.
+ */
+@FunctionalInterface
+public interface SizeEstimator
+{
+   /**
+    * Estimates the size of a value.
+    * @param value Value to estimate, may be null.
+    * @return Estimated size in bytes.
+    */
+   long estimate(Object value);
+}
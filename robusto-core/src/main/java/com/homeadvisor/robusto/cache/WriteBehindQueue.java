@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounded queue of cache puts that are written by a single background thread,
+ * so callers never wait on the underlying cache. The writer takes whatever is
+ * queued, up to {@link CommandCacheConfig#getWriteBehindBatchSize()} puts at a
+ * time, and writes it with one bulk put. If several puts for the same key are
+ * in one batch only the last is written.
+ * <br/><br/>
+ * When the queue is full new puts are dropped, since a cache put that never
+ * happens only costs a later miss. See {@link CommandCacheConfig#isWriteBehind()}.
+ * <br/><br/>
+ * The writer thread runs until {@link #close()} is called, or until the cache
+ * it writes to has been garbage collected when it was created with a weakly
+ * held owner. Queues that are still open when the JVM shuts down are closed
+ * by a shutdown hook, which writes what is left in them.
+ */
+public class WriteBehindQueue<K,F>
+{
+   private final static Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+   /**
+    * How often an idle writer checks whether it has been closed or its owner
+    * has been garbage collected.
+    */
+   private static final long POLL_MILLIS = 1000;
+
+   /**
+    * How long the shutdown hook waits for each queue to be written.
+    */
+   private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+   private final String name;
+
+   private final BlockingQueue<Map.Entry<K,F>> queue;
+
+   private final int batchSize;
+
+   /**
+    * Provides the writer for a batch, which returns false on failure, or null
+    * once the owner of the queue has been garbage collected.
+    */
+   private final Supplier<Predicate<Map<K,F>>> writer;
+
+   private final Thread thread;
+
+   private volatile boolean closed = false;
+
+   /**
+    * Number of puts queued or being written. Only the writer thread ever
+    * writes, so puts for the same key are always written in order.
+    */
+   private final AtomicLong pendingCount = new AtomicLong();
+
+   /**
+    * Number of puts dropped because the queue was full.
+    */
+   private final AtomicLong droppedCount = new AtomicLong();
+
+   /**
+    * Number of puts handed to the underlying cache.
+    */
+   private final AtomicLong writtenCount = new AtomicLong();
+
+   /**
+    * Number of puts in batches that the underlying cache failed to write.
+    */
+   private final AtomicLong failedCount = new AtomicLong();
+
+   /**
+    * Creates a queue that writes through the given writer, which it holds on
+    * to until the queue is closed.
+    * @param name Name of the queue, used for its thread.
+    * @param queueSize Maximum number of puts waiting to be written.
+    * @param batchSize Maximum number of puts written at a time.
+    * @param writer Writes a batch, returning false on failure.
+    */
+   public WriteBehindQueue(String name, int queueSize, int batchSize, Predicate<Map<K,F>> writer)
+   {
+      this(name, queueSize, batchSize, () -> writer);
+   }
+
+   /**
+    * Creates a queue that writes to an owner it only holds weakly, so the
+    * queue and its thread never keep the owner, usually a cache, alive. The
+    * writer thread ends once the owner has been garbage collected.
+    * @param name Name of the queue, used for its thread.
+    * @param queueSize Maximum number of puts waiting to be written.
+    * @param batchSize Maximum number of puts written at a time.
+    * @param owner Object the puts are written to.
+    * @param writer Writes a batch to the owner, returning false on failure.
+    * It must not hold on to the owner itself.
+    */
+   public <O> WriteBehindQueue(String name, int queueSize, int batchSize, O owner, BiPredicate<O, Map<K,F>> writer)
+   {
+      this(name, queueSize, batchSize, weakWriter(owner, writer));
+   }
+
+   private WriteBehindQueue(String name, int queueSize, int batchSize, Supplier<Predicate<Map<K,F>>> writer)
+   {
+      this.name      = name;
+      this.queue     = new ArrayBlockingQueue<>(queueSize);
+      this.batchSize = Math.max(1, batchSize);
+      this.writer    = writer;
+
+      this.thread = new Thread(this::writeLoop, "robusto-write-behind-" + name);
+      this.thread.setDaemon(true);
+
+      Shutdown.open.add(this);
+      this.thread.start();
+   }
+
+   private static <K,F,O> Supplier<Predicate<Map<K,F>>> weakWriter(O owner, BiPredicate<O, Map<K,F>> writer)
+   {
+      WeakReference<O> reference = new WeakReference<>(owner);
+
+      return () ->
+      {
+         O target = reference.get();
+         return target != null ? batch -> writer.test(target, batch) : null;
+      };
+   }
+
+   /**
+    * Queues a put without blocking.
+    * @param key Cache key
+    * @param value Value to cache
+    * @return True if the put was queued, false if it was dropped.
+    */
+   public boolean offer(K key, F value)
+   {
+      if(closed)
+      {
+         droppedCount.incrementAndGet();
+         LOG.debug("Write behind queue {} is closed, dropped put for key {}", name, key);
+         return false;
+      }
+
+      pendingCount.incrementAndGet();
+
+      if(queue.offer(new AbstractMap.SimpleImmutableEntry<>(key, value)))
+      {
+         return true;
+      }
+
+      pendingCount.decrementAndGet();
+
+      droppedCount.incrementAndGet();
+      LOG.debug("Write behind queue full, dropped put for key {}", key);
+      return false;
+   }
+
+   /**
+    * Waits until everything queued so far has been written.
+    * @throws InterruptedException If interrupted while waiting.
+    */
+   public void flush() throws InterruptedException
+   {
+      synchronized(pendingCount)
+      {
+         while(pendingCount.get() > 0)
+         {
+            pendingCount.wait();
+         }
+      }
+   }
+
+   /**
+    * Stops taking new puts, and waits until the ones already queued have been
+    * written and the writer thread has ended. Puts offered after this are
+    * dropped.
+    * @throws InterruptedException If interrupted while waiting.
+    */
+   public void close() throws InterruptedException
+   {
+      closed = true;
+      thread.join();
+   }
+
+   /**
+    * @return True if {@link #close()} has been called.
+    */
+   public boolean isClosed()
+   {
+      return closed;
+   }
+
+   /**
+    * Number of puts waiting to be written.
+    * @return Queue depth.
+    */
+   public int getQueueDepth()
+   {
+      return queue.size();
+   }
+
+   /**
+    * Number of puts dropped because the queue was full.
+    * @return Dropped count.
+    */
+   public long getDroppedCount()
+   {
+      return droppedCount.get();
+   }
+
+   /**
+    * Number of puts handed to the underlying cache.
+    * @return Written count.
+    */
+   public long getWrittenCount()
+   {
+      return writtenCount.get();
+   }
+
+   /**
+    * Number of puts the underlying cache failed to write.
+    * @return Failed count.
+    */
+   public long getFailedCount()
+   {
+      return failedCount.get();
+   }
+
+   /**
+    * Body of the writer thread, which waits for the first put of each batch,
+    * until the queue is closed and empty or its owner is gone.
+    */
+   private void writeLoop()
+   {
+      try
+      {
+         while(!closed || !queue.isEmpty())
+         {
+            try
+            {
+               if(!writeBatch(queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)))
+               {
+                  LOG.debug("Owner of write behind queue {} was garbage collected, stopping", name);
+                  return;
+               }
+            }
+            catch(InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return;
+            }
+            catch(Exception e)
+            {
+               LOG.warn("Unexpected error in write behind thread", e);
+            }
+         }
+      }
+      finally
+      {
+         Shutdown.open.remove(this);
+      }
+   }
+
+   /**
+    * Takes up to a batch of puts from the queue, after the given one, and
+    * writes them with a single bulk put. The writer is only looked up here,
+    * so the writer thread does not hold on to the owner while it waits.
+    * @return False if the owner of the queue has been garbage collected.
+    */
+   private boolean writeBatch(Map.Entry<K,F> first)
+   {
+      Predicate<Map<K,F>> target = writer.get();
+
+      if(target == null)
+      {
+         return false;
+      }
+
+      if(first == null)
+      {
+         return true;
+      }
+
+      List<Map.Entry<K,F>> entries = new ArrayList<>(batchSize);
+      entries.add(first);
+
+      queue.drainTo(entries, batchSize - 1);
+
+      try
+      {
+         Map<K,F> batch = new LinkedHashMap<>();
+         entries.forEach(entry -> batch.put(entry.getKey(), entry.getValue()));
+
+         boolean success;
+
+         try
+         {
+            success = target.test(batch);
+         }
+         catch(Exception e)
+         {
+            LOG.warn("Failed to write {} queued puts", batch.size(), e);
+            success = false;
+         }
+
+         if(success)
+         {
+            writtenCount.addAndGet(entries.size());
+         }
+         else
+         {
+            failedCount.addAndGet(entries.size());
+         }
+      }
+      finally
+      {
+         synchronized(pendingCount)
+         {
+            pendingCount.addAndGet(-entries.size());
+            pendingCount.notifyAll();
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Holder for the queues that are still open, so the shutdown hook is
+    * registered lazily and only once.
+    */
+   private static final class Shutdown
+   {
+      private static final Set<WriteBehindQueue<?,?>> open = ConcurrentHashMap.newKeySet();
+
+      static
+      {
+         Runtime.getRuntime().addShutdownHook(new Thread(Shutdown::closeAll, "robusto-write-behind-shutdown"));
+      }
+
+      /**
+       * Closes every open queue, giving each a while to write what is left.
+       */
+      private static void closeAll()
+      {
+         open.forEach(queue -> queue.closed = true);
+
+         for(WriteBehindQueue<?,?> queue : open)
+         {
+            try
+            {
+               queue.thread.join(SHUTDOWN_WAIT_MILLIS);
+            }
+            catch(InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+}
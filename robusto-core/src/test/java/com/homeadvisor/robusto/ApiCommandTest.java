@@ -15,13 +15,40 @@
  */
 package com.homeadvisor.robusto;
 
+import com.homeadvisor.robusto.cache.BoundedCommandCache;
+import com.homeadvisor.robusto.cache.BoundedCommandCacheConfig;
+import com.homeadvisor.robusto.cache.CacheStats;
+import com.homeadvisor.robusto.cache.CommandCacheConfig;
+import com.homeadvisor.robusto.cache.HashMapCommandCache;
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.springframework.retry.backoff.FixedBackOffPolicy;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Unit test for {@link ApiCommand}.
@@ -90,6 +117,1011 @@ public class ApiCommandTest extends TestCase
       assertNotNull(result);
    }
 
+   /**
+    * Tests that cache hits are served on the calling thread without invoking
+    * the UriProvider, and that misses still execute the remote call and
+    * populate the cache.
+    */
+   @Test
+   public void testCallerThreadCacheLookup()
+   {
+      HashMapCommandCache<Object, Object, Object> cache = new HashMapCommandCache<>("test", new CommandCacheConfig());
+      cache.putCache("hit", "cached");
+
+      CountingUriProvider uriProvider = new CountingUriProvider();
+
+      ApiCommand hitCommand = ApiCommand.builder()
+            .withUriProvider(uriProvider)
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandCache(cache, "hit")
+            .withCallerThreadCacheLookup(true)
+            .withCommandGroup("CallerThreadCacheTest")
+            .build();
+
+      assertEquals("cached", hitCommand.execute());
+      assertEquals(0, uriProvider.count.get());
+      assertFalse(hitCommand.isExecutedInThread());
+
+      ApiCommand missCommand = ApiCommand.builder()
+            .withUriProvider(uriProvider)
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandCache(cache, "miss")
+            .withCallerThreadCacheLookup(true)
+            .withCommandGroup("CallerThreadCacheTest")
+            .build();
+
+      assertNotNull(missCommand.execute());
+      assertEquals(1, uriProvider.count.get());
+      assertNotNull(cache.getCache("miss"));
+   }
+
+   /**
+    * Tests that concurrent misses on the same key are coalesced into a single
+    * remote call when single flight is enabled on the cache.
+    */
+   @Test
+   public void testSingleFlightCoalescesMisses() throws Exception
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setSingleFlightEnabled(true);
+
+      HashMapCommandCache<Object, Object, Object> cache = new HashMapCommandCache<>("test", config);
+
+      CountingUriProvider uriProvider = new CountingUriProvider();
+
+      //
+      // The leader's remote call waits until the other commands have joined
+      // the in-flight load, so they are guaranteed to overlap.
+      //
+
+      RemoteServiceCallback callback = new SuccessfulRemoteCallback()
+      {
+         @Override
+         public Object run(String url)
+         {
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while(cache.getSingleFlight().getCoalescedCount() < 2 && System.currentTimeMillis() < deadline)
+            {
+               Thread.yield();
+            }
+
+            return "remote";
+         }
+      };
+
+      List<Future> futures = new ArrayList<>();
+
+      for(int i = 0; i < 3; i++)
+      {
+         futures.add(ApiCommand.builder()
+               .withUriProvider(uriProvider)
+               .withRemoteServiceCallback(callback)
+               .withCommandGroup("SingleFlightTest")
+               .withCommandCache(cache, "key")
+               .withCommandTimeoutInMilliseconds(10000)
+               .build()
+               .queue());
+      }
+
+      for(Future future : futures)
+      {
+         assertEquals("remote", future.get());
+      }
+
+      assertEquals(1, uriProvider.count.get());
+      assertEquals(1, cache.getSingleFlight().getExecutedCount());
+      assertEquals(2, cache.getSingleFlight().getCoalescedCount());
+   }
+
+   /**
+    * Tests that non-blocking retries run each attempt as a separate Hystrix
+    * execution and eventually succeed.
+    */
+   @Test
+   public void testNonBlockingRetries()
+   {
+      AtomicInteger attempts = new AtomicInteger();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(100);
+
+      ApiCommand<Object> command = ApiCommand.builder()
+            .withUriProvider(callback ->
+            {
+               if(attempts.incrementAndGet() < 3)
+               {
+                  throw new RetryableApiCommandException("Failed attempt " + attempts.get());
+               }
+
+               return callback.run("http://fakehost:1234");
+            })
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandGroup("NonBlockingRetryTest")
+            .withNumberOfRetries(3)
+            .withBackoffPolicy(backOffPolicy)
+            .withNonBlockingRetries(true)
+            .build();
+
+      assertNotNull(command.execute());
+      assertEquals(3, attempts.get());
+   }
+
+   @Test
+   public void testAsyncCommandRetries()
+   {
+      AtomicInteger attempts = new AtomicInteger();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(100);
+
+      AsyncApiCommand<String> command = ApiCommand.<String>builder()
+            .withAsyncUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+            .withAsyncRemoteServiceCallback(new AsyncRemoteServiceCallback<String>()
+            {
+               @Override
+               public CompletableFuture<String> runAsync(String url)
+               {
+                  CompletableFuture<String> future = new CompletableFuture<>();
+
+                  if(attempts.incrementAndGet() < 2)
+                  {
+                     future.completeExceptionally(new RetryableApiCommandException("Failed attempt " + attempts.get()));
+                  }
+                  else
+                  {
+                     future.complete(url);
+                  }
+
+                  return future;
+               }
+
+               @Override
+               public void setContext(CommandContext ctx)
+               {
+               }
+
+               @Override
+               public CommandContext getContext()
+               {
+                  return null;
+               }
+            })
+            .withCommandGroup("AsyncRetryTest")
+            .withNumberOfRetries(3)
+            .withBackoffPolicy(backOffPolicy)
+            .buildAsync();
+
+      assertEquals("http://fakehost:1234", command.observe().toBlocking().single());
+      assertEquals(2, attempts.get());
+   }
+
+   @Test
+   public void testBulkheadExecutionStrategy()
+   {
+      ExecutorService executor = Executors.newCachedThreadPool();
+
+      try
+      {
+         ExecutionStrategy strategy = ExecutionStrategy.bulkhead(executor, 10);
+
+         //
+         // Command body runs on the bulkhead executor rather than Hystrix
+         //
+
+         ApiCommand<String> command = ApiCommand.<String>builder()
+               .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+               .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+               .withCommandGroup("BulkheadTest")
+               .withExecutionStrategy(strategy)
+               .build();
+
+         assertFalse(command.execute().startsWith("hystrix-"));
+
+         //
+         // Timeouts still apply even though the body is not interrupted
+         //
+
+         ApiCommand<String> slowCommand = ApiCommand.<String>builder()
+               .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+               .withRemoteServiceCallback(new ThreadNameRemoteCallback(2000))
+               .withCommandGroup("BulkheadTimeoutTest")
+               .withHystrixCommandProperties(HystrixCommandProperties.Setter().withExecutionTimeoutInMilliseconds(200))
+               .withNumberOfRetries(1)
+               .withExecutionStrategy(strategy)
+               .build();
+
+         long start = System.currentTimeMillis();
+
+         try
+         {
+            slowCommand.execute();
+            fail("Command should have timed out");
+         }
+         catch(HystrixRuntimeException e)
+         {
+            assertEquals(HystrixRuntimeException.FailureType.TIMEOUT, e.getFailureType());
+         }
+
+         assertTrue(System.currentTimeMillis() - start < 1500);
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testCollapserBatchesRequests() throws Exception
+   {
+      List<Collection<Integer>> batches = new CopyOnWriteArrayList<>();
+      HashMapCommandCache<Object, Object, Object> cache = new HashMapCommandCache<>("CollapserTest", new CommandCacheConfig());
+
+      ApiCommandCollapser<Integer, String> collapser = ApiCommandCollapser.<Integer, String>builder()
+            .withCommandBuilder(() -> ApiCommand.<Map<Integer, String>>builder()
+                  .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+                  .withCommandGroup("CollapserTest"))
+            .withBatchRemoteServiceCallback(() -> new BatchRemoteServiceCallback<Integer, String>()
+            {
+               @Override
+               public Map<Integer, String> run(String url, Collection<Integer> keys)
+               {
+                  batches.add(keys);
+
+                  Map<Integer, String> results = new HashMap<>();
+                  keys.stream().filter(key -> key > 0).forEach(key -> results.put(key, "value" + key));
+                  return results;
+               }
+
+               @Override
+               public void setContext(CommandContext ctx)
+               {
+               }
+
+               @Override
+               public CommandContext getContext()
+               {
+                  return null;
+               }
+            })
+            .withTimerDelayInMilliseconds(100)
+            .withCommandCache(cache)
+            .build();
+
+      Future<String> one   = collapser.queue(1);
+      Future<String> two   = collapser.queue(2);
+      Future<String> again = collapser.queue(1);
+      Future<String> none  = collapser.queue(-1);
+
+      assertEquals("value1", one.get());
+      assertEquals("value2", two.get());
+      assertEquals("value1", again.get());
+      assertNull(none.get());
+      assertEquals(1, batches.size());
+      assertEquals(3, batches.get(0).size());
+
+      //
+      // Individual results were cached, so this does not need a batch
+      //
+
+      assertEquals("value2", collapser.execute(2));
+      assertEquals(1, batches.size());
+   }
+
+   /**
+    * Tests that batches running at the same time each keep their own command
+    * context, rather than the later batch replacing it for the earlier one.
+    */
+   @Test
+   public void testCollapserOverlappingBatches() throws Exception
+   {
+      CountDownLatch started = new CountDownLatch(2);
+      Set<CommandContext> contexts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+      AtomicInteger replaced = new AtomicInteger();
+
+      ApiCommandCollapser<Integer, String> collapser = ApiCommandCollapser.<Integer, String>builder()
+            .withCommandBuilder(() -> ApiCommand.<Map<Integer, String>>builder()
+                  .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+                  .withCommandGroup("CollapserOverlapTest"))
+            .withBatchRemoteServiceCallback(() -> new BatchRemoteServiceCallback<Integer, String>()
+            {
+               private volatile CommandContext ctx;
+
+               @Override
+               public Map<Integer, String> run(String url, Collection<Integer> keys)
+               {
+                  CommandContext before = getContext();
+                  contexts.add(before);
+                  started.countDown();
+
+                  try
+                  {
+                     started.await(5, TimeUnit.SECONDS);
+                  }
+                  catch(InterruptedException e)
+                  {
+                     Thread.currentThread().interrupt();
+                  }
+
+                  if(getContext() != before)
+                  {
+                     replaced.incrementAndGet();
+                  }
+
+                  return Collections.singletonMap(keys.iterator().next(), "value");
+               }
+
+               @Override
+               public void setContext(CommandContext ctx)
+               {
+                  this.ctx = ctx;
+               }
+
+               @Override
+               public CommandContext getContext()
+               {
+                  return ctx;
+               }
+            })
+            .withMaxRequestsInBatch(1)
+            .build();
+
+      Future<String> one = collapser.queue(1);
+      Future<String> two = collapser.queue(2);
+
+      assertEquals("value", one.get());
+      assertEquals("value", two.get());
+      assertEquals(0, started.getCount());
+      assertEquals(2, contexts.size());
+      assertEquals(0, replaced.get());
+   }
+
+   @Test
+   public void testHedgedRequests()
+   {
+      HedgePolicy hedgePolicy = HedgePolicy.builder()
+            .withPercentile(50)
+            .withMinSamples(5)
+            .withBudgetPercent(100)
+            .build();
+
+      AtomicInteger slowCalls = new AtomicInteger();
+
+      //
+      // Primary requests go to the slow URI unless it is excluded
+      //
+
+      HedgingUriProvider<String> uriProvider = new HedgingUriProvider<String>()
+      {
+         @Override
+         public String execute(RemoteServiceCallback<String> callback, Collection<String> excludedUris)
+         {
+            return callback.run(excludedUris.contains("http://slowhost") ? "http://fasthost" : "http://slowhost");
+         }
+
+         @Override
+         public String execute(RemoteServiceCallback<String> callback)
+         {
+            return callback.run(slowCalls.get() > 0 ? "http://slowhost" : "http://fasthost");
+         }
+      };
+
+      RemoteServiceCallback<String> callback = new RemoteServiceCallback<String>()
+      {
+         @Override
+         public String run(String url)
+         {
+            if(url.equals("http://slowhost"))
+            {
+               try
+               {
+                  Thread.sleep(2000);
+               }
+               catch(InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+            }
+
+            return url;
+         }
+
+         @Override
+         public void setContext(CommandContext ctx)
+         {
+         }
+
+         @Override
+         public CommandContext getContext()
+         {
+            return null;
+         }
+      };
+
+      for(int i = 0; i < 5; i++)
+      {
+         assertEquals("http://fasthost", ApiCommand.<String>builder()
+               .withUriProvider(uriProvider)
+               .withRemoteServiceCallback(callback)
+               .withCommandGroup("HedgeTest")
+               .withNumberOfThreads(10)
+               .withHedgePolicy(hedgePolicy)
+               .build()
+               .execute());
+      }
+
+      assertEquals(0, hedgePolicy.getHedgeCount());
+      assertTrue(hedgePolicy.getHedgeDelayMillis() >= 0);
+
+      slowCalls.incrementAndGet();
+      long start = System.currentTimeMillis();
+
+      assertEquals("http://fasthost", ApiCommand.<String>builder()
+            .withUriProvider(uriProvider)
+            .withRemoteServiceCallback(callback)
+            .withCommandGroup("HedgeTest")
+            .withNumberOfThreads(10)
+            .withHedgePolicy(hedgePolicy)
+            .build()
+            .execute());
+
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertEquals(1, hedgePolicy.getHedgeCount());
+      assertEquals(1, hedgePolicy.getHedgeWinCount());
+   }
+
+   @Test
+   public void testRetryBudget()
+   {
+      AtomicInteger attempts = new AtomicInteger();
+
+      //
+      // No reserve, so the only retry available is earned by one success
+      //
+
+      RetryBudget retryBudget = new RetryBudget(1, 0, 60);
+      retryBudget.recordSuccess();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(10);
+
+      ApiCommand<Object> command = ApiCommand.builder()
+            .withUriProvider(callback ->
+            {
+               attempts.incrementAndGet();
+               throw new RetryableApiCommandException("Failed attempt " + attempts.get());
+            })
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandGroup("RetryBudgetTest")
+            .withNumberOfRetries(5)
+            .withBackoffPolicy(backOffPolicy)
+            .withRetryBudget(retryBudget)
+            .build();
+
+      try
+      {
+         command.execute();
+         fail("Command should have failed");
+      }
+      catch(HystrixRuntimeException e)
+      {
+         // Expected
+      }
+
+      assertEquals(2, attempts.get());
+      assertEquals(1, retryBudget.getRetriesAllowedCount());
+      assertEquals(1, retryBudget.getRetriesDeniedCount());
+   }
+
+   /**
+    * Tests that only first attempts that reach the remote call add to the
+    * retry budget, so cache hits do not earn retries.
+    */
+   @Test
+   public void testRetryBudgetIgnoresCacheHits()
+   {
+      RetryBudget retryBudget = new RetryBudget(1, 0, 60);
+
+      HashMapCommandCache<Object, Object, Object> cache = new HashMapCommandCache<>("RetryBudgetCacheTest", new CommandCacheConfig());
+      cache.putCache("hit", "cached");
+
+      for(int i = 0; i < 3; i++)
+      {
+         ApiCommand<Object> hitCommand = ApiCommand.builder()
+               .withUriProvider(new CountingUriProvider())
+               .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+               .withCommandCache(cache, "hit")
+               .withCommandGroup("RetryBudgetCacheTest")
+               .withRetryBudget(retryBudget)
+               .build();
+
+         assertEquals("cached", hitCommand.execute());
+      }
+
+      assertEquals(0, retryBudget.getBalance(), 0);
+
+      ApiCommand<Object> missCommand = ApiCommand.builder()
+            .withUriProvider(new CountingUriProvider())
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandCache(cache, "miss")
+            .withCommandGroup("RetryBudgetCacheTest")
+            .withRetryBudget(retryBudget)
+            .build();
+
+      assertNotNull(missCommand.execute());
+      assertEquals(1, retryBudget.getBalance(), 0);
+   }
+
+   /**
+    * Tests that a retry the deadline rules out, since its backoff would not
+    * fit in the time left, does not spend the retry budget.
+    */
+   @Test
+   public void testRetryBudgetKeptPastDeadline()
+   {
+      RetryBudget retryBudget = new RetryBudget(1, 0, 60);
+      retryBudget.recordSuccess();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(2000);
+
+      ApiCommand<Object> command = ApiCommand.builder()
+            .withUriProvider(callback ->
+            {
+               throw new RetryableApiCommandException("Failed attempt");
+            })
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandGroup("RetryBudgetDeadlineTest")
+            .withHystrixCommandProperties(HystrixCommandProperties.Setter().withExecutionTimeoutInMilliseconds(1000))
+            .withNumberOfRetries(5)
+            .withBackoffPolicy(backOffPolicy)
+            .withRetryBudget(retryBudget)
+            .build();
+
+      try
+      {
+         command.execute();
+         fail("Command should have failed");
+      }
+      catch(HystrixRuntimeException e)
+      {
+         assertEquals(HystrixRuntimeException.FailureType.COMMAND_EXCEPTION, e.getFailureType());
+      }
+
+      assertEquals(0, retryBudget.getRetriesAllowedCount());
+      assertEquals(1, retryBudget.getBalance(), 0);
+   }
+
+   @Test
+   public void testDeadlineStopsRetries() throws Exception
+   {
+      AtomicInteger attempts = new AtomicInteger();
+      List<Long> remaining = new CopyOnWriteArrayList<>();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(10);
+
+      ApiCommand<Object> command = ApiCommand.builder()
+            .withUriProvider(callback ->
+            {
+               attempts.incrementAndGet();
+               remaining.add(Deadline.current().getRemainingMillis());
+
+               try
+               {
+                  Thread.sleep(400);
+               }
+               catch(InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+
+               throw new RetryableApiCommandException("Failed attempt " + attempts.get());
+            })
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandGroup("DeadlineTest")
+            .withHystrixCommandProperties(HystrixCommandProperties.Setter().withExecutionTimeoutInMilliseconds(1000))
+            .withNumberOfRetries(5)
+            .withBackoffPolicy(backOffPolicy)
+            .build();
+
+      try
+      {
+         command.execute();
+         fail("Command should have failed");
+      }
+      catch(HystrixRuntimeException e)
+      {
+         assertEquals(HystrixRuntimeException.FailureType.COMMAND_EXCEPTION, e.getFailureType());
+      }
+
+      //
+      // The third attempt would not have fit before the timeout
+      //
+
+      Thread.sleep(500);
+      assertEquals(2, attempts.get());
+      assertTrue(remaining.get(0) <= 1000);
+      assertTrue(remaining.get(1) < remaining.get(0));
+   }
+
+   /**
+    * Tests that the deadline check accounts for the backoff before the next
+    * attempt, so a fast failure is not retried when the backoff alone would
+    * run past the timeout.
+    */
+   @Test
+   public void testDeadlineIncludesBackOff() throws Exception
+   {
+      AtomicInteger attempts = new AtomicInteger();
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(960);
+
+      ApiCommand<Object> command = ApiCommand.builder()
+            .withUriProvider(callback ->
+            {
+               attempts.incrementAndGet();
+
+               try
+               {
+                  Thread.sleep(50);
+               }
+               catch(InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+
+               throw new RetryableApiCommandException("Failed attempt " + attempts.get());
+            })
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandGroup("DeadlineBackOffTest")
+            .withHystrixCommandProperties(HystrixCommandProperties.Setter().withExecutionTimeoutInMilliseconds(1000))
+            .withNumberOfRetries(5)
+            .withBackoffPolicy(backOffPolicy)
+            .build();
+
+      try
+      {
+         command.execute();
+         fail("Command should have failed");
+      }
+      catch(HystrixRuntimeException e)
+      {
+         //
+         // Fails with the attempt's own error rather than timing out in the
+         // middle of the backoff
+         //
+
+         assertEquals(HystrixRuntimeException.FailureType.COMMAND_EXCEPTION, e.getFailureType());
+      }
+
+      assertEquals(1, attempts.get());
+   }
+
+   @Test
+   public void testConcurrencyLimiterRejectsOverLimit() throws Exception
+   {
+      AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.builder()
+            .withInitialLimit(1)
+            .withMaxLimit(1)
+            .build();
+
+      Future<String> first = ApiCommand.<String>builder()
+            .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+            .withRemoteServiceCallback(new ThreadNameRemoteCallback(500))
+            .withCommandGroup("ConcurrencyLimiterTest")
+            .withConcurrencyLimiter(limiter)
+            .build()
+            .queue();
+
+      assertEquals(1, limiter.getInFlight());
+
+      //
+      // The rejection is not retried, even though a retry after the back off
+      // would find the first command finished
+      //
+
+      FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+      backOffPolicy.setBackOffPeriod(700);
+
+      try
+      {
+         ApiCommand.<String>builder()
+               .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+               .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+               .withCommandGroup("ConcurrencyLimiterTest")
+               .withConcurrencyLimiter(limiter)
+               .withNonBlockingRetries(true)
+               .withNumberOfRetries(3)
+               .withBackoffPolicy(backOffPolicy)
+               .build()
+               .execute();
+
+         fail("Command should have been rejected");
+      }
+      catch(HystrixRuntimeException e)
+      {
+         assertEquals(HystrixRuntimeException.FailureType.REJECTED_SEMAPHORE_EXECUTION, e.getFailureType());
+      }
+
+      assertNotNull(first.get());
+      assertEquals(0, limiter.getInFlight());
+      assertEquals(1, limiter.getAcceptedCount());
+      assertEquals(1, limiter.getRejectedCount());
+   }
+
+   /**
+    * Tests that stale entries are served right away while they are refreshed
+    * in the background, and that stale entries are served when the remote
+    * call fails.
+    */
+   @Test
+   public void testStaleCacheEntries() throws Exception
+   {
+      BoundedCommandCacheConfig revalidateConfig = new BoundedCommandCacheConfig();
+      revalidateConfig.setSoftExpiration(1);
+      BoundedCommandCache<Object, Object, Object> revalidateCache = new BoundedCommandCache<>("revalidate", revalidateConfig);
+      revalidateCache.putCache("key", "stale");
+
+      BoundedCommandCacheConfig errorConfig = new BoundedCommandCacheConfig();
+      errorConfig.setSoftExpiration(1);
+      errorConfig.setStaleWhileRevalidate(false);
+      errorConfig.setServeStaleOnError(true);
+      BoundedCommandCache<Object, Object, Object> errorCache = new BoundedCommandCache<>("error", errorConfig);
+      errorCache.putCache("key", "stale");
+
+      Thread.sleep(1100);
+
+      assertNull(revalidateCache.getCache("key"));
+
+      assertEquals("stale", ApiCommand.<String>builder()
+            .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+            .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+            .withCommandCache(revalidateCache, "key")
+            .withCommandGroup("StaleWhileRevalidateTest")
+            .build()
+            .execute());
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while(revalidateCache.getCache("key") == null && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertNotNull(revalidateCache.getCache("key"));
+      assertFalse("stale".equals(revalidateCache.getCache("key").get()));
+
+      assertEquals("stale", ApiCommand.<String>builder()
+            .withUriProvider(callback ->
+            {
+               throw new RetryableApiCommandException("Remote service is down");
+            })
+            .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+            .withCommandCache(errorCache, "key")
+            .withCommandGroup("ServeStaleOnErrorTest")
+            .withNumberOfRetries(1)
+            .build()
+            .execute());
+   }
+
+   /**
+    * Tests the cache stats after a stale-while-revalidate cycle: a miss that
+    * loads the value, a miss served stale while it is refreshed, and a hit on
+    * the refreshed value, with each get counted once.
+    */
+   @Test
+   public void testStaleWhileRevalidateStats() throws Exception
+   {
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig();
+      config.setSoftExpiration(1);
+      BoundedCommandCache<Object, Object, Object> cache = new BoundedCommandCache<>("revalidateStats", config);
+
+      ApiCommand<String> command = ApiCommand.<String>builder()
+            .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+            .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+            .withCommandCache(cache, "key")
+            .withCommandGroup("StaleWhileRevalidateStatsTest")
+            .build();
+
+      String loaded = command.execute();
+
+      Thread.sleep(1100);
+
+      assertEquals(loaded, ApiCommand.<String>builder()
+            .withUriProvider(new ConstantUriProvider<>("http://fakehost:1234"))
+            .withRemoteServiceCallback(new ThreadNameRemoteCallback(0))
+            .withCommandCache(cache, "key")
+            .withCommandGroup("StaleWhileRevalidateStatsTest")
+            .build()
+            .execute());
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while(cache.getCacheStats().getLoadCount() < 2 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertNotNull(cache.getCache("key"));
+
+      CacheStats stats = cache.getCacheStats();
+
+      assertEquals(1, stats.getHitCount());
+      assertEquals(2, stats.getMissCount());
+      assertEquals(1, stats.getStaleHitCount());
+      assertEquals(3, stats.getRequestCount());
+      assertEquals(2, stats.getLoadCount());
+   }
+
+   /**
+    * Tests that a hit within the refresh ahead window is served from the
+    * cache and reloads the entry in the background.
+    */
+   @Test
+   public void testRefreshAhead() throws Exception
+   {
+      //
+      // Refreshing ahead for the whole time to live makes every hit due
+      //
+
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig();
+      config.setHardExpiration(60);
+      config.setRefreshAhead(100);
+      BoundedCommandCache<Object, Object, Object> cache = new BoundedCommandCache<>("refreshAhead", config);
+      cache.putCache("key", "old");
+
+      CountingUriProvider uriProvider = new CountingUriProvider();
+
+      assertEquals("old", ApiCommand.builder()
+            .withUriProvider(uriProvider)
+            .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+            .withCommandCache(cache, "key")
+            .withCommandGroup("RefreshAheadTest")
+            .build()
+            .execute());
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while("old".equals(cache.getCache("key").get()) && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertTrue(cache.getCache("key").get() instanceof DummyDto);
+      assertEquals(1, uriProvider.count.get());
+   }
+
+   /**
+    * Tests that a null remote result is cached as known to be absent, and
+    * that a later value replaces it.
+    */
+   @Test
+   public void testNegativeCaching()
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setNegativeExpiration(60);
+      HashMapCommandCache<Object, Object, Object> cache = new HashMapCommandCache<>("negative", config);
+
+      AtomicInteger remoteCalls = new AtomicInteger();
+
+      for(int i = 0; i < 2; i++)
+      {
+         assertNull(ApiCommand.builder()
+               .withUriProvider(callback ->
+               {
+                  remoteCalls.incrementAndGet();
+                  return null;
+               })
+               .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+               .withCommandCache(cache, "unknown")
+               .withCommandGroup("NegativeCacheTest")
+               .build()
+               .execute());
+      }
+
+      assertEquals(1, remoteCalls.get());
+      assertEquals(Optional.empty(), cache.getCache("unknown"));
+      assertNull(cache.getCache("neverLookedUp"));
+
+      cache.putCache("unknown", "found");
+      assertEquals("found", cache.getCache("unknown").get());
+   }
+
+   /**
+    * Tests that a multi-key lookup only asks the remote service for the keys
+    * that are missing from the cache, in a single command.
+    */
+   @Test
+   public void testExecuteForKeys()
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setNegativeExpiration(60);
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<>("multiKey", config);
+      cache.putCache("a", "A");
+
+      List<Set<String>> requested = new CopyOnWriteArrayList<>();
+
+      Function<Set<String>, ApiCommand<Map<String,String>>> command = keys ->
+            ApiCommand.<Map<String,String>>builder()
+                  .withUriProvider(callback ->
+                  {
+                     requested.add(keys);
+                     Map<String,String> values = new HashMap<>();
+                     keys.stream().filter(key -> !key.equals("c")).forEach(key -> values.put(key, key.toUpperCase()));
+                     return values;
+                  })
+                  .withRemoteServiceCallback(new SuccessfulRemoteCallback())
+                  .withCommandGroup("MultiKeyTest")
+                  .build();
+
+      Map<String,String> results = ApiCommand.executeForKeys(cache, Arrays.asList("a", "b", "c"), command);
+
+      assertEquals(Arrays.asList("a", "b"), new ArrayList<>(results.keySet()));
+      assertEquals("B", results.get("b"));
+      assertEquals(1, requested.size());
+      assertEquals(new HashSet<>(Arrays.asList("b", "c")), requested.get(0));
+
+      results = ApiCommand.executeForKeys(cache, Arrays.asList("a", "b", "c", "d"), command);
+
+      assertEquals(3, results.size());
+      assertEquals(2, requested.size());
+      assertEquals(Collections.singleton("d"), requested.get(1));
+      assertEquals(Optional.empty(), cache.getAll(Collections.singleton("c")).get("c"));
+   }
+
+   /**
+    * Tests that entries written together expire at different times, and that
+    * entries that were slow to load are sometimes treated as expired early.
+    */
+   @Test
+   public void testExpirationJitterAndEarlyExpiration() throws Exception
+   {
+      CommandCacheConfig jitterConfig = new CommandCacheConfig();
+      jitterConfig.setHardExpiration(1);
+      jitterConfig.setExpirationJitter(100);
+      HashMapCommandCache<Integer, String, String> jitterCache = new HashMapCommandCache<>("jitter", jitterConfig);
+
+      for(int i = 0; i < 100; i++)
+      {
+         jitterCache.putCache(i, "value");
+      }
+
+      Thread.sleep(500);
+
+      int remaining = 0;
+
+      for(int i = 0; i < 100; i++)
+      {
+         remaining += jitterCache.getCache(i) != null ? 1 : 0;
+      }
+
+      assertTrue("Expected about half the entries to remain, got " + remaining, remaining > 10 && remaining < 90);
+
+      //
+      // With a load time as long as the time to live, a fresh entry is seen
+      // as expired by about 1/e of lookups, while the entry itself is still
+      // there
+      //
+
+      CommandCacheConfig earlyConfig = new CommandCacheConfig();
+      earlyConfig.setHardExpiration(3600);
+      earlyConfig.setEarlyExpiration(1);
+      HashMapCommandCache<String, String, String> earlyCache = new HashMapCommandCache<>("early", earlyConfig);
+
+      earlyCache.putCache("slow", "value", TimeUnit.HOURS.toMillis(1));
+      earlyCache.putCache("fast", "value", 0);
+
+      int earlyMisses = 0;
+
+      for(int i = 0; i < 1000; i++)
+      {
+         earlyMisses += earlyCache.getCache("slow") == null ? 1 : 0;
+         assertNotNull(earlyCache.getCache("fast"));
+      }
+
+      assertTrue("Expected about 37% early expirations, got " + earlyMisses, earlyMisses > 250 && earlyMisses < 500);
+      assertEquals("value", earlyCache.getStaleCache("slow", false).get());
+   }
+
    //
    // Helper classes
    //
@@ -105,6 +1137,42 @@ public class ApiCommandTest extends TestCase
    /**
     * Simple RemoteServiceCallback that always returns a new DummyDto.
     */
+   private class ThreadNameRemoteCallback implements RemoteServiceCallback<String>
+   {
+      private final long sleepMillis;
+
+      ThreadNameRemoteCallback(long sleepMillis)
+      {
+         this.sleepMillis = sleepMillis;
+      }
+
+      @Override
+      public String run(String url)
+      {
+         try
+         {
+            Thread.sleep(sleepMillis);
+         }
+         catch(InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+
+         return Thread.currentThread().getName();
+      }
+
+      @Override
+      public void setContext(CommandContext ctx)
+      {
+      }
+
+      @Override
+      public CommandContext getContext()
+      {
+         return null;
+      }
+   }
+
    private class SuccessfulRemoteCallback implements RemoteServiceCallback
    {
       CommandContext ctx;
@@ -315,6 +1383,22 @@ public class ApiCommandTest extends TestCase
       }
    }
 
+   /**
+    * Implementation of UriProvider that counts the number of times it has
+    * been executed.
+    */
+   private class CountingUriProvider implements UriProvider
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Object execute(RemoteServiceCallback callback)
+      {
+         count.incrementAndGet();
+         return callback.run("http://fakehost:1234");
+      }
+   }
+
    /**
     * Create a {@link FixedBackOffPolicy} of 1 second. The default is
     * already 1 second in that class, but want to protect against that
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link HedgePolicy}.
+ */
+public class HedgePolicyTest
+{
+   private static final String SLOW_HOST = "http://slowhost";
+
+   private static final String FAST_HOST = "http://fasthost";
+
+   /**
+    * Tests that a hedge that answers first is returned right away, even when
+    * the first request is blocked in a way that ignores interrupts, like a
+    * socket read.
+    */
+   @Test
+   public void testHedgeWinsOverUninterruptiblePrimary() throws Exception
+   {
+      HedgePolicy hedgePolicy = warmedUpPolicy();
+      CountDownLatch primaryDone = new CountDownLatch(1);
+
+      RemoteServiceCallback<String> callback = new TestCallback(url ->
+      {
+         if(url.equals(SLOW_HOST))
+         {
+            sleepUninterruptibly(3000);
+            primaryDone.countDown();
+         }
+
+         return url;
+      });
+
+      long start = System.currentTimeMillis();
+
+      assertEquals(FAST_HOST, hedgePolicy.execute(new SlowFirstUriProvider(), callback));
+
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertEquals(1, primaryDone.getCount());
+      assertEquals(1, hedgePolicy.getHedgeCount());
+      assertEquals(1, hedgePolicy.getHedgeWinCount());
+
+      //
+      // The first request carries on in the background
+      //
+
+      assertTrue(primaryDone.await(5, TimeUnit.SECONDS));
+   }
+
+   /**
+    * Tests that a hedge can still answer after the first request fails, and
+    * that the first request's failure is reported when the hedge fails too.
+    */
+   @Test
+   public void testPrimaryFailure() throws Exception
+   {
+      HedgePolicy hedgePolicy = warmedUpPolicy();
+      AtomicBoolean hedgeFails = new AtomicBoolean();
+
+      RemoteServiceCallback<String> callback = new TestCallback(url ->
+      {
+         sleepUninterruptibly(url.equals(SLOW_HOST) ? 100 : 300);
+
+         if(url.equals(SLOW_HOST))
+         {
+            throw new RetryableApiCommandException("primary");
+         }
+
+         if(hedgeFails.get())
+         {
+            throw new RetryableApiCommandException("hedge");
+         }
+
+         return url;
+      });
+
+      assertEquals(FAST_HOST, hedgePolicy.execute(new SlowFirstUriProvider(), callback));
+      assertEquals(1, hedgePolicy.getHedgeWinCount());
+
+      hedgeFails.set(true);
+
+      try
+      {
+         hedgePolicy.execute(new SlowFirstUriProvider(), callback);
+         fail("Request should have failed");
+      }
+      catch(RetryableApiCommandException e)
+      {
+         assertEquals("primary", e.getMessage());
+      }
+
+      assertEquals(2, hedgePolicy.getHedgeCount());
+      assertEquals(1, hedgePolicy.getHedgeWinCount());
+   }
+
+   /**
+    * Tests that failed requests are sampled too, so slow failures push the
+    * hedge delay up rather than going missing.
+    */
+   @Test
+   public void testFailuresSampled()
+   {
+      HedgePolicy hedgePolicy = HedgePolicy.builder()
+            .withPercentile(100)
+            .withMinSamples(5)
+            .withMinDelayInMilliseconds(0)
+            .build();
+
+      RemoteServiceCallback<String> callback = new TestCallback(url ->
+      {
+         if(url.equals(SLOW_HOST))
+         {
+            sleepUninterruptibly(200);
+            throw new RetryableApiCommandException("slow failure");
+         }
+
+         return url;
+      });
+
+      for(int i = 0; i < 4; i++)
+      {
+         hedgePolicy.execute(new ConstantUriProvider<>(FAST_HOST), callback);
+      }
+
+      try
+      {
+         hedgePolicy.execute(new ConstantUriProvider<>(SLOW_HOST), callback);
+         fail("Request should have failed");
+      }
+      catch(RetryableApiCommandException e)
+      {
+      }
+
+      assertTrue(hedgePolicy.getHedgeDelayMillis() >= 200);
+   }
+
+   /**
+    * Creates a policy that hedges every request after a few milliseconds,
+    * warmed up with enough fast requests to start hedging.
+    */
+   private static HedgePolicy warmedUpPolicy()
+   {
+      HedgePolicy hedgePolicy = HedgePolicy.builder()
+            .withPercentile(50)
+            .withMinSamples(5)
+            .withBudgetPercent(100)
+            .build();
+
+      RemoteServiceCallback<String> callback = new TestCallback(url -> url);
+
+      for(int i = 0; i < 5; i++)
+      {
+         hedgePolicy.execute(new ConstantUriProvider<>(FAST_HOST), callback);
+      }
+
+      assertEquals(5, hedgePolicy.getHedgeDelayMillis());
+      return hedgePolicy;
+   }
+
+   /**
+    * Sleeps for the whole time, ignoring interrupts the way a blocking socket
+    * read does.
+    */
+   private static void sleepUninterruptibly(long millis)
+   {
+      long end = System.currentTimeMillis() + millis;
+      boolean interrupted = false;
+
+      while(System.currentTimeMillis() < end)
+      {
+         try
+         {
+            Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+         }
+         catch(InterruptedException e)
+         {
+            interrupted = true;
+         }
+      }
+
+      if(interrupted)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Sends first requests to the slow host, and hedges to the fast one.
+    */
+   private static class SlowFirstUriProvider implements HedgingUriProvider<String>
+   {
+      @Override
+      public String execute(RemoteServiceCallback<String> callback, Collection<String> excludedUris)
+      {
+         return callback.run(excludedUris.contains(SLOW_HOST) ? FAST_HOST : SLOW_HOST);
+      }
+
+      @Override
+      public String execute(RemoteServiceCallback<String> callback)
+      {
+         return callback.run(SLOW_HOST);
+      }
+   }
+
+   /**
+    * Callback that answers through the given function.
+    */
+   private static class TestCallback implements RemoteServiceCallback<String>
+   {
+      private final Function<String, String> function;
+
+      TestCallback(Function<String, String> function)
+      {
+         this.function = function;
+      }
+
+      @Override
+      public String run(String url)
+      {
+         return function.apply(url);
+      }
+
+      @Override
+      public void setContext(CommandContext ctx)
+      {
+      }
+
+      @Override
+      public CommandContext getContext()
+      {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto;
+
+import org.junit.Test;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link RetryBudget}.
+ */
+public class RetryBudgetTest
+{
+   /**
+    * Tests that the reserve allows a fixed number of retries per second and
+    * cannot be saved up across the window.
+    */
+   @Test
+   public void testReserveRefillsEachSecond() throws Exception
+   {
+      RetryBudget retryBudget = new RetryBudget(0, 2, 10);
+
+      awaitStartOfSecond();
+
+      assertEquals(2, retryBudget.getBalance(), 0);
+      assertTrue(retryBudget.tryAcquire());
+      assertTrue(retryBudget.tryAcquire());
+      assertFalse(retryBudget.tryAcquire());
+      assertEquals(0, retryBudget.getBalance(), 0);
+
+      //
+      // Next second gets a fresh reserve, but no more than that
+      //
+
+      Thread.sleep(1000);
+
+      assertEquals(2, retryBudget.getBalance(), 0);
+      assertTrue(retryBudget.tryAcquire());
+      assertTrue(retryBudget.tryAcquire());
+      assertFalse(retryBudget.tryAcquire());
+
+      assertEquals(4, retryBudget.getRetriesAllowedCount());
+      assertEquals(2, retryBudget.getRetriesDeniedCount());
+   }
+
+   /**
+    * Tests that earned retries are spent before the reserve.
+    */
+   @Test
+   public void testEarnedBeforeReserve() throws Exception
+   {
+      RetryBudget retryBudget = new RetryBudget(0.5, 1, 10);
+
+      awaitStartOfSecond();
+
+      retryBudget.recordSuccess();
+      retryBudget.recordSuccess();
+
+      assertEquals(2, retryBudget.getBalance(), 0);
+      assertTrue(retryBudget.tryAcquire());
+      assertEquals(1, retryBudget.getBalance(), 0);
+      assertTrue(retryBudget.tryAcquire());
+      assertFalse(retryBudget.tryAcquire());
+   }
+
+   /**
+    * Tests that failures that will not be retried, because the context is
+    * already exhausted, do not take a retry from the budget.
+    */
+   @Test
+   public void testExhaustedContextKeepsBudget()
+   {
+      RetryBudget retryBudget = new RetryBudget(0, 1, 10);
+      RetryPolicy retryPolicy = retryBudget.wrap(new SimpleRetryPolicy());
+
+      RetryContext context = retryPolicy.open(null);
+      context.setExhaustedOnly();
+      retryPolicy.registerThrowable(context, new RetryableApiCommandException("Failed"));
+
+      assertEquals(0, retryBudget.getRetriesAllowedCount());
+      assertEquals(0, retryBudget.getRetriesDeniedCount());
+
+      //
+      // A failure that will be retried still takes one
+      //
+
+      context = retryPolicy.open(null);
+      retryPolicy.registerThrowable(context, new RetryableApiCommandException("Failed"));
+
+      assertTrue(retryPolicy.canRetry(context));
+      assertEquals(1, retryBudget.getRetriesAllowedCount());
+   }
+
+   /**
+    * Sleeps until just past the start of the next second, so that a test is
+    * not split across two reserve buckets.
+    */
+   private static void awaitStartOfSecond() throws InterruptedException
+   {
+      Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+   }
+}
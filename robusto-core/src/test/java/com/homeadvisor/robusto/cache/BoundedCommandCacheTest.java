@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link BoundedCommandCache}.
+ */
+public class BoundedCommandCacheTest
+{
+   /**
+    * Tests that a bounded cache built from config string values stays within
+    * its size bound while keeping entries that are read over ones that were
+    * only written once.
+    */
+   @Test
+   public void testEviction()
+   {
+      Map<String, Object> config = new HashMap<>();
+      config.put("maxValue", "10");
+
+      BoundedCommandCache<Object, Object, Object> cache = new BoundedCommandCacheFactory().create("bounded", config);
+
+      for(int i = 0; i < 10; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      cache.getCache(0);
+      cache.getCache(0);
+
+      for(int i = 10; i < 30; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      assertEquals(10, cache.size());
+      assertEquals("value0", cache.getCache(0).get());
+      assertNull(cache.getCache(1));
+      assertEquals("value29", cache.getCache(29).get());
+   }
+
+   /**
+    * Tests that invalidated entries give their slot back right away, rather
+    * than pushing out live entries until eviction reaches them.
+    */
+   @Test
+   public void testInvalidateFreesCapacity()
+   {
+      BoundedCommandCache<Integer, String, String> cache = new BoundedCommandCache<>("invalidate", new BoundedCommandCacheConfig(0, 10));
+
+      for(int i = 0; i < 10; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      //
+      // The newest entries are furthest from the tail of the queue, so
+      // eviction will not reach them for a while
+      //
+
+      for(int i = 5; i < 10; i++)
+      {
+         cache.invalidate(i);
+      }
+
+      for(int i = 10; i < 15; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      assertEquals(10, cache.size());
+      assertEquals(0, cache.getCacheStats().getEvictionCount());
+
+      for(int i = 0; i < 5; i++)
+      {
+         assertEquals("value" + i, cache.getCache(i).get());
+      }
+
+      for(int i = 10; i < 15; i++)
+      {
+         assertEquals("value" + i, cache.getCache(i).get());
+      }
+   }
+
+   /**
+    * Tests that writing and invalidating the same key over and over in a full
+    * cache neither evicts live entries nor leaks capacity.
+    */
+   @Test
+   public void testRepeatedInvalidate()
+   {
+      BoundedCommandCache<Integer, String, String> cache = new BoundedCommandCache<>("repeated", new BoundedCommandCacheConfig(0, 10));
+
+      for(int i = 0; i < 9; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      for(int i = 0; i < 1000; i++)
+      {
+         cache.putCache(-1, "value");
+         cache.invalidate(-1);
+      }
+
+      cache.putCache(9, "value9");
+
+      assertEquals(10, cache.size());
+      assertEquals(0, cache.getCacheStats().getEvictionCount());
+   }
+
+   /**
+    * Tests that puts racing with eviction and invalidation of the same keys
+    * leave the cache consistent: a read never sees anything but the latest
+    * write, and no capacity is lost to entries that were removed while they
+    * were being updated.
+    */
+   @Test
+   public void testEvictionRacingPut() throws Exception
+   {
+      BoundedCommandCache<Integer, String, String> cache = new BoundedCommandCache<>("race", new BoundedCommandCacheConfig(0, 20));
+
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+
+      try
+      {
+         //
+         // Each writer owns one key and checks its own writes, while the
+         // churners keep evicting and invalidating those same keys
+         //
+
+         for(int writer = 0; writer < 2; writer++)
+         {
+            final int key = writer;
+
+            futures.add(executor.submit(() ->
+            {
+               start.await();
+
+               for(int i = 0; i < 20000; i++)
+               {
+                  String value = key + ":" + i;
+
+                  assertTrue(cache.putCache(key, value));
+
+                  Optional<String> read = cache.getCache(key);
+
+                  if(read != null)
+                  {
+                     assertEquals(value, read.get());
+                  }
+               }
+
+               return null;
+            }));
+         }
+
+         futures.add(executor.submit(() ->
+         {
+            start.await();
+
+            for(int i = 0; i < 20000; i++)
+            {
+               cache.putCache(100 + ThreadLocalRandom.current().nextInt(1000), "churn");
+            }
+
+            return null;
+         }));
+
+         futures.add(executor.submit(() ->
+         {
+            start.await();
+
+            for(int i = 0; i < 20000; i++)
+            {
+               cache.invalidate(i % 2);
+            }
+
+            return null;
+         }));
+
+         start.countDown();
+
+         for(Future<?> future : futures)
+         {
+            future.get(30, TimeUnit.SECONDS);
+         }
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      assertTrue(cache.size() <= 20);
+
+      //
+      // Once the dust settles the cache still has its full capacity, and
+      // puts to the contested keys stick
+      //
+
+      for(int key = 0; key < 2; key++)
+      {
+         cache.putCache(key, "final" + key);
+         assertEquals("final" + key, cache.getCache(key).get());
+      }
+
+      for(int i = 2000; i < 2020; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      assertEquals(20, cache.size());
+   }
+
+   /**
+    * Tests that expiration jitter spreads out the cache's own expiration even
+    * when values are not timestamped, which is not the case for configs that
+    * only have a soft or hard expiration to apply it to.
+    */
+   @Test
+   public void testExpirationJitterWithoutTimestamps() throws Exception
+   {
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig(1, 200);
+      config.setExpirationJitter(100);
+
+      assertFalse(config.isTimestamped());
+      assertTrue(config.isExpirationJittered());
+
+      BoundedCommandCache<Integer, String, String> cache = new BoundedCommandCache<>("jitter", config);
+
+      for(int i = 0; i < 100; i++)
+      {
+         cache.putCache(i, "value");
+      }
+
+      Thread.sleep(500);
+
+      int remaining = 0;
+
+      for(int i = 0; i < 100; i++)
+      {
+         remaining += cache.getCache(i) != null ? 1 : 0;
+      }
+
+      assertTrue("Expected about half the entries to remain, got " + remaining, remaining > 10 && remaining < 90);
+
+      CommandCacheConfig plainConfig = new CommandCacheConfig();
+      plainConfig.setExpirationJitter(100);
+
+      assertFalse(plainConfig.isExpirationJittered());
+      assertFalse(new BoundedCommandCacheConfig(0, 200).isExpirationJittered());
+   }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import com.homeadvisor.robusto.AbstractApiClient;
+import com.homeadvisor.robusto.ClientConfiguration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link CacheSnapshot}.
+ */
+public class CacheSnapshotTest
+{
+   /**
+    * Tests that a cache created by a client starts with the entries from the
+    * last snapshot, keeping their remaining time to live.
+    */
+   @Test
+   public void testRestoreFromClient() throws Exception
+   {
+      Path snapshotFile = Files.createTempDirectory("robusto").resolve("warm.snapshot");
+
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig(60, 100);
+      config.setSnapshotFile(snapshotFile.toString());
+
+      BoundedCommandCache<String, String, String> previous = new BoundedCommandCache<>("warm", config);
+      previous.putCache("a", "A");
+      previous.putCache("b", "B");
+
+      assertEquals(2, previous.writeSnapshot());
+
+      ClientConfiguration clientConfig = new ClientConfiguration();
+      clientConfig.setCacheType("warm", BoundedCommandCacheFactory.class.getName());
+      clientConfig.setCacheConfig("warm", "expiration=60,snapshotFile=" + snapshotFile);
+
+      class SnapshotClient extends AbstractApiClient
+      {
+         @Override
+         public String getServiceName()
+         {
+            return "snapshot";
+         }
+
+         @Override
+         protected ClientConfiguration getConfiguration()
+         {
+            return clientConfig;
+         }
+
+         CommandCache<String, String, String> getWarmCache()
+         {
+            return getCache("warm");
+         }
+      }
+
+      CommandCache<String, String, String> restored = new SnapshotClient().getWarmCache();
+
+      assertEquals("A", restored.getCache("a").get());
+      assertEquals("B", restored.getCache("b").get());
+      assertNull(restored.getCache("c"));
+   }
+
+   /**
+    * Tests that a snapshot cut short restores the entries before the cut,
+    * rather than none at all.
+    */
+   @Test
+   public void testTruncatedSnapshot() throws Exception
+   {
+      Path snapshotFile = Files.createTempDirectory("robusto").resolve("truncated.snapshot");
+
+      HashMapCommandCache<Integer, String, String> previous = new HashMapCommandCache<>("truncated", new CommandCacheConfig());
+
+      for(int i = 0; i < 10; i++)
+      {
+         previous.putCache(i, "value" + i);
+      }
+
+      assertEquals(10, CacheSnapshot.write(previous, snapshotFile));
+
+      long size = Files.size(snapshotFile);
+
+      try(FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE))
+      {
+         channel.truncate(size - 10);
+      }
+
+      HashMapCommandCache<Integer, String, String> restored = new HashMapCommandCache<>("truncated", new CommandCacheConfig());
+
+      assertEquals(9, CacheSnapshot.read(restored, snapshotFile));
+      assertEquals(9, restored.getCacheStats().getSize());
+   }
+
+   /**
+    * Tests that entries which cannot be serialized are left out of a
+    * snapshot without losing the rest.
+    */
+   @Test
+   public void testUnserializableEntrySkipped() throws Exception
+   {
+      Path snapshotFile = Files.createTempDirectory("robusto").resolve("skip.snapshot");
+
+      HashMapCommandCache<String, Object, Object> previous = new HashMapCommandCache<>("skip", new CommandCacheConfig());
+      previous.putCache("good", "value");
+      previous.putCache("bad", new Object());
+
+      assertEquals(1, CacheSnapshot.write(previous, snapshotFile));
+
+      HashMapCommandCache<String, Object, Object> restored = new HashMapCommandCache<>("skip", new CommandCacheConfig());
+
+      assertEquals(1, CacheSnapshot.read(restored, snapshotFile));
+      assertEquals("value", restored.getCache("good").get());
+      assertNull(restored.getCache("bad"));
+   }
+
+   /**
+    * Tests that a file that is not a snapshot is rejected, and that a missing
+    * file simply restores nothing.
+    */
+   @Test
+   public void testNotASnapshot() throws Exception
+   {
+      Path directory = Files.createTempDirectory("robusto");
+      Path garbage = directory.resolve("garbage.snapshot");
+      Files.write(garbage, "not a snapshot at all".getBytes("UTF-8"));
+
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<>("garbage", new CommandCacheConfig());
+
+      try
+      {
+         CacheSnapshot.read(cache, garbage);
+         fail("Garbage should not be read as a snapshot");
+      }
+      catch(IOException e)
+      {
+         // Expected
+      }
+
+      assertEquals(0, CacheSnapshot.read(cache, directory.resolve("missing.snapshot")));
+   }
+
+   /**
+    * Tests that scheduling snapshots does not keep a cache from being garbage
+    * collected.
+    */
+   @Test
+   public void testScheduledCacheCanBeCollected() throws Exception
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setSnapshotFile(Files.createTempDirectory("robusto").resolve("collected.snapshot").toString());
+
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<>("collected", config);
+      cache.scheduleSnapshots();
+
+      WeakReference<CommandCache<?,?,?>> reference = new WeakReference<>(cache);
+      cache = null;
+
+      for(int i = 0; i < 50 && reference.get() != null; i++)
+      {
+         System.gc();
+         Thread.sleep(20);
+      }
+
+      assertNull(reference.get());
+   }
+}
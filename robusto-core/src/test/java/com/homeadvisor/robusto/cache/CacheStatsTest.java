@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for {@link CacheStats}.
+ */
+public class CacheStatsTest
+{
+   @Test
+   public void testCacheStats() throws Exception
+   {
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig(0, 2);
+      config.setNegativeExpiration(60);
+      BoundedCommandCache<String, String, String> cache = new BoundedCommandCache<>("stats", config);
+
+      cache.putCache("a", "1", 30);
+      cache.putCache("b", "2", 4);
+      cache.putCache("none", null);
+
+      assertEquals("1", cache.getCache("a").get());
+      assertNull(cache.getCache("c"));
+      assertFalse(cache.getCache("none").isPresent());
+
+      CacheStats stats = cache.getCacheStats();
+
+      assertEquals(1, stats.getHitCount());
+      assertEquals(1, stats.getMissCount());
+      assertEquals(1, stats.getNegativeHitCount());
+      assertEquals(2.0 / 3, stats.getHitRate(), 0.001);
+      assertEquals(2, stats.getSize());
+      assertEquals(-1, stats.getWeight());
+
+      //
+      // Only puts with a load time count as loads, and percentiles are capped
+      // at the longest load
+      //
+
+      assertEquals(2, stats.getLoadCount());
+      assertEquals(34, stats.getTotalLoadTime());
+      assertEquals(30, stats.getMaxLoadTime());
+      assertEquals(5, stats.getLoadTimePercentile(0.5));
+      assertEquals(30, stats.getLoadTimePercentile(0.99));
+
+      //
+      // A third key makes room by evicting one
+      //
+
+      cache.putCache("c", "3");
+
+      assertEquals(1, cache.getCacheStats().getEvictionCount());
+      assertEquals(2, cache.getCacheStats().getSize());
+   }
+
+   /**
+    * Tests that a stale lookup after a miss is counted once as a stale hit
+    * when it finds a value, and not counted again when it does not.
+    */
+   @Test
+   public void testStaleLookups() throws Exception
+   {
+      BoundedCommandCacheConfig config = new BoundedCommandCacheConfig(0, 10);
+      config.setSoftExpiration(1);
+      BoundedCommandCache<String, String, String> cache = new BoundedCommandCache<>("stale", config);
+
+      cache.putCache("a", "1");
+
+      Thread.sleep(1100);
+
+      assertNull(cache.getCache("a"));
+      assertEquals("1", cache.getStaleCache("a", false).get());
+      assertNull(cache.getCache("b"));
+      assertNull(cache.getStaleCache("b", false));
+
+      CacheStats stats = cache.getCacheStats();
+
+      assertEquals(0, stats.getHitCount());
+      assertEquals(2, stats.getMissCount());
+      assertEquals(1, stats.getStaleHitCount());
+      assertEquals(2, stats.getRequestCount());
+   }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link CommandCache}.
+ */
+public class CommandCacheTest
+{
+   /**
+    * Tests that translated values are reused until the cached value changes.
+    */
+   @Test
+   public void testTranslationMemo()
+   {
+      AtomicInteger translations = new AtomicInteger();
+      HashMapCommandCache<String, String, Integer> cache = lengthCache("translationMemo", new CommandCacheConfig(), translations);
+
+      cache.putCache("key", "one");
+
+      assertEquals(3, (int)cache.getCache("key").get());
+      assertEquals(3, (int)cache.getCache("key").get());
+      assertEquals(3, (int)cache.getAll(Collections.singleton("key")).get("key").get());
+      assertEquals(1, translations.get());
+
+      cache.putCache("key", "three");
+
+      assertEquals(5, (int)cache.getCache("key").get());
+      assertEquals(2, translations.get());
+   }
+
+   /**
+    * Tests that the memo still hits when values are wrapped with their write
+    * time, since the wrapped value itself does not change between gets.
+    */
+   @Test
+   public void testTranslationMemoWithTimestamps()
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setSoftExpiration(60);
+
+      AtomicInteger translations = new AtomicInteger();
+      HashMapCommandCache<String, String, Integer> cache = lengthCache("translationMemoTimestamps", config, translations);
+
+      cache.putCache("key", "one");
+
+      assertEquals(3, (int)cache.getCache("key").get());
+      assertEquals(3, (int)cache.getCache("key").get());
+      assertEquals(1, translations.get());
+   }
+
+   /**
+    * Tests that a memoized translation is not reused once its entry is gone,
+    * even if an equal value is cached again later.
+    */
+   @Test
+   public void testTranslationMemoDroppedWithEntry()
+   {
+      AtomicInteger translations = new AtomicInteger();
+      HashMapCommandCache<String, String, Integer> cache = lengthCache("translationMemoDropped", new CommandCacheConfig(), translations);
+
+      cache.putCache("key", new String("one"));
+      assertEquals(3, (int)cache.getCache("key").get());
+
+      cache.emptyCache();
+      assertNull(cache.getCache("key"));
+
+      cache.putCache("key", new String("one"));
+      assertEquals(3, (int)cache.getCache("key").get());
+
+      assertEquals(2, translations.get());
+   }
+
+   /**
+    * Tests that concurrent readers of a hot key all get the right translation,
+    * and that it is only made about once rather than once per read.
+    */
+   @Test
+   public void testTranslationMemoConcurrentReaders() throws Exception
+   {
+      AtomicInteger translations = new AtomicInteger();
+      HashMapCommandCache<String, String, Integer> cache = lengthCache("translationMemoConcurrent", new CommandCacheConfig(), translations);
+
+      cache.putCache("key", "hot");
+
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      List<Future<?>> futures = new ArrayList<>();
+
+      try
+      {
+         for(int thread = 0; thread < 4; thread++)
+         {
+            futures.add(executor.submit(() ->
+            {
+               for(int i = 0; i < 1000; i++)
+               {
+                  assertEquals(3, (int)cache.getCache("key").get());
+               }
+            }));
+         }
+
+         for(Future<?> future : futures)
+         {
+            future.get(10, TimeUnit.SECONDS);
+         }
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      //
+      // Readers that miss the memo at the same time may each translate
+      //
+
+      assertTrue(translations.get() >= 1 && translations.get() <= 4);
+   }
+
+   /**
+    * Tests that a cache returning an empty Optional for a miss, rather than
+    * null, is still treated as a miss, and that only keys known to be absent
+    * come back as an empty Optional.
+    */
+   @Test
+   public void testEmptyOptionalIsMiss()
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setNegativeExpiration(60);
+
+      CommandCache<String, String, String> cache = new CommandCache<String, String, String>("emptyMiss", config)
+      {
+         @Override
+         protected Optional<String> doGetCache(String key)
+         {
+            return Optional.empty();
+         }
+
+         @Override
+         protected boolean doPutCache(String key, String value)
+         {
+            return true;
+         }
+
+         @Override
+         public void emptyCache()
+         {
+         }
+
+         @Override
+         public String dumpCache()
+         {
+            return "";
+         }
+      };
+
+      assertNull(cache.getCache("missing"));
+      assertTrue(cache.getAll(Collections.singleton("missing")).isEmpty());
+
+      cache.putCache("absent", null);
+
+      assertEquals(Optional.empty(), cache.getCache("absent"));
+      assertEquals(Optional.empty(), cache.getAll(Collections.singleton("absent")).get("absent"));
+   }
+
+   /**
+    * Creates a cache that memoizes translating values into their length,
+    * counting each translation it makes.
+    */
+   private static HashMapCommandCache<String, String, Integer> lengthCache(String name, CommandCacheConfig config, AtomicInteger translations)
+   {
+      config.setTranslationMemoSize(10);
+
+      HashMapCommandCache<String, String, Integer> cache = new HashMapCommandCache<>(name, config);
+      cache.setCacheGetHandler(value ->
+      {
+         translations.incrementAndGet();
+         return value.map(String::length);
+      });
+
+      return cache;
+   }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link NearCommandCache}.
+ */
+public class NearCommandCacheTest
+{
+   /**
+    * Tests that a near cache built from config string values serves repeat
+    * gets from its local tier and counts hits for each tier separately.
+    */
+   @Test
+   public void testTiers()
+   {
+      Map<String, Object> config = new HashMap<>();
+      config.put("remote", BoundedCommandCacheFactory.class.getName());
+      config.put("local.maxValue", "10");
+
+      NearCommandCache<Object, Object, Object> cache = new NearCommandCacheFactory().create("near", config);
+      assertTrue(cache.getRemoteCache() instanceof BoundedCommandCache);
+
+      cache.getRemoteCache().putCache("key", "value");
+
+      assertEquals("value", cache.getCache("key").get());
+      assertEquals("value", cache.getCache("key").get());
+      assertNull(cache.getCache("missing"));
+
+      cache.invalidate("key");
+      assertEquals("value", cache.getCache("key").get());
+
+      assertEquals(1, cache.getLocalHitCount());
+      assertEquals(2, cache.getRemoteHitCount());
+      assertEquals(1, cache.getMissCount());
+   }
+
+   /**
+    * Tests that values are written to the remote tier the same way they are
+    * read back from it, so the remote cache's own put handler never sees
+    * them, while its put enabled flag is still honored.
+    */
+   @Test
+   public void testRemoteTierStoresRawValues()
+   {
+      HashMapCommandCache<String, String, String> remote = new HashMapCommandCache<>("remote", new CommandCacheConfig());
+      remote.setCachePutHandler(value -> "translated by remote");
+
+      NearCommandCacheConfig config = new NearCommandCacheConfig();
+      config.setSoftExpiration(60);
+
+      NearCommandCache<String, String, String> cache = new NearCommandCache<>("near", config, remote);
+
+      cache.putCache("key", "value");
+      cache.putAll(Collections.singletonMap("bulk", "bulk value"));
+      cache.invalidate("key");
+      cache.invalidate("bulk");
+
+      assertEquals("value", cache.getCache("key").get());
+      assertEquals("bulk value", cache.getCache("bulk").get());
+      assertEquals(2, cache.getRemoteHitCount());
+      assertTrue((Object)remote.doGetCache("key").get() instanceof CacheEntry);
+
+      //
+      // Puts disabled on the remote tier leave it alone
+      //
+
+      remote.getConfig().setPutEnabled(false);
+      cache.putCache("local only", "value");
+
+      assertNull(remote.doGetCache("local only"));
+      assertEquals("value", cache.getCache("local only").get());
+   }
+
+   /**
+    * Tests that a remote read which races with an invalidation of the same
+    * key does not leave the value it read behind in the local tier.
+    */
+   @Test
+   public void testInvalidationRacingRemoteRead() throws Exception
+   {
+      CountDownLatch readStarted = new CountDownLatch(1);
+      CountDownLatch invalidated = new CountDownLatch(1);
+
+      HashMapCommandCache<String, String, String> remote = new HashMapCommandCache<String, String, String>("remote", new CommandCacheConfig())
+      {
+         @Override
+         protected Optional<String> doGetCache(String key)
+         {
+            Optional<String> value = super.doGetCache(key);
+
+            if(readStarted.getCount() > 0)
+            {
+               readStarted.countDown();
+
+               try
+               {
+                  invalidated.await(5, TimeUnit.SECONDS);
+               }
+               catch(InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+            }
+
+            return value;
+         }
+      };
+
+      remote.putCache("key", "old");
+
+      NearCommandCache<String, String, String> cache = new NearCommandCache<>("near", new NearCommandCacheConfig(), remote);
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+
+      try
+      {
+         Future<Optional<String>> slowRead = executor.submit(() -> cache.getCache("key"));
+
+         //
+         // The remote value changes while the read is in flight, and the
+         // change is reported before the read finishes
+         //
+
+         assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+         remote.putCache("key", "new");
+         cache.invalidate("key");
+         invalidated.countDown();
+
+         assertEquals("old", slowRead.get(5, TimeUnit.SECONDS).get());
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      assertEquals("new", cache.getCache("key").get());
+      assertEquals(0, cache.getLocalHitCount());
+      assertEquals(2, cache.getRemoteHitCount());
+   }
+}
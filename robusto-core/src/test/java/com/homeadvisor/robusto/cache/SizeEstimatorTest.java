@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link ReflectiveSizeEstimator} and {@link SerializedSizeEstimator}.
+ */
+public class SizeEstimatorTest
+{
+   @Test
+   public void testSizeEstimators() throws Exception
+   {
+      SizeEstimator reflective = new ReflectiveSizeEstimator();
+      SizeEstimator serialized = new SerializedSizeEstimator();
+
+      assertEquals(0, reflective.estimate(null));
+      assertEquals(0, serialized.estimate(null));
+
+      //
+      // Bigger values are estimated as bigger, and both estimators count the
+      // contents of arrays
+      //
+
+      assertTrue(reflective.estimate(new byte[1000]) >= 1000);
+      assertTrue(serialized.estimate(new byte[1000]) >= 1000);
+      assertTrue(reflective.estimate(new byte[1000]) > reflective.estimate(new byte[10]));
+
+      //
+      // An object reachable twice is only counted once
+      //
+
+      String shared = "a fairly long string that takes up some room";
+      String copy = new String(shared);
+
+      assertTrue(reflective.estimate(Arrays.asList(shared, shared)) < reflective.estimate(Arrays.asList(shared, copy)));
+
+      //
+      // Values that cannot be serialized fall back to reflection
+      //
+
+      Object unserializable = new Object();
+      assertEquals(reflective.estimate(unserializable), serialized.estimate(unserializable));
+   }
+
+   /**
+    * Tests that objects shared by the whole application are not counted as
+    * part of a value that references them.
+    */
+   @Test
+   public void testSharedObjectsNotCounted()
+   {
+      SizeEstimator reflective = new ReflectiveSizeEstimator();
+
+      long plain = reflective.estimate(new Holder(null));
+
+      assertEquals(plain, reflective.estimate(new Holder(Thread.currentThread())));
+      assertEquals(plain, reflective.estimate(new Holder(getClass().getClassLoader())));
+      assertEquals(plain, reflective.estimate(new Holder(LoggerFactory.getLogger(SizeEstimatorTest.class))));
+      assertEquals(plain, reflective.estimate(new Holder(TimeUnit.SECONDS)));
+      assertEquals(0, reflective.estimate(Thread.currentThread()));
+   }
+
+   /**
+    * Tests that the walk stops after visiting the configured number of
+    * objects, so a huge graph is under-estimated rather than walked in full.
+    */
+   @Test
+   public void testVisitBudget()
+   {
+      List<Integer> list = new LinkedList<>();
+
+      for(int i = 0; i < 10000; i++)
+      {
+         list.add(1000 + i);
+      }
+
+      long full = new ReflectiveSizeEstimator().estimate(list);
+      long limited = new ReflectiveSizeEstimator(100).estimate(list);
+
+      assertTrue(limited > 0);
+      assertTrue(limited < full / 50);
+      assertEquals(ReflectiveSizeEstimator.DEFAULT_MAX_OBJECTS, new ReflectiveSizeEstimator().getMaxObjects());
+   }
+
+   private static final class Holder
+   {
+      private final Object reference;
+
+      private Holder(Object reference)
+      {
+         this.reference = reference;
+      }
+   }
+}
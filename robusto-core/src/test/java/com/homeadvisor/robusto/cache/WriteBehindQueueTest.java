@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link WriteBehindQueue}.
+ */
+public class WriteBehindQueueTest
+{
+   /**
+    * Tests that write behind puts are batched by a background writer, and
+    * dropped once the queue is full.
+    */
+   @Test
+   public void testWriteBehind() throws Exception
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setWriteBehindQueueSize(2);
+
+      CountDownLatch release = new CountDownLatch(1);
+      List<Set<String>> batches = new CopyOnWriteArrayList<>();
+
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<String, String, String>("writeBehind", config)
+      {
+         @Override
+         protected boolean doPutAllCache(Map<String, String> values)
+         {
+            batches.add(new HashSet<>(values.keySet()));
+
+            try
+            {
+               release.await();
+            }
+            catch(InterruptedException e)
+            {
+               return false;
+            }
+
+            return super.doPutAllCache(values);
+         }
+      };
+
+      //
+      // The writer takes the first put and blocks, so the next two fill
+      // the queue and the last one is dropped
+      //
+
+      assertTrue(cache.putCache("a", "A"));
+
+      awaitBatches(batches, 1);
+
+      assertTrue(cache.putCache("b", "B"));
+      assertTrue(cache.putCache("c", "C"));
+      assertFalse(cache.putCache("d", "D"));
+
+      assertEquals(2, cache.getWriteBehindQueue().getQueueDepth());
+      assertEquals(1, cache.getWriteBehindQueue().getDroppedCount());
+
+      release.countDown();
+      cache.getWriteBehindQueue().flush();
+
+      assertEquals(Arrays.asList(Collections.singleton("a"), new HashSet<>(Arrays.asList("b", "c"))), batches);
+      assertEquals(3, cache.getWriteBehindQueue().getWrittenCount());
+      assertEquals("C", cache.getCache("c").get());
+      assertNull(cache.getCache("d"));
+   }
+
+   /**
+    * Tests that when many threads overflow the queue at once, every put is
+    * either written or counted as dropped, and the queue never holds more
+    * than its size.
+    */
+   @Test
+   public void testConcurrentOverflow() throws Exception
+   {
+      CountDownLatch release = new CountDownLatch(1);
+      List<Map<Integer, Integer>> batches = new CopyOnWriteArrayList<>();
+
+      WriteBehindQueue<Integer, Integer> queue = new WriteBehindQueue<>("overflow", 50, 10, batch ->
+      {
+         batches.add(batch);
+
+         try
+         {
+            release.await();
+         }
+         catch(InterruptedException e)
+         {
+            return false;
+         }
+
+         return true;
+      });
+
+      //
+      // Block the writer on its first batch so the rest pile up
+      //
+
+      assertTrue(queue.offer(-1, -1));
+      awaitBatches(batches, 1);
+
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      AtomicInteger accepted = new AtomicInteger();
+      List<Future<?>> futures = new ArrayList<>();
+
+      try
+      {
+         for(int thread = 0; thread < 4; thread++)
+         {
+            final int offset = thread * 1000;
+
+            futures.add(executor.submit(() ->
+            {
+               for(int i = 0; i < 100; i++)
+               {
+                  if(queue.offer(offset + i, i))
+                  {
+                     accepted.incrementAndGet();
+                  }
+               }
+            }));
+         }
+
+         for(Future<?> future : futures)
+         {
+            future.get(10, TimeUnit.SECONDS);
+         }
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+
+      assertEquals(50, accepted.get());
+      assertEquals(50, queue.getQueueDepth());
+      assertEquals(350, queue.getDroppedCount());
+
+      release.countDown();
+      queue.flush();
+
+      int batchedPuts = 0;
+
+      for(Map<Integer, Integer> batch : batches)
+      {
+         assertTrue(batch.size() <= 10);
+         batchedPuts += batch.size();
+      }
+
+      assertEquals(51, batchedPuts);
+      assertEquals(51, queue.getWrittenCount());
+      assertEquals(0, queue.getQueueDepth());
+   }
+
+   /**
+    * Tests that only the last of several puts for the same key in a batch is
+    * written.
+    */
+   @Test
+   public void testLastPutWinsInBatch() throws Exception
+   {
+      CountDownLatch release = new CountDownLatch(1);
+      List<Map<String, String>> batches = new CopyOnWriteArrayList<>();
+
+      WriteBehindQueue<String, String> queue = new WriteBehindQueue<>("lastPut", 10, 10, batch ->
+      {
+         batches.add(new HashMap<>(batch));
+
+         try
+         {
+            release.await();
+         }
+         catch(InterruptedException e)
+         {
+            return false;
+         }
+
+         return true;
+      });
+
+      queue.offer("first", "value");
+      awaitBatches(batches, 1);
+
+      queue.offer("key", "one");
+      queue.offer("key", "two");
+      queue.offer("key", "three");
+
+      release.countDown();
+      queue.flush();
+
+      assertEquals(Collections.singletonMap("key", "three"), batches.get(1));
+      assertEquals(4, queue.getWrittenCount());
+   }
+
+   /**
+    * Tests that batches the underlying cache fails to write, or throws on,
+    * are counted as failed and do not stop the writer or hang a flush.
+    */
+   @Test
+   public void testFailedBatches() throws Exception
+   {
+      AtomicInteger calls = new AtomicInteger();
+
+      WriteBehindQueue<String, String> queue = new WriteBehindQueue<>("failed", 10, 1, batch ->
+      {
+         switch(calls.incrementAndGet())
+         {
+            case 1:
+               return false;
+            case 2:
+               throw new IllegalStateException("Cache is down");
+            default:
+               return true;
+         }
+      });
+
+      queue.offer("a", "A");
+      queue.offer("b", "B");
+      queue.offer("c", "C");
+      queue.flush();
+
+      assertEquals(2, queue.getFailedCount());
+      assertEquals(1, queue.getWrittenCount());
+   }
+
+   /**
+    * Tests that closing a queue writes everything already queued, ends the
+    * writer thread, and drops later puts.
+    */
+   @Test
+   public void testClose() throws Exception
+   {
+      List<Map<String, String>> batches = new CopyOnWriteArrayList<>();
+
+      WriteBehindQueue<String, String> queue = new WriteBehindQueue<>("close", 10, 1, batch ->
+      {
+         sleep(20);
+         return batches.add(batch);
+      });
+
+      for(int i = 0; i < 5; i++)
+      {
+         assertTrue(queue.offer("key" + i, "value" + i));
+      }
+
+      queue.close();
+
+      assertTrue(queue.isClosed());
+      assertEquals(5, batches.size());
+      assertEquals(5, queue.getWrittenCount());
+      assertFalse(isWriterRunning("close"));
+
+      assertFalse(queue.offer("late", "value"));
+      assertEquals(1, queue.getDroppedCount());
+   }
+
+   /**
+    * Tests that a cache whose write behind queue was closed writes puts
+    * directly.
+    */
+   @Test
+   public void testCacheWritesDirectlyAfterClose() throws Exception
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setWriteBehindQueueSize(10);
+
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<>("closedWriteBehind", config);
+
+      cache.getWriteBehindQueue().close();
+
+      assertTrue(cache.putCache("key", "value"));
+      assertEquals("value", cache.getCache("key").get());
+      assertEquals(0, cache.getWriteBehindQueue().getDroppedCount());
+   }
+
+   /**
+    * Tests that the writer thread does not keep its cache alive, and ends
+    * once the cache has been garbage collected.
+    */
+   @Test
+   public void testCacheCollected() throws Exception
+   {
+      CommandCacheConfig config = new CommandCacheConfig();
+      config.setWriteBehindQueueSize(10);
+
+      HashMapCommandCache<String, String, String> cache = new HashMapCommandCache<>("collectedWriteBehind", config);
+      cache.putCache("key", "value");
+      cache.getWriteBehindQueue().flush();
+
+      WeakReference<Object> reference = new WeakReference<>(cache);
+      cache = null;
+
+      long deadline = System.currentTimeMillis() + 10000;
+
+      while((reference.get() != null || isWriterRunning("collectedWriteBehind")) && System.currentTimeMillis() < deadline)
+      {
+         System.gc();
+         sleep(50);
+      }
+
+      assertNull(reference.get());
+      assertFalse(isWriterRunning("collectedWriteBehind"));
+   }
+
+   private static boolean isWriterRunning(String name)
+   {
+      return Thread.getAllStackTraces().keySet().stream()
+            .anyMatch(thread -> thread.getName().equals("robusto-write-behind-" + name));
+   }
+
+   private static void sleep(long millis)
+   {
+      try
+      {
+         Thread.sleep(millis);
+      }
+      catch(InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static void awaitBatches(List<?> batches, int count) throws InterruptedException
+   {
+      long deadline = System.currentTimeMillis() + 5000;
+
+      while(batches.size() < count && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertEquals(count, batches.size());
+   }
+}
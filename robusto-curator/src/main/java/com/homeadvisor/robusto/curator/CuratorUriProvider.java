@@ -17,6 +17,10 @@ package com.homeadvisor.robusto.curator;
 
 import com.google.common.base.Throwables;
 import com.homeadvisor.robusto.ApiCommand;
+import com.homeadvisor.robusto.AsyncRemoteServiceCallback;
+import com.homeadvisor.robusto.AsyncUriProvider;
+import com.homeadvisor.robusto.HedgePolicy;
+import com.homeadvisor.robusto.HedgingUriProvider;
 import com.homeadvisor.robusto.RemoteServiceCallback;
 import com.homeadvisor.robusto.RetryableApiCommandException;
 import com.homeadvisor.robusto.UriProvider;
@@ -27,6 +31,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Implementation of {@link UriProvider} backed by curator service discovery.
@@ -34,8 +41,13 @@ import java.net.SocketTimeoutException;
  * and potentially a different service instance. The instance that is returned
  * by each lookup is completely dependent on the state of the Service Provider,
  * including instance states, provider strategy, etc.
+ * <br/><br/>
+ * Also implements {@link AsyncUriProvider}, in which case errors are noted on
+ * the instance when the returned future completes exceptionally, and
+ * {@link HedgingUriProvider} so that requests hedged by a {@link HedgePolicy}
+ * go to a different instance whenever there is more than one.
  */
-public class CuratorUriProvider<T> implements UriProvider<T>
+public class CuratorUriProvider<T> implements UriProvider<T>, AsyncUriProvider<T>, HedgingUriProvider<T>
 {
    private final static Logger LOG = LoggerFactory.getLogger(CuratorUriProvider.class);
 
@@ -56,26 +68,18 @@ public class CuratorUriProvider<T> implements UriProvider<T>
 
    @Override
    public T execute(RemoteServiceCallback<T> callback)
+   {
+      return execute(callback, (Collection<String>) null);
+   }
+
+   @Override
+   public T execute(RemoteServiceCallback<T> callback, Collection<String> excludedUris)
    {
       ServiceInstance instance = null;
 
       try
       {
-         instance = serviceProvider.getInstance();
-
-         if(instance == null)
-         {
-            if(serviceName == null)
-            {
-               throw new RetryableApiCommandException("No available instances were found");
-            }
-            else
-            {
-               throw new RetryableApiCommandException("No available instances were found for service " + serviceName);
-            }
-         }
-
-         LOG.debug("Using curator service instance {}", instance.getId());
+         instance = excludedUris == null || excludedUris.isEmpty() ? getInstance() : getInstanceExcluding(excludedUris);
 
          return callback.run(instance.buildUriSpec());
       }
@@ -97,4 +101,81 @@ public class CuratorUriProvider<T> implements UriProvider<T>
          return null;
       }
    }
+
+   @Override
+   public CompletableFuture<T> executeAsync(AsyncRemoteServiceCallback<T> callback)
+   {
+      ServiceInstance instance;
+
+      try
+      {
+         instance = getInstance();
+      }
+      catch (Exception e)
+      {
+         CompletableFuture<T> failed = new CompletableFuture<>();
+         failed.completeExceptionally(e);
+         return failed;
+      }
+
+      return callback.runAsync(instance.buildUriSpec()).whenComplete((result, t) ->
+      {
+         Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+
+         if(cause instanceof RetryableApiCommandException || cause instanceof SocketTimeoutException)
+         {
+            LOG.debug("Exception {} is being noted as error on instance", cause);
+            serviceProvider.noteError(instance);
+         }
+      });
+   }
+
+   /**
+    * Picks an instance whose URI is not excluded, falling back to whatever
+    * the provider returns when it only offers excluded instances. Instances
+    * come from the provider rather than from all registered instances, so its
+    * instance filters and down instance policy still apply; its strategy
+    * normally moves on to a different instance each time, so asking once per
+    * instance is enough to get past the excluded ones.
+    */
+   private ServiceInstance getInstanceExcluding(Collection<String> excludedUris) throws Exception
+   {
+      int attempts = Math.max(1, serviceProvider.getAllInstances().size());
+      ServiceInstance instance = null;
+
+      for(int i = 0; i < attempts; i++)
+      {
+         instance = getInstance();
+
+         if(!excludedUris.contains(instance.buildUriSpec()))
+         {
+            break;
+         }
+      }
+
+      LOG.debug("Using curator service instance {} for hedged request", instance.getId());
+
+      return instance;
+   }
+
+   private ServiceInstance getInstance() throws Exception
+   {
+      ServiceInstance instance = serviceProvider.getInstance();
+
+      if(instance == null)
+      {
+         if(serviceName == null)
+         {
+            throw new RetryableApiCommandException("No available instances were found");
+         }
+         else
+         {
+            throw new RetryableApiCommandException("No available instances were found for service " + serviceName);
+         }
+      }
+
+      LOG.debug("Using curator service instance {}", instance.getId());
+
+      return instance;
+   }
 }
@@ -17,22 +17,40 @@ package com.homeadvisor.robusto.cache.guava;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.homeadvisor.robusto.cache.CacheSnapshot;
 import com.homeadvisor.robusto.cache.CommandCache;
 import com.homeadvisor.robusto.cache.CommandCacheConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Implementation of {@link CommandCache} backed by a Guava cache.
+ * <br/><br/>
+ * The cache is bounded by number of entries, unless a maximum number of
+ * bytes is configured, in which case it is bounded by the estimated size of
+ * its values instead. Each value is estimated once, when it is put, and that
+ * weight is kept alongside it so the total can be tracked as entries come and
+ * go.
  */
 public class GuavaCommandCache<K,F,T> extends CommandCache<K,F,T>
 {
    private final static Logger LOG = LoggerFactory.getLogger(GuavaCommandCache.class);
 
-   private final Cache<K,F> cache;
+   private final Cache<K,Weighed<F>> cache;
+
+   /**
+    * Sum of the weights of all entries currently in the cache.
+    */
+   private final LongAdder weight = new LongAdder();
 
    /**
     * Constructor. Initializes the cache with the provided config.
@@ -48,28 +66,116 @@ public class GuavaCommandCache<K,F,T> extends CommandCache<K,F,T>
    /**
     * Constructs the backing cache.
     */
-   private Cache initCache()
+   private Cache<K,Weighed<F>> initCache()
    {
-      return CacheBuilder.newBuilder()
-            .maximumSize(getGuavaConfig().getMaxSize())
+      CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder();
+
+      if(getGuavaConfig().isWeighted())
+      {
+         builder.maximumWeight(getGuavaConfig().getMaxBytes())
+               .weigher((K key, Weighed<F> value) -> value.weight);
+      }
+      else
+      {
+         builder.maximumSize(getGuavaConfig().getMaxSize());
+      }
+
+      return builder
             .expireAfterAccess(getGuavaConfig().getExpiration(), TimeUnit.SECONDS)
+            .removalListener((RemovalListener<K,Weighed<F>>)this::onRemoval)
             .recordStats()
             .build();
    }
 
+   /**
+    * Keeps the total weight and eviction count up to date as entries leave
+    * the cache, for any reason.
+    */
+   private void onRemoval(RemovalNotification<K,Weighed<F>> removal)
+   {
+      weight.add(-removal.getValue().weight);
+
+      if(removal.wasEvicted())
+      {
+         recordEvictions(1);
+      }
+   }
+
+   /**
+    * Wraps a value with its estimated size, and adds it to the total weight.
+    * The weight is added before the put so the total never goes negative when
+    * the entry is evicted straight away.
+    */
+   private Weighed<F> weigh(F value)
+   {
+      int size = 0;
+
+      if(getGuavaConfig().isWeighted())
+      {
+         size = (int)Math.min(Integer.MAX_VALUE, getGuavaConfig().getSizeEstimator().estimate(value));
+      }
+
+      weight.add(size);
+
+      return new Weighed<>(value, size);
+   }
+
    @Override
    protected Optional<F> doGetCache(K key)
    {
-      return Optional.ofNullable(cache.getIfPresent(key));
+      Weighed<F> value = cache.getIfPresent(key);
+      return value != null ? Optional.of(value.value) : null;
    }
 
    @Override
    protected boolean doPutCache(K key, F value)
    {
-      cache.put(key, value);
+      cache.put(key, weigh(value));
       return true;
    }
 
+   @Override
+   protected Map<K,Optional<F>> doGetAllCache(Collection<K> keys)
+   {
+      Map<K,Optional<F>> results = new LinkedHashMap<>();
+
+      cache.getAllPresent(keys).forEach((key, value) -> results.put(key, Optional.of(value.value)));
+
+      return results;
+   }
+
+   @Override
+   protected boolean doPutAllCache(Map<K,F> values)
+   {
+      values.forEach((key, value) -> cache.put(key, weigh(value)));
+      return true;
+   }
+
+   /**
+    * Guava does not expose when an entry was last accessed, so entries are
+    * exported with a full expiration. Since entries expire after their last
+    * access, that is also what a restored entry would get anyway.
+    */
+   @Override
+   protected void doExportCache(CacheSnapshot.EntryConsumer<K,F> consumer)
+   {
+      long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getGuavaConfig().getExpiration());
+
+      cache.asMap().forEach((key, value) -> consumer.accept(key, value.value, expiresAt));
+   }
+
+   @Override
+   protected long doGetSize()
+   {
+      return cache.size();
+   }
+
+   @Override
+   protected long doGetWeight()
+   {
+      return getGuavaConfig().isWeighted() ? weight.sum() : -1;
+   }
+
    @Override
    public void emptyCache()
    {
@@ -81,7 +187,7 @@ public class GuavaCommandCache<K,F,T> extends CommandCache<K,F,T>
    {
       StringBuilder output = new StringBuilder("Cache ").append(getName()).append("\n\n");
 
-      cache.asMap().forEach( (k, v) -> output.append(k).append(" : ").append(v.toString()).append("\n") );
+      cache.asMap().forEach( (k, v) -> output.append(k).append(" : ").append(v.value.toString()).append("\n") );
 
       return output.toString();
    }
@@ -89,12 +195,25 @@ public class GuavaCommandCache<K,F,T> extends CommandCache<K,F,T>
    /**
     * Exposes the Guava cache stats for this cache.
     * @return String of stats for this cache.
+    * @deprecated Use {@link #getCacheStats()}, which reports the same figures
+    * for every cache implementation.
     */
+   @Deprecated
    public String getStats()
    {
       return new StringBuilder(getName()).append(" : ").append(cache.stats().toString()).toString();
    }
 
+   /**
+    * Total estimated size of the values in this cache, in bytes. Always zero
+    * unless the cache is bounded by bytes.
+    * @return Current weight of the cache.
+    */
+   public long getWeight()
+   {
+      return weight.sum();
+   }
+
    /**
     * Helper method so we dont always have to cast the {@link CommandCacheConfig}
     * to the type we expect it to be.
@@ -103,4 +222,20 @@ public class GuavaCommandCache<K,F,T> extends CommandCache<K,F,T>
    {
       return (GuavaCommandCacheConfig)getConfig();
    }
+
+   /**
+    * Value stored in the cache along with its estimated size.
+    */
+   private static final class Weighed<F>
+   {
+      private final F value;
+
+      private final int weight;
+
+      private Weighed(F value, int weight)
+      {
+         this.value  = value;
+         this.weight = weight;
+      }
+   }
 }
@@ -16,6 +16,8 @@
 package com.homeadvisor.robusto.cache.guava;
 
 import com.homeadvisor.robusto.cache.CommandCacheConfig;
+import com.homeadvisor.robusto.cache.ReflectiveSizeEstimator;
+import com.homeadvisor.robusto.cache.SizeEstimator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +35,10 @@ public class GuavaCommandCacheConfig extends CommandCacheConfig
 
    private final static String CONFIG_EXPIRATION = "expiration";
 
+   private final static String CONFIG_MAX_BYTES = "maxBytes";
+
+   private final static String CONFIG_SIZE_ESTIMATOR = "sizeEstimator";
+
    /**
     * Time before individual entries should expire (in seconds).
     */
@@ -43,6 +49,17 @@ public class GuavaCommandCacheConfig extends CommandCacheConfig
     */
    private int maxSize = 1000;
 
+   /**
+    * Maximum estimated size of all values in the cache (in bytes). When set,
+    * this replaces the limit on number of entries.
+    */
+   private long maxBytes = 0;
+
+   /**
+    * Estimates the size of values when the cache is bounded by bytes.
+    */
+   private SizeEstimator sizeEstimator = new ReflectiveSizeEstimator();
+
    /**
     * Initialize this cache config using default values.
     */
@@ -80,10 +97,41 @@ public class GuavaCommandCacheConfig extends CommandCacheConfig
       this.maxSize = maxSize;
    }
 
+   public long getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+   public void setMaxBytes(long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+   }
+
+   public SizeEstimator getSizeEstimator()
+   {
+      return sizeEstimator;
+   }
+
+   public void setSizeEstimator(SizeEstimator sizeEstimator)
+   {
+      this.sizeEstimator = sizeEstimator;
+   }
+
+   /**
+    * Determines if the cache is bounded by the estimated size of its values
+    * instead of by number of entries.
+    * @return True if a maximum number of bytes is set.
+    */
+   public boolean isWeighted()
+   {
+      return maxBytes > 0;
+   }
+
    /**
     * Static method to create a new GuavaCommandCacheConfig from a map of config
     * values. This will pull out the applicable config values and ignore any
-    * others.
+    * others. The size estimator is given as the name of a {@link SizeEstimator}
+    * class with a no argument constructor.
     * @param configMap Map of config keys and values.
     * @return New GuavaCommandCacheConfig.
     */
@@ -93,10 +141,17 @@ public class GuavaCommandCacheConfig extends CommandCacheConfig
 
       try
       {
-         newConfig.setEnabled(Boolean.valueOf(configMap.getOrDefault(CommandCacheConfig.CONFIG_ENABLED, "true").toString()));
-         newConfig.setPutEnabled(Boolean.valueOf(configMap.getOrDefault(CommandCacheConfig.CONFIG_PUT_ENABLED, "true").toString()));
-         newConfig.setExpiration(Integer.getInteger(configMap.getOrDefault(CONFIG_EXPIRATION, "300").toString()));
-         newConfig.setMaxSize(Integer.getInteger(configMap.getOrDefault(CONFIG_MAX_VALUE, "1000").toString()));
+         newConfig.applyMap(configMap);
+         newConfig.setExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_EXPIRATION, "300").toString()));
+         newConfig.setMaxSize(Integer.valueOf(configMap.getOrDefault(CONFIG_MAX_VALUE, "1000").toString()));
+         newConfig.setMaxBytes(parseBytes(configMap.getOrDefault(CONFIG_MAX_BYTES, "0").toString()));
+
+         Object estimatorType = configMap.get(CONFIG_SIZE_ESTIMATOR);
+
+         if(estimatorType != null)
+         {
+            newConfig.setSizeEstimator((SizeEstimator)Class.forName(estimatorType.toString()).newInstance());
+         }
       }
       catch(Exception e)
       {
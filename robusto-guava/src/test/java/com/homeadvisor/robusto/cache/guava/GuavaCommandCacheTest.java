@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.guava;
+
+import com.homeadvisor.robusto.cache.SerializedSizeEstimator;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for {@link GuavaCommandCache}.
+ */
+public class GuavaCommandCacheTest
+{
+   /**
+    * Tests that a cache bounded by bytes evicts by estimated size rather than
+    * by count, and that the total weight always matches what is left.
+    */
+   @Test
+   public void testWeightedEviction()
+   {
+      GuavaCommandCacheConfig config = new GuavaCommandCacheConfig(300, 1000);
+      config.setMaxBytes(1000);
+      config.setSizeEstimator(value -> 100);
+
+      GuavaCommandCache<Integer, String, String> cache = new GuavaCommandCache<>("weighted", config);
+
+      for(int i = 0; i < 50; i++)
+      {
+         cache.putCache(i, "value" + i);
+      }
+
+      long size = cache.getCacheStats().getSize();
+
+      assertTrue(size > 0 && size <= 10);
+      assertEquals(size * 100, cache.getWeight());
+      assertEquals(size * 100, cache.getCacheStats().getWeight());
+      assertEquals(50 - size, cache.getCacheStats().getEvictionCount());
+   }
+
+   /**
+    * Tests that replacing and removing entries takes their old weight off the
+    * total, through the removal listener, without counting as evictions.
+    */
+   @Test
+   public void testWeightAccounting()
+   {
+      GuavaCommandCacheConfig config = new GuavaCommandCacheConfig(300, 1000);
+      config.setMaxBytes(1024 * 1024);
+      config.setSizeEstimator(value -> ((String)value).length());
+
+      GuavaCommandCache<String, String, String> cache = new GuavaCommandCache<>("accounting", config);
+
+      cache.putCache("a", "12345");
+      cache.putCache("b", "1234567890");
+      assertEquals(15, cache.getWeight());
+
+      cache.putCache("a", "123");
+      assertEquals(13, cache.getWeight());
+
+      Map<String, String> values = new HashMap<>();
+      values.put("b", "1");
+      values.put("c", "12");
+      cache.putAll(values);
+      assertEquals(6, cache.getWeight());
+
+      cache.emptyCache();
+      assertEquals(0, cache.getWeight());
+      assertEquals(0, cache.getCacheStats().getEvictionCount());
+   }
+
+   /**
+    * Tests that a value too big for the whole cache is evicted straight away
+    * without leaving its weight behind.
+    */
+   @Test
+   public void testOversizedValue()
+   {
+      GuavaCommandCacheConfig config = new GuavaCommandCacheConfig(300, 1000);
+      config.setMaxBytes(100);
+      config.setSizeEstimator(value -> ((String)value).length());
+
+      GuavaCommandCache<String, String, String> cache = new GuavaCommandCache<>("oversized", config);
+
+      cache.putCache("big", new String(new char[1000]));
+
+      assertNull(cache.getCache("big"));
+      assertEquals(0, cache.getWeight());
+      assertEquals(1, cache.getCacheStats().getEvictionCount());
+   }
+
+   /**
+    * Tests that a cache bounded by count reports no weight.
+    */
+   @Test
+   public void testUnweighted()
+   {
+      GuavaCommandCache<String, String, String> cache = new GuavaCommandCache<>("unweighted", new GuavaCommandCacheConfig(300, 2));
+
+      cache.putCache("a", "A");
+      cache.putCache("b", "B");
+      cache.putCache("c", "C");
+
+      assertEquals(2, cache.getCacheStats().getSize());
+      assertEquals(-1, cache.getCacheStats().getWeight());
+      assertEquals(0, cache.getWeight());
+      assertTrue(cache.getStats().startsWith("unweighted : "));
+   }
+
+   /**
+    * Tests that the factory reads the byte limit with units and the size
+    * estimator class.
+    */
+   @Test
+   public void testConfigFromMap()
+   {
+      Map<String, Object> configMap = new HashMap<>();
+      configMap.put("maxBytes", "2k");
+      configMap.put("sizeEstimator", SerializedSizeEstimator.class.getName());
+
+      GuavaCommandCacheConfig config = GuavaCommandCacheConfig.fromMap(configMap);
+
+      assertEquals(2048, config.getMaxBytes());
+      assertTrue(config.isWeighted());
+      assertTrue(config.getSizeEstimator() instanceof SerializedSizeEstimator);
+   }
+}
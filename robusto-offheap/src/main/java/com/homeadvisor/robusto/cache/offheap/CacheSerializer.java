@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.homeadvisor.robusto.cache.CacheEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts cache values to and from the bytes that {@link OffHeapCommandCache}
+ * keeps outside the Java heap. Implementations must be safe to call from many
+ * threads at once, and are never given a null value.
+ * <br/><br/>
+ * {@link JavaCacheSerializer} is used by default. {@link JacksonCacheSerializer}
+ * works with any Jackson ObjectMapper, including one built on a binary format
+ * such as Smile, which is usually both smaller and faster.
+ * <br/><br/>
+ * Caches that need to know the age of their entries store values wrapped in a
+ * {@link CacheEntry}. Those go through {@link #serializeEntry(CacheEntry)},
+ * which writes the entry's metadata itself, so implementations of
+ * {@link #serialize(Object)} only ever see plain values of their own type.
+ */
+public interface CacheSerializer<F>
+{
+   /**
+    * Size of the header {@link #serializeEntry(CacheEntry)} writes before the
+    * value: the write time, expiration jitter and load time of the entry,
+    * followed by one byte that is zero if the value is null.
+    */
+   int ENTRY_HEADER_BYTES = 8 + 4 + 8 + 1;
+
+   /**
+    * Converts a value to bytes.
+    * @param value Value to convert, never null.
+    * @return Serialized form of the value.
+    * @throws IOException If the value cannot be serialized.
+    */
+   byte[] serialize(F value) throws IOException;
+
+   /**
+    * Converts bytes created by {@link #serialize(Object)} back to a value.
+    * @param bytes Serialized form of a value.
+    * @return Value.
+    * @throws IOException If the bytes cannot be deserialized.
+    */
+   F deserialize(byte[] bytes) throws IOException;
+
+   /**
+    * Converts a {@link CacheEntry} to bytes, as a fixed size header of
+    * {@link #ENTRY_HEADER_BYTES} bytes holding its metadata followed by the
+    * value converted with {@link #serialize(Object)}.
+    * @param entry Entry to convert, never null.
+    * @return Serialized form of the entry.
+    * @throws IOException If the value cannot be serialized.
+    */
+   default byte[] serializeEntry(CacheEntry<F> entry) throws IOException
+   {
+      byte[] value = entry.getValue() != null ? serialize(entry.getValue()) : new byte[0];
+
+      ByteBuffer bytes = ByteBuffer.allocate(ENTRY_HEADER_BYTES + value.length);
+      bytes.putLong(entry.getWrittenAt());
+      bytes.putFloat(entry.getExpirationJitter());
+      bytes.putLong(entry.getLoadMillis());
+      bytes.put((byte)(entry.getValue() != null ? 1 : 0));
+      bytes.put(value);
+
+      return bytes.array();
+   }
+
+   /**
+    * Converts bytes created by {@link #serializeEntry(CacheEntry)} back to a
+    * {@link CacheEntry}.
+    * @param bytes Serialized form of an entry.
+    * @return Entry.
+    * @throws IOException If the bytes are too short to hold the header, or the
+    * value cannot be deserialized.
+    */
+   default CacheEntry<F> deserializeEntry(byte[] bytes) throws IOException
+   {
+      if(bytes.length < ENTRY_HEADER_BYTES)
+      {
+         throw new IOException("Cache entry of " + bytes.length + " bytes is shorter than its header");
+      }
+
+      ByteBuffer header = ByteBuffer.wrap(bytes);
+      long writtenAt    = header.getLong();
+      float jitter      = header.getFloat();
+      long loadMillis   = header.getLong();
+      boolean hasValue  = header.get() != 0;
+
+      F value = hasValue ? deserialize(Arrays.copyOfRange(bytes, ENTRY_HEADER_BYTES, bytes.length)) : null;
+
+      return new CacheEntry<>(value, writtenAt, jitter, loadMillis);
+   }
+}
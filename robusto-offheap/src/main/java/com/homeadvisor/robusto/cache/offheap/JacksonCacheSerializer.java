@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Implementation of {@link CacheSerializer} that uses a Jackson ObjectMapper
+ * to convert values of a single type. Any ObjectMapper can be used, so a
+ * binary format only needs a different JsonFactory, for example Smile:
+ * <br/>
+ * <pre>new JacksonCacheSerializer&lt;&gt;(new ObjectMapper(new SmileFactory()), MyDto.class)</pre>
+ * Requires jackson-databind, which this module only depends on optionally.
+ */
+public class JacksonCacheSerializer<F> implements CacheSerializer<F>
+{
+   private final ObjectMapper objectMapper;
+
+   private final Class<F> valueType;
+
+   public JacksonCacheSerializer(ObjectMapper objectMapper, Class<F> valueType)
+   {
+      this.objectMapper = objectMapper;
+      this.valueType    = valueType;
+   }
+
+   @Override
+   public byte[] serialize(F value) throws IOException
+   {
+      return objectMapper.writeValueAsBytes(value);
+   }
+
+   @Override
+   public F deserialize(byte[] bytes) throws IOException
+   {
+      return objectMapper.readValue(bytes, valueType);
+   }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Implementation of {@link CacheSerializer} that uses standard Java
+ * serialization, so it works with any {@link java.io.Serializable} value
+ * without further setup.
+ */
+public class JavaCacheSerializer<F> implements CacheSerializer<F>
+{
+   @Override
+   public byte[] serialize(F value) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      try(ObjectOutputStream output = new ObjectOutputStream(bytes))
+      {
+         output.writeObject(value);
+      }
+
+      return bytes.toByteArray();
+   }
+
+   @Override
+   public F deserialize(byte[] bytes) throws IOException
+   {
+      try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+      {
+         return (F)input.readObject();
+      }
+      catch(ClassNotFoundException e)
+      {
+         throw new IOException("Unable to deserialize cache value", e);
+      }
+   }
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.homeadvisor.robusto.cache.CacheEntry;
+import com.homeadvisor.robusto.cache.CacheSnapshot;
+import com.homeadvisor.robusto.cache.CommandCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implementation of {@link CommandCache} that keeps values serialized in
+ * direct memory, outside the Java heap, so a large cache adds almost nothing
+ * to garbage collection work. Only the keys and a few numbers per entry stay
+ * on the heap. Values are converted with the configured {@link CacheSerializer},
+ * so every hit returns a new copy of the value. Values wrapped in a
+ * {@link CacheEntry} are stored with {@link CacheSerializer#serializeEntry(CacheEntry)},
+ * so the serializer only has to handle the wrapped value.
+ * <br/><br/>
+ * The memory is split into {@link OffHeapCommandCacheConfig#getSegments()}
+ * segments, each allocated once up front and guarded by its own read/write
+ * lock. Each segment is a circular log: values are appended at the write
+ * position, and when the log wraps around the oldest values are overwritten.
+ * Eviction is therefore first in, first out by bytes, and never has to
+ * search for free space or compact anything.
+ */
+public class OffHeapCommandCache<K,F,T> extends CommandCache<K,F,T>
+{
+   private final static Logger LOG = LoggerFactory.getLogger(OffHeapCommandCache.class);
+
+   /**
+    * Limit the number of entries we will dump.
+    */
+   private final static int MAX_DUMP_SIZE = 500;
+
+   /**
+    * Returned by a segment for an entry that holds a null value.
+    */
+   private final static byte[] NULL_VALUE = new byte[0];
+
+   private final Segment<K>[] segments;
+
+   private final CacheSerializer<F> serializer;
+
+   private final long expirationMillis;
+
+   public OffHeapCommandCache(String cacheName, OffHeapCommandCacheConfig cacheConfig)
+   {
+      super(cacheName, cacheConfig);
+
+      //
+      // A single direct buffer can hold at most 2 GB, so very large caches
+      // get more segments than asked for
+      //
+
+      long maxBytes = cacheConfig.getMaxBytes();
+      int count = (int)Math.max(Math.max(1, cacheConfig.getSegments()), (maxBytes + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+
+      this.segments = new Segment[count];
+
+      for(int i = 0; i < count; i++)
+      {
+         segments[i] = new Segment<>((int)(maxBytes / count));
+      }
+
+      this.serializer       = (CacheSerializer<F>)cacheConfig.getSerializer();
+      this.expirationMillis = cacheConfig.getExpiration() * 1000L;
+   }
+
+   @Override
+   protected Optional<F> doGetCache(K key)
+   {
+      Segment<K> segment = segmentFor(key);
+      Stored stored = segment.read(key, expirationMillis > 0 ? System.currentTimeMillis() : 0);
+
+      if(stored == null)
+      {
+         return null;
+      }
+
+      if(stored.bytes == NULL_VALUE)
+      {
+         return Optional.empty();
+      }
+
+      try
+      {
+         return Optional.ofNullable(stored.entry
+               ? (F)serializer.deserializeEntry(stored.bytes)
+               : serializer.deserialize(stored.bytes));
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to deserialize key {} in cache {}, dropping it", key, getName(), e);
+         segment.remove(key);
+         return null;
+      }
+   }
+
+   @Override
+   protected boolean doPutCache(K key, F value)
+   {
+      if(expirationMillis == 0)
+      {
+         return put(key, value, Long.MAX_VALUE);
+      }
+
+      //
+      // Shorten each entry's time to live by a random part of the jitter, so
+      // entries written together do not all expire together
+      //
+
+      long jitterMillis = getConfig().getExpirationJitter() > 0
+            ? (long)(ThreadLocalRandom.current().nextDouble() * expirationMillis * getConfig().getExpirationJitter() / 100)
+            : 0;
+
+      return put(key, value, System.currentTimeMillis() + expirationMillis - jitterMillis);
+   }
+
+   @Override
+   protected void doExportCache(CacheSnapshot.EntryConsumer<K,F> consumer)
+   {
+      long now = expirationMillis > 0 ? System.currentTimeMillis() : 0;
+
+      for(Segment<K> segment : segments)
+      {
+         for(K key : segment.keys())
+         {
+            Record<K> record = segment.record(key);
+            Optional<F> value = doGetCache(key);
+
+            if(record != null && record.expiresAt > now && value != null)
+            {
+               consumer.accept(key, value.orElse(null), record.expiresAt);
+            }
+         }
+      }
+   }
+
+   /**
+    * Keeps the remaining time to live of restored entries, rather than
+    * giving them a full one.
+    */
+   @Override
+   protected boolean doImportCache(K key, F value, long expiresAt)
+   {
+      if(expirationMillis == 0)
+      {
+         return put(key, value, Long.MAX_VALUE);
+      }
+
+      return put(key, value, Math.min(expiresAt, System.currentTimeMillis() + expirationMillis));
+   }
+
+   private boolean put(K key, F value, long expiresAt)
+   {
+      byte[] bytes;
+      boolean entry = value instanceof CacheEntry;
+
+      try
+      {
+         if(value == null)
+         {
+            bytes = NULL_VALUE;
+         }
+         else if(entry)
+         {
+            bytes = serializer.serializeEntry((CacheEntry<F>)value);
+         }
+         else
+         {
+            bytes = serializer.serialize(value);
+         }
+      }
+      catch(Exception e)
+      {
+         LOG.warn("Failed to serialize key {} in cache {}", key, getName(), e);
+         return false;
+      }
+
+      int evicted = segmentFor(key).write(key, bytes, expiresAt, entry);
+
+      if(evicted < 0)
+      {
+         LOG.debug("Value for key {} is larger than a segment of cache {}, not caching it", key, getName());
+         return false;
+      }
+
+      if(evicted > 0)
+      {
+         recordEvictions(evicted);
+      }
+
+      return true;
+   }
+
+   /**
+    * Removes a single entry from the cache, if present.
+    * @param key Key to remove.
+    */
+   public void invalidate(K key)
+   {
+      segmentFor(key).remove(key);
+   }
+
+   /**
+    * Returns the number of entries currently held, including any that have
+    * expired but have not yet been overwritten.
+    * @return Number of entries in the cache.
+    */
+   public int size()
+   {
+      int size = 0;
+
+      for(Segment<K> segment : segments)
+      {
+         size += segment.size();
+      }
+
+      return size;
+   }
+
+   /**
+    * Returns the number of bytes of off-heap memory used by the values
+    * currently held.
+    * @return Bytes in use.
+    */
+   public long getUsedBytes()
+   {
+      long used = 0;
+
+      for(Segment<K> segment : segments)
+      {
+         used += segment.usedBytes();
+      }
+
+      return used;
+   }
+
+   /**
+    * Returns the number of bytes of off-heap memory allocated for values.
+    * @return Bytes allocated.
+    */
+   public long getCapacityBytes()
+   {
+      return (long)segments[0].capacity * segments.length;
+   }
+
+   @Override
+   protected long doGetSize()
+   {
+      return size();
+   }
+
+   @Override
+   protected long doGetWeight()
+   {
+      return getUsedBytes();
+   }
+
+   @Override
+   public void emptyCache()
+   {
+      for(Segment<K> segment : segments)
+      {
+         segment.clear();
+      }
+   }
+
+   @Override
+   public String dumpCache()
+   {
+      if(size() >= MAX_DUMP_SIZE)
+      {
+         return "Cache size " + size() + " >= " + MAX_DUMP_SIZE + ", cache dump is disabled for performance reasons.";
+      }
+
+      StringBuilder output = new StringBuilder("Contents of cache ").append(getName()).append("\n").append("\n");
+
+      for(Segment<K> segment : segments)
+      {
+         segment.keys().forEach(key -> output.append(key).append(" : ").append(doGetCache(key)).append("\n"));
+      }
+
+      return output.toString();
+   }
+
+   private Segment<K> segmentFor(K key)
+   {
+      int hash = key.hashCode();
+      hash ^= hash >>> 16;
+      return segments[(hash & Integer.MAX_VALUE) % segments.length];
+   }
+
+   /**
+    * Location of a value in a segment.
+    */
+   private static class Record<K>
+   {
+      private final K key;
+
+      private final int offset;
+
+      private final int length;
+
+      private final long expiresAt;
+
+      private final boolean nullValue;
+
+      /**
+       * Set if the value was written by {@link CacheSerializer#serializeEntry(CacheEntry)}.
+       */
+      private final boolean entry;
+
+      private Record(K key, int offset, int length, long expiresAt, boolean nullValue, boolean entry)
+      {
+         this.key       = key;
+         this.offset    = offset;
+         this.length    = length;
+         this.expiresAt = expiresAt;
+         this.nullValue = nullValue;
+         this.entry     = entry;
+      }
+   }
+
+   /**
+    * Bytes of a value copied out of a segment, and how they were written.
+    */
+   private static class Stored
+   {
+      private final byte[] bytes;
+
+      private final boolean entry;
+
+      private Stored(byte[] bytes, boolean entry)
+      {
+         this.bytes = bytes;
+         this.entry = entry;
+      }
+   }
+
+   /**
+    * One independently locked circular log of values.
+    */
+   private static class Segment<K>
+   {
+      private final ByteBuffer buffer;
+
+      private final int capacity;
+
+      private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+      /**
+       * Latest record for each key.
+       */
+      private final HashMap<K, Record<K>> index = new HashMap<>();
+
+      /**
+       * Every record still in the buffer in the order written, including
+       * ones that were since replaced or removed.
+       */
+      private final ArrayDeque<Record<K>> log = new ArrayDeque<>();
+
+      private int writePosition = 0;
+
+      private long usedBytes = 0;
+
+      private Segment(int capacity)
+      {
+         this.buffer   = ByteBuffer.allocateDirect(capacity);
+         this.capacity = capacity;
+      }
+
+      /**
+       * Copies the value for the key onto the heap.
+       * @return Bytes of the value, which are {@link #NULL_VALUE} for a null
+       * value, or null if the key is missing or expired.
+       */
+      private Stored read(K key, long now)
+      {
+         lock.readLock().lock();
+         try
+         {
+            Record<K> record = index.get(key);
+
+            if(record == null || record.expiresAt <= now)
+            {
+               return null;
+            }
+
+            if(record.nullValue)
+            {
+               return new Stored(NULL_VALUE, false);
+            }
+
+            //
+            // Readers share the buffer, so each copies through its own view
+            // rather than moving the buffer's position
+            //
+
+            byte[] bytes = new byte[record.length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(record.offset);
+            view.get(bytes);
+            return new Stored(bytes, record.entry);
+         }
+         finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      /**
+       * Appends the value at the write position, overwriting the oldest
+       * values as needed.
+       * @return Number of entries evicted to make room, or -1 if the value is
+       * too large for the segment.
+       */
+      private int write(K key, byte[] bytes, long expiresAt, boolean entry)
+      {
+         boolean nullValue = bytes == NULL_VALUE;
+
+         //
+         // A null still takes up a byte so that every record has a distinct
+         // place in the log
+         //
+
+         int length = nullValue ? 1 : bytes.length;
+
+         if(length > capacity)
+         {
+            return -1;
+         }
+
+         lock.writeLock().lock();
+         try
+         {
+            int evicted = 0;
+
+            if(writePosition + length > capacity)
+            {
+               evicted += evictBefore(capacity);
+               writePosition = 0;
+            }
+
+            evicted += evictBefore(writePosition + length);
+
+            if(!nullValue)
+            {
+               ByteBuffer view = buffer.duplicate();
+               view.position(writePosition);
+               view.put(bytes);
+            }
+
+            Record<K> record = new Record<>(key, writePosition, length, expiresAt, nullValue, entry);
+            Record<K> previous = index.put(key, record);
+
+            if(previous != null)
+            {
+               usedBytes -= previous.length;
+            }
+
+            log.addLast(record);
+            usedBytes += length;
+            writePosition += length;
+
+            return evicted;
+         }
+         finally
+         {
+            lock.writeLock().unlock();
+         }
+      }
+
+      /**
+       * Drops the oldest records that lie between the write position and the
+       * given end, so the space can be written. Only records left from the
+       * previous pass through the buffer can be there, and they are always
+       * the oldest.
+       * @return Number of entries evicted, not counting records that were
+       * already replaced or removed.
+       */
+      private int evictBefore(int end)
+      {
+         Record<K> oldest;
+         int evicted = 0;
+
+         while((oldest = log.peekFirst()) != null && oldest.offset >= writePosition && oldest.offset < end)
+         {
+            log.removeFirst();
+
+            if(index.get(oldest.key) == oldest)
+            {
+               index.remove(oldest.key);
+               usedBytes -= oldest.length;
+               evicted++;
+            }
+         }
+
+         return evicted;
+      }
+
+      private void remove(K key)
+      {
+         lock.writeLock().lock();
+         try
+         {
+            Record<K> record = index.remove(key);
+
+            if(record != null)
+            {
+               usedBytes -= record.length;
+            }
+         }
+         finally
+         {
+            lock.writeLock().unlock();
+         }
+      }
+
+      private int size()
+      {
+         lock.readLock().lock();
+         try
+         {
+            return index.size();
+         }
+         finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      private long usedBytes()
+      {
+         lock.readLock().lock();
+         try
+         {
+            return usedBytes;
+         }
+         finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      private Record<K> record(K key)
+      {
+         lock.readLock().lock();
+         try
+         {
+            return index.get(key);
+         }
+         finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      private List<K> keys()
+      {
+         lock.readLock().lock();
+         try
+         {
+            return new ArrayList<>(index.keySet());
+         }
+         finally
+         {
+            lock.readLock().unlock();
+         }
+      }
+
+      private void clear()
+      {
+         lock.writeLock().lock();
+         try
+         {
+            index.clear();
+            log.clear();
+            writePosition = 0;
+            usedBytes = 0;
+         }
+         finally
+         {
+            lock.writeLock().unlock();
+         }
+      }
+   }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.homeadvisor.robusto.cache.CommandCacheConfig;
+
+import java.util.Map;
+
+/**
+ * Extension of {@link CommandCacheConfig} that adds the memory bound,
+ * expiration and serializer used by {@link OffHeapCommandCache}.
+ */
+public class OffHeapCommandCacheConfig extends CommandCacheConfig
+{
+   protected static final String CONFIG_MAX_BYTES = "maxBytes";
+
+   protected static final String CONFIG_SEGMENTS = "segments";
+
+   protected static final String CONFIG_EXPIRATION = "expiration";
+
+   protected static final String CONFIG_SERIALIZER = "serializer";
+
+   /**
+    * Maximum number of bytes of off-heap memory used for values.
+    */
+   private long maxBytes = 64L * 1024 * 1024;
+
+   /**
+    * Number of independently locked segments the memory is split into.
+    */
+   private int segments = 16;
+
+   /**
+    * Time after an entry is written before it expires (in seconds). Zero
+    * means entries never expire and are only removed to make room.
+    */
+   private int expiration = 0;
+
+   /**
+    * Converts values to and from the bytes kept off-heap.
+    */
+   private CacheSerializer<?> serializer = new JavaCacheSerializer<>();
+
+   /**
+    * Initialize this cache config using default values.
+    */
+   public OffHeapCommandCacheConfig()
+   {
+
+   }
+
+   /**
+    * Initialize this cache config using custom values.
+    */
+   public OffHeapCommandCacheConfig(int expiration, long maxBytes)
+   {
+      this.expiration = expiration;
+      this.maxBytes   = maxBytes;
+   }
+
+   public long getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+   public void setMaxBytes(long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+   }
+
+   public int getSegments()
+   {
+      return segments;
+   }
+
+   public void setSegments(int segments)
+   {
+      this.segments = segments;
+   }
+
+   public int getExpiration()
+   {
+      return expiration;
+   }
+
+   public void setExpiration(int expiration)
+   {
+      this.expiration = expiration;
+   }
+
+   @Override
+   public boolean isExpirationJittered()
+   {
+      return expiration > 0;
+   }
+
+   public CacheSerializer<?> getSerializer()
+   {
+      return serializer;
+   }
+
+   public void setSerializer(CacheSerializer<?> serializer)
+   {
+      this.serializer = serializer;
+   }
+
+   /**
+    * Creates a new OffHeapCommandCacheConfig from the given map of config
+    * values. Only values this class cares about will be used, others will be
+    * ignored. The serializer is given as the name of a {@link CacheSerializer}
+    * class with a no argument constructor.
+    * @param configMap Map of config key/value pairs.
+    * @return New OffHeapCommandCacheConfig.
+    */
+   public static OffHeapCommandCacheConfig fromMap(Map<String, Object> configMap)
+   {
+      OffHeapCommandCacheConfig newConfig = new OffHeapCommandCacheConfig();
+
+      newConfig.applyMap(configMap);
+      newConfig.setMaxBytes(parseBytes(configMap.getOrDefault(CONFIG_MAX_BYTES, "64m").toString()));
+      newConfig.setSegments(Integer.valueOf(configMap.getOrDefault(CONFIG_SEGMENTS, "16").toString()));
+      newConfig.setExpiration(Integer.valueOf(configMap.getOrDefault(CONFIG_EXPIRATION, "0").toString()));
+
+      Object serializerType = configMap.get(CONFIG_SERIALIZER);
+
+      if(serializerType != null)
+      {
+         try
+         {
+            newConfig.setSerializer((CacheSerializer<?>)Class.forName(serializerType.toString()).newInstance());
+         }
+         catch(ReflectiveOperationException e)
+         {
+            throw new IllegalArgumentException("Unable to create cache serializer " + serializerType, e);
+         }
+      }
+
+      return newConfig;
+   }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.homeadvisor.robusto.cache.CommandCacheFactory;
+
+import java.util.Map;
+
+/**
+ * Creates a new instance of an {@link OffHeapCommandCache}, for example one
+ * that holds up to 256 MB of values for 5 minutes each:
+ * <br/>
+ * <pre>maxBytes=256m,expiration=300,serializer=com.homeadvisor.robusto.cache.offheap.JavaCacheSerializer</pre>
+ */
+public class OffHeapCommandCacheFactory implements CommandCacheFactory<OffHeapCommandCache>
+{
+   @Override
+   public OffHeapCommandCache create(String name, Map<String, Object> config)
+   {
+      return new OffHeapCommandCache(name, OffHeapCommandCacheConfig.fromMap(config));
+   }
+}
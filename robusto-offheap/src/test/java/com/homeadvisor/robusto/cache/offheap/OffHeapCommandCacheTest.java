@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.cache.offheap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.homeadvisor.robusto.cache.CacheEntry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for {@link OffHeapCommandCache}.
+ */
+public class OffHeapCommandCacheTest
+{
+   /**
+    * Tests that values, nulls and misses all come back as they went in, and
+    * that a hit is a copy of the cached value.
+    */
+   @Test
+   public void testRoundTrip()
+   {
+      OffHeapCommandCache<String, HashMap<String, Integer>, HashMap<String, Integer>> cache =
+            new OffHeapCommandCache<>("roundTrip", new OffHeapCommandCacheConfig());
+
+      HashMap<String, Integer> value = new HashMap<>();
+      value.put("count", 42);
+
+      cache.putCache("value", value);
+      cache.putCache("null", null);
+
+      assertEquals(value, cache.getCache("value").get());
+      assertNotSame(value, cache.getCache("value").get());
+      assertNull(cache.getCache("missing"));
+
+      cache.emptyCache();
+
+      assertNull(cache.getCache("value"));
+      assertEquals(0, cache.getUsedBytes());
+   }
+
+   /**
+    * Tests that the oldest values are overwritten once a segment is full, and
+    * that replaced values no longer count towards the bytes in use.
+    */
+   @Test
+   public void testEvictsOldestBytes()
+   {
+      OffHeapCommandCacheConfig config = new OffHeapCommandCacheConfig(0, 100);
+      config.setSegments(1);
+      config.setSerializer(new JacksonCacheSerializer<>(new ObjectMapper(), String.class));
+
+      OffHeapCommandCache<Integer, String, String> cache = new OffHeapCommandCache<>("evict", config);
+
+      //
+      // Each value is 12 bytes once quoted as JSON, so 8 of them fit
+      //
+
+      for(int i = 0; i < 10; i++)
+      {
+         assertTrue(cache.putCache(i, String.format("value-%04d", i)));
+      }
+
+      assertNull(cache.getCache(0));
+      assertNull(cache.getCache(1));
+      assertEquals("value-0002", cache.getCache(2).get());
+      assertEquals("value-0009", cache.getCache(9).get());
+      assertEquals(8, cache.size());
+      assertEquals(96, cache.getUsedBytes());
+
+      //
+      // A replaced value is appended like any other, which overwrites the
+      // oldest remaining value, and the old copy stops counting
+      //
+
+      cache.putCache(9, "replaced-9");
+      assertEquals(Optional.of("replaced-9"), cache.getCache(9));
+      assertNull(cache.getCache(2));
+      assertEquals(84, cache.getUsedBytes());
+
+      assertFalse(cache.putCache(10, new String(new char[200])));
+   }
+
+   /**
+    * Tests that entries wrapped with their write time round trip through the
+    * Jackson serializer, which only ever sees the plain value, so stale and
+    * fresh lookups work the same as on the heap.
+    */
+   @Test
+   public void testJacksonWithSoftExpiration() throws Exception
+   {
+      OffHeapCommandCacheConfig config = new OffHeapCommandCacheConfig();
+      config.setSoftExpiration(1);
+      config.setExpirationJitter(10);
+      config.setRefreshAhead(50);
+      config.setSerializer(new JacksonCacheSerializer<>(new ObjectMapper(), String.class));
+
+      OffHeapCommandCache<String, String, String> cache = new OffHeapCommandCache<>("jacksonSoft", config);
+
+      long before = System.currentTimeMillis();
+      assertTrue(cache.putCache("key", "value", 25));
+
+      Object stored = cache.doGetCache("key").get();
+      assertTrue(stored instanceof CacheEntry);
+
+      CacheEntry<?> entry = (CacheEntry<?>)stored;
+      assertEquals("value", entry.getValue());
+      assertEquals(25, entry.getLoadMillis());
+      assertTrue(entry.getWrittenAt() >= before);
+      assertTrue(entry.getExpirationJitter() >= 0 && entry.getExpirationJitter() <= 0.1f);
+
+      assertEquals("value", cache.getCache("key").get());
+
+      Thread.sleep(1100);
+
+      assertNull(cache.getCache("key"));
+      assertEquals("value", cache.getStaleCache("key", false).get());
+   }
+
+   /**
+    * Tests the entry header on its own, including an entry without a value
+    * and bytes too short to hold a header.
+    */
+   @Test
+   public void testEntryHeader() throws Exception
+   {
+      JacksonCacheSerializer<String> serializer = new JacksonCacheSerializer<>(new ObjectMapper(), String.class);
+
+      byte[] bytes = serializer.serializeEntry(new CacheEntry<>("value", 1234L, 0.25f, 56L));
+      assertEquals(CacheSerializer.ENTRY_HEADER_BYTES + serializer.serialize("value").length, bytes.length);
+
+      CacheEntry<String> entry = serializer.deserializeEntry(bytes);
+      assertEquals("value", entry.getValue());
+      assertEquals(1234L, entry.getWrittenAt());
+      assertEquals(0.25f, entry.getExpirationJitter(), 0);
+      assertEquals(56L, entry.getLoadMillis());
+
+      assertNull(serializer.deserializeEntry(serializer.serializeEntry(new CacheEntry<>(null, 1234L))).getValue());
+
+      try
+      {
+         serializer.deserializeEntry(new byte[CacheSerializer.ENTRY_HEADER_BYTES - 1]);
+         fail("Truncated entry should not deserialize");
+      }
+      catch(IOException e)
+      {
+         // Expected
+      }
+   }
+
+   /**
+    * Tests that the factory reads sizes with units and the serializer class.
+    */
+   @Test
+   public void testFactory()
+   {
+      Map<String, Object> config = new HashMap<>();
+      config.put("maxBytes", "2m");
+      config.put("segments", "4");
+      config.put("serializer", JavaCacheSerializer.class.getName());
+
+      OffHeapCommandCache<String, String, String> cache = new OffHeapCommandCacheFactory().create("factory", config);
+
+      assertEquals(2 * 1024 * 1024, cache.getCapacityBytes());
+      assertTrue(cache.putCache("key", "value"));
+      assertEquals("value", cache.getCache("key").get());
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 HomeAdvisor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homeadvisor.robusto.spring;
+
+import com.homeadvisor.robusto.Deadline;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Request factory that shrinks the configured connect and read timeouts to
+ * the time left before the {@link Deadline} of the running command, so that
+ * a late retry cannot keep waiting on a backend after Hystrix has already
+ * timed the command out. Outside of a command the configured timeouts are
+ * used unchanged.
+ */
+public class DeadlineAwareRequestFactory extends SimpleClientHttpRequestFactory
+{
+   @Override
+   protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException
+   {
+      super.prepareConnection(connection, httpMethod);
+
+      Deadline deadline = Deadline.current();
+
+      if(deadline.isBounded())
+      {
+         connection.setConnectTimeout(deadline.shrinkTimeout(connection.getConnectTimeout()));
+         connection.setReadTimeout(deadline.shrinkTimeout(connection.getReadTimeout()));
+      }
+   }
+}
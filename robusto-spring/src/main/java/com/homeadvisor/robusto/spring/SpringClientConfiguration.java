@@ -24,6 +24,7 @@ import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import com.homeadvisor.robusto.ClientConfiguration;
+import com.homeadvisor.robusto.ExecutionStrategy;
 import com.homeadvisor.robusto.spring.config.SpringCommandProperties;
 import com.homeadvisor.robusto.spring.config.SpringThreadPoolProperties;
 import com.netflix.hystrix.HystrixCommandKey;
@@ -170,6 +171,83 @@ public class SpringClientConfiguration extends ClientConfiguration
       return getProperty(getConfigPrefix() + ".client.command." + name.toLowerCase() + ".numRetries", getNumRetries());
    }
 
+   @Override
+   public boolean isRetryBudgetEnabled(String name)
+   {
+      return getProperty(
+            getConfigPrefix() + ".client.command." + name.toLowerCase() + ".retryBudget.enabled",
+            getProperty(getConfigPrefix() + ".client.retryBudget.enabled", super.isRetryBudgetEnabled(name)));
+   }
+
+   @Override
+   public double getRetryBudgetRatio(String name)
+   {
+      return getProperty(
+            getConfigPrefix() + ".client.command." + name.toLowerCase() + ".retryBudget.ratio",
+            getProperty(getConfigPrefix() + ".client.retryBudget.ratio", super.getRetryBudgetRatio(name)));
+   }
+
+   @Override
+   public int getRetryBudgetMinRetriesPerSecond(String name)
+   {
+      return getProperty(
+            getConfigPrefix() + ".client.command." + name.toLowerCase() + ".retryBudget.minRetriesPerSecond",
+            getProperty(getConfigPrefix() + ".client.retryBudget.minRetriesPerSecond", super.getRetryBudgetMinRetriesPerSecond(name)));
+   }
+
+   @Override
+   public boolean isConcurrencyLimiterEnabled(String name)
+   {
+      return getProperty(
+            getConfigPrefix() + ".client.command." + name.toLowerCase() + ".concurrencyLimiter.enabled",
+            getProperty(getConfigPrefix() + ".client.concurrencyLimiter.enabled", super.isConcurrencyLimiterEnabled(name)));
+   }
+
+   @Override
+   public int getConcurrencyLimiterMaxLimit(String name)
+   {
+      return getProperty(
+            getConfigPrefix() + ".client.command." + name.toLowerCase() + ".concurrencyLimiter.maxLimit",
+            getProperty(getConfigPrefix() + ".client.concurrencyLimiter.maxLimit", super.getConcurrencyLimiterMaxLimit(name)));
+   }
+
+   /**
+    * Reads the execution strategy from <code>.client.executionStrategy</code>,
+    * which may be <code>threadPool</code> or <code>virtualThreads</code>, and
+    * the bulkhead size from <code>.client.maxConcurrentRequests</code>. Both
+    * can be set per command under <code>.client.command.[name]</code>.
+    */
+   @Override
+   public ExecutionStrategy getExecutionStrategy(String name)
+   {
+      String commandPrefix = getConfigPrefix() + ".client.command." + name.toLowerCase();
+
+      String strategy = getProperty(
+            commandPrefix + ".executionStrategy",
+            getProperty(getConfigPrefix() + ".client.executionStrategy", (String) null));
+
+      if(strategy == null)
+      {
+         return super.getExecutionStrategy(name);
+      }
+
+      if("virtualThreads".equalsIgnoreCase(strategy))
+      {
+         int maxConcurrentRequests = getProperty(
+               commandPrefix + ".maxConcurrentRequests",
+               getProperty(getConfigPrefix() + ".client.maxConcurrentRequests", ExecutionStrategy.DEFAULT_MAX_CONCURRENT_REQUESTS));
+
+         return ExecutionStrategy.virtualThreads(maxConcurrentRequests);
+      }
+
+      if(!"threadPool".equalsIgnoreCase(strategy))
+      {
+         LOG.warn("Unknown execution strategy {} for command {}, using thread pool", strategy, name);
+      }
+
+      return ExecutionStrategy.threadPool();
+   }
+
    @Override
    public int getHystrixHealthNumFailures()
    {
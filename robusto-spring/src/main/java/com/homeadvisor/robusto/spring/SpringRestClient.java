@@ -38,6 +38,7 @@ import org.springframework.web.client.RestTemplate;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -130,13 +131,15 @@ public abstract class SpringRestClient extends AbstractApiClient
 
    /**
     * Extension point for plugging in different HTTP factories.
-    * @return Default is a {@link BufferingClientHttpRequestFactory}
+    * @return Default is a {@link BufferingClientHttpRequestFactory} around a
+    * {@link DeadlineAwareRequestFactory}, so timeouts never run past the
+    * deadline of the command.
     */
    protected ClientHttpRequestFactory createHttpFactory(
          int connectTimeout,
          int requestTimeout)
    {
-      SimpleClientHttpRequestFactory scrf = new SimpleClientHttpRequestFactory();
+      SimpleClientHttpRequestFactory scrf = new DeadlineAwareRequestFactory();
       scrf.setConnectTimeout(connectTimeout);
       scrf.setReadTimeout(requestTimeout);
 
@@ -268,7 +271,10 @@ public abstract class SpringRestClient extends AbstractApiClient
       return ApiCommand.<T>builder()
             .withHystrixCommandProperties(getConfiguration().getHystrixCommandProperties(commandName))
             .withHystrixThreadProperties(getConfiguration().getHystrixThreadPoolProperties(commandName))
+            .withExecutionStrategy(getConfiguration().getExecutionStrategy(commandName))
             .withNumberOfRetries(getConfiguration().getNumRetries(commandName))
+            .withRetryBudget(getConfiguration().getRetryBudget(commandName))
+            .withConcurrencyLimiter(getConfiguration().getConcurrencyLimiter(commandName))
             .withUriProvider(uriProvider)
             .withCommandGroup(capitalizeName(getServiceName()) + "." + commandName)
             .withRetryListener(listener)
@@ -276,6 +282,46 @@ public abstract class SpringRestClient extends AbstractApiClient
             .withCommandCache(commandCache, cacheKey);
    }
 
+   /**
+    * Utility method for building new {@link ApiCommandCollapser}s, which
+    * gather requests for individual keys into a single batched call. Each
+    * batch is executed as an {@link ApiCommand} with the same boiler plate
+    * as {@link #restCommand(UriProvider, RemoteServiceCallback, RetryListener, Object, CommandCache, String)}.
+    * The collapser should be built once and reused.
+    * @param uriProvider Provider getting service URIs.
+    * @param callbackSupplier Supplies a new batch callback for each batch.
+    * @param commandName Name to use for the hystrix command.
+    * @return Builder for the collapser, which may be further customized.
+    */
+   public <K, T> ApiCommandCollapser.Builder<K, T> restCollapser(
+         UriProvider<Map<K, T>> uriProvider,
+         Supplier<BatchRemoteServiceCallback<K, T>> callbackSupplier,
+         String commandName
+   )
+   {
+      return ApiCommandCollapser.<K, T>builder()
+            .withCommandBuilder(() -> ApiCommand.<Map<K, T>>builder()
+                  .withHystrixCommandProperties(getConfiguration().getHystrixCommandProperties(commandName))
+                  .withHystrixThreadProperties(getConfiguration().getHystrixThreadPoolProperties(commandName))
+                  .withExecutionStrategy(getConfiguration().getExecutionStrategy(commandName))
+                  .withNumberOfRetries(getConfiguration().getNumRetries(commandName))
+                  .withRetryBudget(getConfiguration().getRetryBudget(commandName))
+                  .withConcurrencyLimiter(getConfiguration().getConcurrencyLimiter(commandName))
+                  .withUriProvider(uriProvider)
+                  .withCommandGroup(capitalizeName(getServiceName()) + "." + commandName))
+            .withBatchRemoteServiceCallback(() ->
+            {
+               BatchRemoteServiceCallback<K, T> callback = callbackSupplier.get();
+
+               if (callback instanceof RestTemplateAware)
+               {
+                  ((RestTemplateAware)callback).setRestTemplate(getRestTemplate(commandName));
+               }
+
+               return callback;
+            });
+   }
+
    /**
     * Return a fully intialized {@link RestTemplate} that can be used to
     * invoke remote HTTP commands. This is configured with default timeouts.